@@ -0,0 +1,198 @@
+package ru.redserver.coderemover.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.redserver.coderemover.AnnotationProccessor;
+import ru.redserver.coderemover.CodeRemover;
+import ru.redserver.coderemover.Metrics;
+import ru.redserver.coderemover.Options;
+import ru.redserver.coderemover.SimpleLogger;
+import ru.redserver.coderemover.io.JarContents;
+import ru.redserver.coderemover.io.JarManager;
+
+/**
+ * Бенчмарки отдельных фаз обработки и полного запуска на синтетическом Jar файле
+ * @author Nuclear
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JarBenchmarks {
+
+	@Param({"1000", "10000"})
+	public int classCount;
+
+	@Param({"2"})
+	public int nestingDepth;
+
+	@Param({"0.05"})
+	public double removableDensity;
+
+	@Param({"4"})
+	public int chainLength;
+
+	@Param({"text", "mixed"})
+	public String resourceMix;
+
+	@Param({"0"})
+	public int threads; // 0 - число ядер
+
+	@Param({"tree", "visitor"})
+	public String engine;
+
+	private Path dir;
+	private Path input;
+	private Path output;
+	private ForkJoinPool pool;
+
+	@Setup(Level.Trial)
+	public void generate() throws IOException {
+		SimpleLogger.instance.setLevel(java.util.logging.Level.WARNING); // логи удаления искажают результаты
+
+		dir = Files.createTempDirectory("coderemover-bench");
+		input = dir.resolve("input.jar");
+		output = dir.resolve("output.jar");
+
+		SyntheticJar jar = new SyntheticJar();
+		jar.classCount = classCount;
+		jar.nestingDepth = nestingDepth;
+		jar.removableDensity = removableDensity;
+		jar.chainLength = chainLength;
+		jar.resourceMix = resourceMix;
+		jar.write(input);
+
+		pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+	}
+
+	@TearDown(Level.Trial)
+	public void cleanup() throws IOException {
+		pool.shutdown();
+		Files.deleteIfExists(input);
+		Files.deleteIfExists(output);
+		Files.deleteIfExists(dir);
+	}
+
+	/**
+	 * Загруженное содержимое, заново для каждого вызова, так как обработка его изменяет
+	 */
+	@State(Scope.Thread)
+	public static class Loaded {
+
+		JarContents contents;
+		AnnotationProccessor processor;
+
+		@Setup(Level.Invocation)
+		public void load(JarBenchmarks bench) throws IOException {
+			contents = JarManager.loadClassesFromJar(bench.input, bench.pool);
+			processor = bench.newProcessor();
+		}
+
+		@TearDown(Level.Invocation)
+		public void close() throws IOException {
+			contents.close();
+		}
+
+	}
+
+	/**
+	 * Содержимое после удаления классов, для замера исправлений
+	 */
+	@State(Scope.Thread)
+	public static class Removed {
+
+		JarContents contents;
+		AnnotationProccessor processor;
+
+		@Setup(Level.Invocation)
+		public void load(JarBenchmarks bench) throws IOException {
+			contents = JarManager.loadClassesFromJar(bench.input, bench.pool);
+			processor = bench.newProcessor();
+			processor.removeClasses(contents, bench.pool);
+		}
+
+		@TearDown(Level.Invocation)
+		public void close() throws IOException {
+			contents.close();
+		}
+
+	}
+
+	/**
+	 * Полностью обработанное содержимое, для замера записи
+	 */
+	@State(Scope.Thread)
+	public static class Processed {
+
+		JarContents contents;
+
+		@Setup(Level.Invocation)
+		public void load(JarBenchmarks bench) throws IOException {
+			contents = JarManager.loadClassesFromJar(bench.input, bench.pool);
+			AnnotationProccessor processor = bench.newProcessor();
+			processor.removeClasses(contents, bench.pool);
+			processor.processClasses(contents, true, bench.pool);
+		}
+
+		@TearDown(Level.Invocation)
+		public void close() throws IOException {
+			contents.close();
+		}
+
+	}
+
+	@Benchmark
+	public JarContents loadClassesFromJar() throws IOException {
+		try (JarContents contents = JarManager.loadClassesFromJar(input, pool)) {
+			return contents;
+		}
+	}
+
+	@Benchmark
+	public JarContents removeClasses(Loaded loaded) throws IOException {
+		loaded.processor.removeClasses(loaded.contents, pool);
+		return loaded.contents;
+	}
+
+	@Benchmark
+	public JarContents processClasses(Removed removed) throws IOException {
+		removed.processor.processClasses(removed.contents, true, pool);
+		return removed.contents;
+	}
+
+	@Benchmark
+	public void writeClasssesToJar(Processed processed) throws IOException {
+		JarManager.writeClasssesToJar(output, processed.contents, pool);
+	}
+
+	@Benchmark
+	public void endToEnd() throws IOException {
+		new CodeRemover().execute(Options.parse(Arrays.asList(input.toString(), output.toString(), "--engine", engine)), pool);
+	}
+
+	AnnotationProccessor newProcessor() {
+		Options options = new Options();
+		options.engine = engine;
+		return new AnnotationProccessor(null, new Metrics(), options);
+	}
+
+}
@@ -0,0 +1,124 @@
+package ru.redserver.coderemover.benchmarks;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.redserver.coderemover.CodeRemover;
+import ru.redserver.coderemover.Options;
+import ru.redserver.coderemover.SimpleLogger;
+
+/**
+ * Загрузка классов при запуске из выходного архива: каждый вызов загружает "горячие" классы новым загрузчиком
+ * в порядке трассировки. Сравнивается архив в исходном порядке записей и архив, записанный с --load-order.
+ * Страницы архива остаются в кэше ОС, для полностью холодного запуска кэш нужно сбрасывать между форками.
+ * @author Nuclear
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 30)
+@Fork(3)
+@State(Scope.Benchmark)
+public class StartupBenchmarks {
+
+	@Param({"10000"})
+	public int classCount;
+
+	/**
+	 * Доля классов архива, загружаемых при запуске
+	 */
+	@Param({"0.2"})
+	public double hotRatio;
+
+	@Param({"none", "loadOrder", "loadOrderIndex"})
+	public String layout;
+
+	private Path dir;
+	private Path input;
+	private Path output;
+	private Path trace;
+	private List<String> hotClasses;
+
+	@Setup(Level.Trial)
+	public void generate() throws IOException {
+		SimpleLogger.instance.setLevel(java.util.logging.Level.WARNING);
+
+		dir = Files.createTempDirectory("coderemover-startup");
+		input = dir.resolve("input.jar");
+		output = dir.resolve("output.jar");
+		trace = dir.resolve("trace.txt");
+
+		SyntheticJar jar = new SyntheticJar();
+		jar.classCount = classCount;
+		jar.write(input);
+
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			new CodeRemover().execute(Options.parse(Arrays.asList(input.toString(), output.toString())), pool);
+
+			// Трассировка: случайная часть оставшихся классов в случайном порядке загрузки
+			List<String> classes = new ArrayList<>();
+			try (ZipFile zip = new ZipFile(output.toFile())) {
+				for(ZipEntry entry : Collections.list(zip.entries())) {
+					String name = entry.getName();
+					if(name.endsWith(".class")) classes.add(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+				}
+			}
+			Collections.shuffle(classes, new Random(42));
+			hotClasses = new ArrayList<>(classes.subList(0, (int)(classes.size() * hotRatio)));
+			Files.write(trace, hotClasses, StandardCharsets.UTF_8);
+
+			if(!layout.equals("none")) {
+				List<String> args = new ArrayList<>(Arrays.asList(input.toString(), output.toString(), "--load-order", trace.toString()));
+				if(layout.equals("loadOrderIndex")) args.add("--jar-index");
+				new CodeRemover().execute(Options.parse(args), pool);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void cleanup() throws IOException {
+		Files.deleteIfExists(input);
+		Files.deleteIfExists(output);
+		Files.deleteIfExists(trace);
+		Files.deleteIfExists(dir);
+	}
+
+	@Benchmark
+	public int loadHotClasses() throws IOException, ClassNotFoundException {
+		try (URLClassLoader loader = new URLClassLoader(new URL[]{output.toUri().toURL()}, null)) {
+			for(String name : hotClasses) {
+				Class.forName(name, false, loader);
+			}
+			return hotClasses.size();
+		}
+	}
+
+}
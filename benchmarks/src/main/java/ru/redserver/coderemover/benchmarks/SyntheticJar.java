@@ -0,0 +1,206 @@
+package ru.redserver.coderemover.benchmarks;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Генератор синтетических Jar файлов для бенчмарков
+ * @author Nuclear
+ */
+public final class SyntheticJar {
+
+	private static final String REMOVABLE_DESC = "Lru/redserver/coderemover/Removable;";
+
+	/**
+	 * Число классов верхнего уровня
+	 */
+	public int classCount = 1000;
+
+	/**
+	 * Глубина вложенности классов ($)
+	 */
+	public int nestingDepth = 2;
+
+	/**
+	 * Доля классов верхнего уровня, имеющих вложенные классы
+	 */
+	public double nestedRatio = 0.2;
+
+	/**
+	 * Доля полей и методов, помеченных для удаления
+	 */
+	public double removableDensity = 0.05;
+
+	/**
+	 * Длина цепочек наследования. Средний класс каждой цепочки помечается для удаления
+	 */
+	public int chainLength = 4;
+
+	/**
+	 * Доля цепочек наследования, проходящих через удаляемый класс
+	 */
+	public double removedChainRatio = 0.1;
+
+	public int fieldsPerClass = 4;
+	public int methodsPerClass = 6;
+
+	/**
+	 * Набор ресурсов: none, text (мелкие текстовые файлы) или mixed (текст и несжимаемые "текстуры")
+	 */
+	public String resourceMix = "mixed";
+
+	public long seed = 42;
+
+	/**
+	 * Создаёт Jar файл для ручных замеров: &lt;файл&gt; [число классов] [набор ресурсов]
+	 * @param args Аргументы
+	 * @throws IOException Ошибка записи
+	 */
+	public static void main(String[] args) throws IOException {
+		SyntheticJar jar = new SyntheticJar();
+		if(args.length > 1) jar.classCount = Integer.parseInt(args[1]);
+		if(args.length > 2) jar.resourceMix = args[2];
+		jar.write(Paths.get(args[0]));
+	}
+
+	/**
+	 * Создаёт Jar файл
+	 * @param path Путь к файлу
+	 * @throws IOException Ошибка записи
+	 */
+	public void write(Path path) throws IOException {
+		Random random = new Random(seed);
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+
+		try (JarOutputStream jar = new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(path)), manifest)) {
+			// Удаляемый интерфейс
+			jar.putNextEntry(new JarEntry("bench/RemovedIface.class"));
+			jar.write(generateInterface("bench/RemovedIface"));
+			jar.closeEntry();
+
+			boolean removedChain = false;
+			for(int i = 0; i < classCount; i++) {
+				String name = "bench/p" + (i % 50) + "/C" + i;
+				int chainPos = i % chainLength;
+				if(chainPos == 0) removedChain = random.nextDouble() < removedChainRatio;
+				String superName = chainPos == 0 ? "java/lang/Object" : "bench/p" + ((i - 1) % 50) + "/C" + (i - 1);
+				boolean removedClass = removedChain && chainPos == chainLength / 2 && chainPos > 0;
+
+				jar.putNextEntry(new JarEntry(name + ".class"));
+				jar.write(generateClass(name, superName, removedClass, random));
+				jar.closeEntry();
+
+				if(random.nextDouble() < nestedRatio) {
+					String nested = name;
+					for(int depth = 1; depth <= nestingDepth; depth++) {
+						nested = nested + "$N" + depth;
+						jar.putNextEntry(new JarEntry(nested + ".class"));
+						jar.write(generateClass(nested, "java/lang/Object", false, random));
+						jar.closeEntry();
+					}
+				}
+
+				if(!resourceMix.equals("none") && i % 10 == 0) {
+					jar.putNextEntry(new JarEntry("assets/lang/" + i + ".lang"));
+					jar.write(generateText(random, 1024 + random.nextInt(4096)));
+					jar.closeEntry();
+				}
+				if(resourceMix.equals("mixed") && i % 25 == 0) {
+					byte[] texture = new byte[64 * 1024 + random.nextInt(192 * 1024)];
+					random.nextBytes(texture); // несжимаемые данные, как у png и ogg
+					jar.putNextEntry(new JarEntry("assets/textures/" + i + ".png"));
+					jar.write(texture);
+					jar.closeEntry();
+				}
+			}
+		}
+	}
+
+	private byte[] generateClass(String name, String superName, boolean removed, Random random) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		boolean implementsRemoved = random.nextDouble() < removableDensity;
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, superName, implementsRemoved ? new String[]{"bench/RemovedIface"} : null);
+		if(removed) annotate(cw.visitAnnotation(REMOVABLE_DESC, false), true);
+
+		boolean[] removedFields = new boolean[fieldsPerClass];
+		for(int f = 0; f < fieldsPerClass; f++) {
+			FieldVisitor fv = cw.visitField(Opcodes.ACC_PRIVATE, "f" + f, "I", null, null);
+			removedFields[f] = random.nextDouble() < removableDensity;
+			if(removedFields[f]) annotate(fv.visitAnnotation(REMOVABLE_DESC, false), true);
+			fv.visitEnd();
+		}
+
+		// Конструктор с инициализацией полей
+		MethodVisitor init = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+		init.visitCode();
+		init.visitVarInsn(Opcodes.ALOAD, 0);
+		init.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V", false);
+		for(int f = 0; f < fieldsPerClass; f++) {
+			init.visitVarInsn(Opcodes.ALOAD, 0);
+			init.visitInsn(Opcodes.ICONST_0 + (f % 6));
+			init.visitFieldInsn(Opcodes.PUTFIELD, name, "f" + f, "I");
+		}
+		init.visitInsn(Opcodes.RETURN);
+		init.visitMaxs(0, 0);
+		init.visitEnd();
+
+		for(int m = 0; m < methodsPerClass; m++) {
+			MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "m" + m, "()I", null, null);
+			if(random.nextDouble() < removableDensity) annotate(mv.visitAnnotation(REMOVABLE_DESC, false), true);
+			mv.visitCode();
+			mv.visitTypeInsn(Opcodes.NEW, superName);
+			mv.visitInsn(Opcodes.POP);
+			mv.visitLdcInsn(name + "#" + m);
+			mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/String", "length", "()I", false);
+			for(int f = 0; f < fieldsPerClass; f++) {
+				if(removedFields[f]) continue;
+				mv.visitVarInsn(Opcodes.ALOAD, 0);
+				mv.visitFieldInsn(Opcodes.GETFIELD, name, "f" + f, "I");
+				mv.visitInsn(Opcodes.IADD);
+			}
+			mv.visitInsn(Opcodes.IRETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+		}
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	private static byte[] generateInterface(String name) {
+		ClassWriter cw = new ClassWriter(0);
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT, name, null, "java/lang/Object", null);
+		annotate(cw.visitAnnotation(REMOVABLE_DESC, false), true);
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	private static void annotate(AnnotationVisitor av, boolean remove) {
+		av.visit("remove", remove);
+		av.visitEnd();
+	}
+
+	private static byte[] generateText(Random random, int length) {
+		StringBuilder builder = new StringBuilder(length);
+		while(builder.length() < length) {
+			builder.append("item.").append(random.nextInt(1000)).append(".name=Item ").append(random.nextInt(1000)).append('\n');
+		}
+		return builder.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,31 @@
+package ru.redserver.coderemover.gradle;
+
+import org.gradle.api.Plugin;
+import org.gradle.api.Project;
+import org.gradle.api.plugins.JavaPlugin;
+import org.gradle.api.tasks.bundling.Jar;
+
+/**
+ * Регистрирует задачу removeCode, которая обрабатывает архив задачи jar и пишет результат рядом с ним
+ * с классификатором removed. Иерархия классов строится по библиотекам compileClasspath.
+ * @author Nuclear
+ */
+public final class CodeRemoverPlugin implements Plugin<Project> {
+
+	public static final String TASK_NAME = "removeCode";
+
+	@Override
+	public void apply(Project project) {
+		project.getPlugins().withType(JavaPlugin.class, java -> {
+			project.getTasks().register(TASK_NAME, CodeRemoverTask.class, task -> {
+				Jar jar = (Jar)project.getTasks().getByName(JavaPlugin.JAR_TASK_NAME);
+				task.setGroup("build");
+				task.setDescription("Removes marked code from the jar archive.");
+				task.getInputJar().set(jar.getArchiveFile());
+				task.getClasspath().from(project.getConfigurations().getByName(JavaPlugin.COMPILE_CLASSPATH_CONFIGURATION_NAME));
+				task.getOutputJar().set(jar.getDestinationDirectory().file(jar.getArchiveFileName().map(name -> name.replaceFirst("\\.jar$", "-removed.jar"))));
+			});
+		});
+	}
+
+}
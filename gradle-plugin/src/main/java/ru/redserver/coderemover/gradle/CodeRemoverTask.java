@@ -0,0 +1,149 @@
+package ru.redserver.coderemover.gradle;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskAction;
+import ru.redserver.coderemover.CodeRemover;
+import ru.redserver.coderemover.Metrics;
+import ru.redserver.coderemover.Options;
+import ru.redserver.coderemover.Strip;
+import ru.redserver.coderemover.io.Compression;
+import ru.redserver.coderemover.io.ZipArchive;
+import ru.redserver.coderemover.io.ZipWriter;
+
+/**
+ * Удаляет помеченный код из архива в процессе сборки, без отдельной JVM. Все параметры объявлены входами задачи,
+ * поэтому задача пропускается при неизменных входах и её результат берётся из кэша сборки.
+ * Время записей результата постоянно, архив воспроизводим.
+ * @author Nuclear
+ */
+@CacheableTask
+public abstract class CodeRemoverTask extends DefaultTask {
+
+	private static final LocalDateTime ENTRY_TIME = LocalDateTime.of(1980, 2, 1, 0, 0); // как у воспроизводимых архивов Gradle
+
+	public CodeRemoverTask() {
+		getRemoveOnly().convention(false);
+		getEngine().convention(Options.ENGINE_TREE);
+		getFrames().convention(false);
+		getShrink().convention(false);
+		getThreads().convention(Runtime.getRuntime().availableProcessors());
+	}
+
+	@InputFile
+	@PathSensitive(PathSensitivity.NONE)
+	public abstract RegularFileProperty getInputJar();
+
+	/**
+	 * Библиотеки для построения иерархии классов
+	 */
+	@Classpath
+	public abstract ConfigurableFileCollection getClasspath();
+
+	@Input
+	@Optional
+	public abstract Property<String> getProfile();
+
+	@Input
+	public abstract Property<Boolean> getRemoveOnly();
+
+	@Input
+	public abstract Property<String> getEngine();
+
+	@Input
+	public abstract Property<Boolean> getFrames();
+
+	/**
+	 * Флаги сборки: [профиль:]класс.поле=значение
+	 */
+	@Input
+	public abstract ListProperty<String> getFlags();
+
+	@Input
+	@Optional
+	public abstract Property<String> getFlagsClass();
+
+	@Input
+	public abstract Property<Boolean> getShrink();
+
+	@Input
+	public abstract ListProperty<String> getKeep();
+
+	/**
+	 * Данные, удаляемые из классов: debug, annotations, inner-classes или all
+	 */
+	@Input
+	public abstract ListProperty<String> getStrip();
+
+	/**
+	 * Число потоков не влияет на результат
+	 */
+	@Internal
+	public abstract Property<Integer> getThreads();
+
+	@OutputFile
+	public abstract RegularFileProperty getOutputJar();
+
+	@TaskAction
+	public void remove() throws IOException {
+		Options options = new Options();
+		options.inputFile = getInputJar().get().getAsFile().toPath();
+		options.removeOnly = getRemoveOnly().get();
+		options.engine = getEngine().get();
+		options.frames = getFrames().get();
+		options.flags.addAll(getFlags().get());
+		options.flagsClass = getFlagsClass().getOrNull();
+		options.shrink = getShrink().get();
+		options.keep.addAll(getKeep().get());
+		for(String part : getStrip().get()) {
+			options.strip.addAll(Strip.parse(part));
+		}
+		options.threads = getThreads().get();
+		for(File library : getClasspath()) { // каталоги классов модулей не индексируются
+			if(library.isFile()) options.classpath.add(library.toPath());
+		}
+
+		List<CodeRemover.Entry> entries = new ArrayList<>();
+		try (ZipArchive archive = ZipArchive.open(options.inputFile)) {
+			for(ZipArchive.Entry entry : archive.getEntries()) {
+				if(!entry.isDirectory()) entries.add(new CodeRemover.Entry(entry.name, entry.readBytes()));
+			}
+		}
+
+		Path output = getOutputJar().get().getAsFile().toPath();
+		Files.createDirectories(output.getParent());
+		ForkJoinPool pool = new ForkJoinPool(options.threads);
+		Metrics metrics;
+		try (ZipWriter writer = new ZipWriter(FileChannel.open(output, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING), Compression.DEFAULT.level, ENTRY_TIME)) {
+			metrics = CodeRemover.process(entries, writer::writeEntry, options, getProfile().getOrNull(), pool);
+		} finally {
+			pool.shutdown();
+		}
+		getLogger().lifecycle("Removed {} classes, {} interfaces, {} nested classes, {} fields, {} methods.",
+				metrics.get(Metrics.Counter.REMOVED_CLASSES), metrics.get(Metrics.Counter.REMOVED_INTERFACES), metrics.get(Metrics.Counter.REMOVED_SUBCLASSES),
+				metrics.get(Metrics.Counter.REMOVED_FIELDS), metrics.get(Metrics.Counter.REMOVED_METHODS));
+	}
+
+}
@@ -0,0 +1,206 @@
+package ru.redserver.coderemover.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+import ru.redserver.coderemover.CodeRemover;
+import ru.redserver.coderemover.Metrics;
+import ru.redserver.coderemover.Options;
+import ru.redserver.coderemover.Strip;
+import ru.redserver.coderemover.io.ClassCache;
+
+/**
+ * Удаляет помеченный код из скомпилированных классов модуля в процессе сборки, без отдельной JVM
+ * и промежуточного архива. Классы читаются в память и обрабатываются через {@link CodeRemover#process}.
+ * Если классы и параметры не изменились с прошлого запуска, обработка пропускается.
+ * @author Nuclear
+ */
+@Mojo(name = "remove", defaultPhase = LifecyclePhase.PROCESS_CLASSES, requiresDependencyResolution = ResolutionScope.COMPILE, threadSafe = true)
+public final class RemoveMojo extends AbstractMojo {
+
+	/**
+	 * Каталог скомпилированных классов
+	 */
+	@Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
+	private File classesDirectory;
+
+	/**
+	 * Выходной каталог. По умолчанию классы обрабатываются на месте
+	 */
+	@Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
+	private File outputDirectory;
+
+	/**
+	 * Состояние последнего запуска для проверки актуальности
+	 */
+	@Parameter(defaultValue = "${project.build.directory}/coderemover.state", required = true)
+	private File stateFile;
+
+	@Parameter(defaultValue = "${project.compileClasspathElements}", readonly = true, required = true)
+	private List<String> classpathElements;
+
+	@Parameter(property = "coderemover.profile")
+	private String profile;
+
+	@Parameter(defaultValue = "false")
+	private boolean removeOnly;
+
+	@Parameter(defaultValue = Options.ENGINE_TREE)
+	private String engine;
+
+	@Parameter(defaultValue = "false")
+	private boolean frames;
+
+	/**
+	 * Флаги сборки: [профиль:]класс.поле=значение
+	 */
+	@Parameter
+	private List<String> flags = new ArrayList<>();
+
+	@Parameter
+	private String flagsClass;
+
+	@Parameter(defaultValue = "false")
+	private boolean shrink;
+
+	@Parameter
+	private List<String> keep = new ArrayList<>();
+
+	/**
+	 * Данные, удаляемые из классов: debug, annotations, inner-classes или all
+	 */
+	@Parameter
+	private List<String> strip = new ArrayList<>();
+
+	@Parameter(defaultValue = "0")
+	private int threads;
+
+	@Parameter(property = "coderemover.skip", defaultValue = "false")
+	private boolean skip;
+
+	@Override
+	public void execute() throws MojoExecutionException {
+		if(skip) return;
+
+		Path input = classesDirectory.toPath();
+		Path output = outputDirectory.toPath();
+		if(!Files.isDirectory(input)) {
+			getLog().info("No classes to process: " + input);
+			return;
+		}
+
+		Options options = createOptions();
+		try {
+			String key = ClassCache.hash((options.describe() + ";profile=" + profile).getBytes(StandardCharsets.UTF_8));
+			String inputHash = ClassCache.hashDirectory(input);
+			if(isUpToDate(key, inputHash, output, input.equals(output))) {
+				getLog().info("Classes and options are unchanged, skipping.");
+				return;
+			}
+
+			Metrics metrics = process(input, output, options);
+			getLog().info(String.format("Removed %d classes, %d interfaces, %d nested classes, %d fields, %d methods.",
+					metrics.get(Metrics.Counter.REMOVED_CLASSES), metrics.get(Metrics.Counter.REMOVED_INTERFACES), metrics.get(Metrics.Counter.REMOVED_SUBCLASSES),
+					metrics.get(Metrics.Counter.REMOVED_FIELDS), metrics.get(Metrics.Counter.REMOVED_METHODS)));
+
+			Files.createDirectories(stateFile.toPath().getParent());
+			Files.write(stateFile.toPath(), Arrays.asList(key, inputHash, ClassCache.hashDirectory(output)), StandardCharsets.UTF_8);
+		} catch (IOException | RuntimeException ex) {
+			throw new MojoExecutionException("Code removal failed: " + ex.getMessage(), ex);
+		}
+	}
+
+	private Options createOptions() {
+		Options options = new Options();
+		options.inputFile = classesDirectory.toPath();
+		options.removeOnly = removeOnly;
+		options.engine = engine;
+		options.frames = frames;
+		options.flags.addAll(flags);
+		options.flagsClass = flagsClass;
+		options.shrink = shrink;
+		options.keep.addAll(keep);
+		for(String part : strip) {
+			options.strip.addAll(Strip.parse(part));
+		}
+		options.logSummary = true;
+		if(threads > 0) options.threads = threads;
+		for(String element : classpathElements) { // каталоги классов модулей не индексируются
+			Path library = new File(element).toPath();
+			if(Files.isRegularFile(library)) options.classpath.add(library);
+		}
+		return options;
+	}
+
+	/**
+	 * Результат актуален, если параметры и выходной каталог не изменились, а входной каталог совпадает
+	 * с обработанным в прошлый раз. При обработке на месте входной каталог совпадает с результатом
+	 */
+	private boolean isUpToDate(String key, String inputHash, Path output, boolean inPlace) throws IOException {
+		if(!stateFile.isFile() || !Files.isDirectory(output)) return false;
+		List<String> state = Files.readAllLines(stateFile.toPath(), StandardCharsets.UTF_8);
+		if(state.size() != 3 || !state.get(0).equals(key)) return false;
+		String outputHash = inPlace ? inputHash : ClassCache.hashDirectory(output);
+		return state.get(2).equals(outputHash) && (inPlace || state.get(1).equals(inputHash));
+	}
+
+	/**
+	 * Обрабатывает классы в памяти. Записываются только изменённые файлы, из выходного каталога удаляются
+	 * только файлы входных классов, которые не были записаны, то есть удалённых классов
+	 */
+	private Metrics process(Path input, Path output, Options options) throws IOException {
+		List<Path> files;
+		try (Stream<Path> stream = Files.walk(input)) {
+			files = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		}
+		List<CodeRemover.Entry> entries = new ArrayList<>(files.size());
+		Map<String, byte[]> original = new HashMap<>();
+		for(Path file : files) {
+			String name = input.relativize(file).toString().replace(File.separatorChar, '/');
+			byte[] data = Files.readAllBytes(file);
+			entries.add(new CodeRemover.Entry(name, data));
+			original.put(name, data);
+		}
+
+		boolean inPlace = input.equals(output);
+		Set<String> written = new HashSet<>();
+		ForkJoinPool pool = new ForkJoinPool(options.threads);
+		Metrics metrics;
+		try {
+			metrics = CodeRemover.process(entries, (name, data) -> {
+				written.add(name);
+				if(inPlace && Arrays.equals(original.get(name), data)) return;
+
+				Path target = output.resolve(name);
+				Files.createDirectories(target.getParent());
+				Files.write(target, data);
+			}, options, profile, pool);
+		} finally {
+			pool.shutdown();
+		}
+
+		for(String name : original.keySet()) { // удаляются только файлы удалённых классов, остальные файлы каталога не трогаются
+			if(name.endsWith(".class") && !written.contains(name)) Files.deleteIfExists(output.resolve(name));
+		}
+		return metrics;
+	}
+
+}
@@ -1,14 +1,35 @@
 package ru.redserver.coderemover;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.text.MessageFormat;
+import ru.redserver.coderemover.io.ClassCache;
+import ru.redserver.coderemover.io.ClassEntry;
 import ru.redserver.coderemover.io.JarContents;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.AbstractInsnNode;
@@ -28,68 +49,523 @@ import org.objectweb.asm.tree.VarInsnNode;
  */
 public final class AnnotationProccessor {
 
-	static final String DATA_SEPARATOR = "<::>";
 	static final String OBJECT_CONSTRUCTOR = "<init>";
 	static final String STATIC_CONSTRUCTOR = "<clinit>";
 	static final String REMOVABLE_DESC = Type.getDescriptor(Removable.class);
-	static final Set<Integer> PRIMITIVE_OPCODES = new HashSet<>();
+	static final boolean[] PRIMITIVE_OPCODES = new boolean[256]; // инструкции загрузки констант, по коду инструкции
+	static final ConstantPoolFilter REMOVABLE_FILTER = new ConstantPoolFilter(Collections.singleton(REMOVABLE_DESC));
 
-	private final Set<String> deletedIfaces = new HashSet<>(); // удалённые интерфейсы
-	private final Set<String> deletedFields = new HashSet<>(); // удалённые поля
+	final Set<String> deletedIfaces = new HashSet<>(); // удалённые интерфейсы
 	private final Map<String, String> deletedClasses = new HashMap<>(); // удалённые классы (ключ - имя, значение - имя родителя)
+	private Map<String, String> resolvedSupers = Collections.emptyMap(); // удалённый класс -> ближайший неудалённый родитель
+	private ConstantPoolFilter deletedFilter = new ConstantPoolFilter(Collections.emptySet()); // ссылки на удалённые классы и интерфейсы
+	private OuterClassIndex outerIndex = new OuterClassIndex(Collections.emptySet()); // внешние классы удаляемых вложенных классов
+	final String profile; // профиль сборки
+	final Metrics metrics;
+	final boolean logRemovals; // вывод сообщения о каждом удалении
+	private final String logPrefix;
+	private final ThreadLocal<List<String>> classLog = new ThreadLocal<>(); // сообщения об изменениях класса, сохраняемого в кэш
+	private final boolean visitorEngine; // обработка классов потоком событий ClassReader -> ClassWriter
+	private final boolean headersOnly; // классы для удаления проверяются по заголовкам: обработка потоком событий или план удаления
+	private ClassHierarchy hierarchy; // иерархия классов архива и библиотек или null
+	private final boolean inheritInterfaces; // восстановление унаследованных интерфейсов, только с --classpath
+	final FrameWriter.Resolver frames; // пересчёт фреймов изменённых методов или null
+	final ConstantFlags flags; // флаги сборки или null
+	final Stripper stripper; // уменьшение размера классов или null
 
 	static {
-		PRIMITIVE_OPCODES.add(Opcodes.ACONST_NULL);
-		PRIMITIVE_OPCODES.add(Opcodes.LDC);
-		PRIMITIVE_OPCODES.add(Opcodes.SIPUSH); // int, long, short
-		PRIMITIVE_OPCODES.add(Opcodes.BIPUSH); // byte
-		PRIMITIVE_OPCODES.add(Opcodes.ICONST_0); // 0, false
-		PRIMITIVE_OPCODES.add(Opcodes.ICONST_1); // 1, true
-		PRIMITIVE_OPCODES.add(Opcodes.ICONST_2); // 2
-		PRIMITIVE_OPCODES.add(Opcodes.ICONST_3); // 3
-		PRIMITIVE_OPCODES.add(Opcodes.ICONST_4); // 4
-		PRIMITIVE_OPCODES.add(Opcodes.ICONST_5); // 5
-	}
-
-	public void removeClasses(JarContents contents) {
-		Iterator<Map.Entry<String, ClassNode>> it = contents.classes.entrySet().iterator();
-		while(it.hasNext()) {
-			ClassNode node = it.next().getValue();
-			if(checkRemovable(node.invisibleAnnotations, true)) {
-				if(Modifier.isInterface(node.access)) {
-					deletedIfaces.add(node.name);
+		PRIMITIVE_OPCODES[Opcodes.ACONST_NULL] = true;
+		PRIMITIVE_OPCODES[Opcodes.LDC] = true;
+		PRIMITIVE_OPCODES[Opcodes.SIPUSH] = true; // int, long, short
+		PRIMITIVE_OPCODES[Opcodes.BIPUSH] = true; // byte
+		PRIMITIVE_OPCODES[Opcodes.ICONST_0] = true; // 0, false
+		PRIMITIVE_OPCODES[Opcodes.ICONST_1] = true; // 1, true
+		PRIMITIVE_OPCODES[Opcodes.ICONST_2] = true; // 2
+		PRIMITIVE_OPCODES[Opcodes.ICONST_3] = true; // 3
+		PRIMITIVE_OPCODES[Opcodes.ICONST_4] = true; // 4
+		PRIMITIVE_OPCODES[Opcodes.ICONST_5] = true; // 5
+	}
+
+	public AnnotationProccessor() {
+		this(null);
+	}
+
+	/**
+	 * @param profile Профиль сборки. Элементы, помеченные для других профилей, не удаляются
+	 */
+	public AnnotationProccessor(String profile) {
+		this(profile, new Metrics());
+	}
+
+	/**
+	 * @param profile Профиль сборки или null
+	 * @param metrics Метрики запуска, общие для всех профилей
+	 */
+	public AnnotationProccessor(String profile, Metrics metrics) {
+		this(profile, metrics, new Options());
+	}
+
+	/**
+	 * @param profile Профиль сборки или null
+	 * @param metrics Метрики запуска, общие для всех профилей
+	 * @param options Параметры запуска: вывод удалений, способ обработки классов, пересчёт фреймов, флаги сборки и удаляемые данные классов
+	 */
+	public AnnotationProccessor(String profile, Metrics metrics, Options options) {
+		this.profile = profile;
+		this.metrics = metrics;
+		this.logRemovals = !options.logSummary && options.planFile == null && SimpleLogger.instance.isLoggable(Level.INFO);
+		this.visitorEngine = options.engine.equals(Options.ENGINE_VISITOR);
+		this.headersOnly = visitorEngine || options.planFile != null;
+		this.frames = options.frames ? new FrameWriter.Resolver(this) : null;
+		this.inheritInterfaces = !options.classpath.isEmpty(); // не зависит от --frames, которому иерархия нужна только для слияния типов
+		this.logPrefix = SimpleLogger.profilePrefix(profile);
+		this.flags = !options.flags.isEmpty() || options.flagsClass != null ? new ConstantFlags(this, options) : null;
+		this.stripper = options.strip.isEmpty() ? null : new Stripper(this, options.strip);
+	}
+
+	/**
+	 * Задаёт иерархию классов. Если заданы библиотеки --classpath, удалённые интерфейсы и родительские классы
+	 * заменяются унаследованными от них интерфейсами, а не просто убираются
+	 * @param hierarchy Иерархия классов архива и библиотек
+	 */
+	public void setHierarchy(ClassHierarchy hierarchy) {
+		this.hierarchy = hierarchy;
+	}
+
+	ClassHierarchy getHierarchy() {
+		return hierarchy;
+	}
+
+	/**
+	 * Удаляет помеченные классы и их вложенные классы. Разбираются только классы, пул констант которых
+	 * ссылается на {@link Removable}, остальные не могут быть помечены и остаются в виде байт-кода.
+	 * При обработке потоком событий и построении плана удаления читаются только заголовки классов.
+	 * Классы вложенных архивов проверяются вместе с классами внешнего: таблица удалённых классов общая для всех архивов.
+	 * @param contents Содержимое архива
+	 * @param pool Пул потоков для разбора классов
+	 * @throws IOException Если разбор завершился с ошибкой
+	 */
+	@SuppressWarnings("try")
+	public void removeClasses(JarContents contents, ForkJoinPool pool) throws IOException {
+		try (Metrics.PhaseTimer timer = metrics.time(Metrics.Phase.REMOVE_CLASSES)) {
+			List<JarContents> archives = contents.getArchives();
+			List<ClassEntry> entries = contents.getAllClasses();
+			if(flags != null && flags.flagsClass != null) entries.forEach(flags::scanClass); // до удаления классов
+			Map<ClassEntry, ClassNode> headers = new ConcurrentHashMap<>();
+			Utils.await(pool.submit(() -> entries.parallelStream().filter(clazz -> REMOVABLE_FILTER.matches(clazz.getBytes())).forEach(clazz -> {
+				if(headersOnly) {
+					headers.put(clazz, readHeader(clazz));
 				} else {
-					deletedClasses.put(node.name, node.superName);
+					parse(clazz);
+				}
+			})));
+
+			for(JarContents archive : archives) {
+				Iterator<Map.Entry<String, ClassEntry>> it = archive.classes.entrySet().iterator();
+				while(it.hasNext()) {
+					ClassEntry clazz = it.next().getValue();
+					ClassNode node = clazz.isParsed() ? clazz.getNode() : headers.get(clazz);
+					if(node != null && checkClass(node)) it.remove();
 				}
-				it.remove();
-				SimpleLogger.instance.info("Removed " + (Modifier.isInterface(node.access) ? "interface" : "class") + ": " + Utils.normalizeName(node.name));
 			}
-		}
 
-		// Удаляем вложенные классы и подклассы
-		contents.classes.entrySet().removeIf((Map.Entry<String, ClassNode> entry) -> {
-			String name = entry.getValue().name;
-			String parentName = name;
-			while((parentName = Utils.getParentClassName(parentName)) != null) { // проверяем всех родителей, поднимаясь на уровень выше
-				if(deletedClasses.containsKey(parentName)) {
-					SimpleLogger.instance.info("Removed subclass: " + Utils.normalizeName(name));
-					return true;  // удаляем, если родитель удалён
+			endScan();
+
+			// Удаляем вложенные классы и подклассы. Имена проверяются по индексу параллельно, удаляются по порядку
+			for(JarContents archive : archives) {
+				List<String> names = new ArrayList<>(archive.classes.keySet());
+				List<String> nested = Utils.await(pool.submit(() -> names.parallelStream().filter(this::hasRemovedOuter).collect(Collectors.toList())));
+				for(String name : nested) {
+					archive.classes.remove(name);
+					logSubclassRemoved(name);
 				}
 			}
-			return false;
-		});
+		}
+	}
+
+	/**
+	 * Первый проход потокового режима: проверяет, помечен ли класс для удаления.
+	 * Читается только заголовок класса, код методов пропускается.
+	 * После проверки всех классов необходимо вызвать {@link #endScan()}.
+	 * @param clazz Класс
+	 */
+	public void scanClass(ClassEntry clazz) {
+		if(flags != null) flags.scanClass(clazz);
+		if(REMOVABLE_FILTER.matches(clazz.getBytes())) checkClass(readHeader(clazz));
+	}
+
+	/**
+	 * Завершает построение таблиц удалённых классов и интерфейсов
+	 */
+	public void endScan() {
+		Set<String> deletedNames = new HashSet<>(deletedClasses.keySet());
+		deletedNames.addAll(deletedIfaces);
+		deletedFilter = new ConstantPoolFilter(deletedNames);
+		outerIndex = new OuterClassIndex(deletedClasses.keySet());
+
+		Map<String, String> resolved = new HashMap<>();
+		for(String name : deletedClasses.keySet()) {
+			resolveSuperclass(name, resolved);
+		}
+		resolvedSupers = resolved;
+		if(flags != null) flags.endScan();
+	}
+
+	/**
+	 * Поднимается по цепочке удалённых классов до первого неудалённого родителя.
+	 * Результат запоминается для всех пройденных классов, поэтому каждая цепочка проходится один раз.
+	 * @param name Удалённый класс
+	 * @param resolved Найденные родители удалённых классов
+	 */
+	private void resolveSuperclass(String name, Map<String, String> resolved) {
+		List<String> path = new ArrayList<>();
+		String current = name;
+		String result;
+		while(true) {
+			result = resolved.get(current);
+			if(result != null) break;
+
+			String superName = deletedClasses.get(current);
+			if(superName == null) { // класс не удалён
+				result = current;
+				break;
+			}
+			path.add(current);
+			current = superName;
+		}
+		for(String deleted : path) {
+			resolved.put(deleted, result);
+		}
+	}
+
+	/**
+	 * Проверяет, был ли класс удалён сам или вместе с родительским классом
+	 * @param name Имя класса
+	 * @return true, если класс удалён
+	 */
+	public boolean isRemoved(String name) {
+		if(deletedClasses.containsKey(name) || deletedIfaces.contains(name)) return true;
+		if(!hasRemovedOuter(name)) return false;
+		logSubclassRemoved(name);
+		return true;
+	}
+
+	/**
+	 * Проверяет, был ли класс удалён сам или вместе с внешним классом, без учёта в метриках и журнале
+	 * @param name Имя класса
+	 * @return true, если класс удалён
+	 */
+	boolean wasRemoved(String name) {
+		return isDeleted(name) || hasRemovedOuter(name);
+	}
+
+	/**
+	 * @param name Имя класса
+	 * @return true, если класс или интерфейс помечен для удаления (без учёта вложенных классов)
+	 */
+	boolean isDeleted(String name) {
+		return deletedClasses.containsKey(name) || deletedIfaces.contains(name);
+	}
+
+	/**
+	 * Проверяет аннотацию класса и заносит его в таблицы удалённых классов
+	 * @param node Класс
+	 * @return true, если класс помечен для удаления
+	 */
+	private boolean checkClass(ClassNode node) {
+		if(checkRemovable(node.invisibleAnnotations, true, profile)) {
+			if(Modifier.isInterface(node.access)) {
+				deletedIfaces.add(node.name);
+				metrics.increment(Metrics.Counter.REMOVED_INTERFACES);
+			} else {
+				deletedClasses.put(node.name, node.superName);
+				metrics.increment(Metrics.Counter.REMOVED_CLASSES);
+			}
+			if(logRemovals) log(Modifier.isInterface(node.access) ? "Removed interface: {0}" : "Removed class: {0}", SimpleLogger.className(node.name));
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Проверяет, удалён ли один из внешних классов вложенного класса. Вызывается после {@link #endScan()}
+	 * @param name Имя класса
+	 * @return true, если класс удаляется вместе с внешним классом
+	 */
+	private boolean hasRemovedOuter(String name) {
+		return outerIndex.findOuter(name) >= 0;
+	}
+
+	/**
+	 * @param name Имя вложенного класса
+	 * @return Ближайший удалённый внешний класс или null
+	 */
+	String getRemovedOuter(String name) {
+		int length = outerIndex.findOuter(name);
+		return length >= 0 ? name.substring(0, length) : null;
 	}
 
-	public void processClasses(JarContents contents, boolean applyFixes) {
-		for(ClassNode node : contents.classes.values()) {
-			deletedFields.clear();
+	private void logSubclassRemoved(String name) {
+		metrics.increment(Metrics.Counter.REMOVED_SUBCLASSES);
+		if(logRemovals) log("Removed subclass: {0}", SimpleLogger.className(name));
+	}
+
+	/**
+	 * Применяет исправления к классам. Вызывается после {@link #removeClasses(JarContents, ForkJoinPool)},
+	 * так как таблицы удалённых классов и интерфейсов после этого только читаются.
+	 * Классы, которые не ссылаются на {@link Removable}, удалённые классы и классы флагов сборки, не разбираются и остаются без изменений.
+	 * @param contents Содержимое архива
+	 * @param applyFixes Применять ли исправления наследования
+	 * @param pool Пул потоков, в котором классы обрабатываются параллельно
+	 * @throws IOException Если обработка завершилась с ошибкой
+	 */
+	public void processClasses(JarContents contents, boolean applyFixes, ForkJoinPool pool) throws IOException {
+		processClasses(contents, applyFixes, pool, null);
+	}
+
+	/**
+	 * Применяет исправления к классам, используя кэш обработанных классов
+	 * @param contents Содержимое архива
+	 * @param applyFixes Применять ли исправления наследования
+	 * @param pool Пул потоков, в котором классы обрабатываются параллельно
+	 * @param cache Кэш обработанных классов или null
+	 * @throws IOException Если обработка завершилась с ошибкой
+	 */
+	@SuppressWarnings("try")
+	public void processClasses(JarContents contents, boolean applyFixes, ForkJoinPool pool, ClassCache cache) throws IOException {
+		try (Metrics.PhaseTimer timer = metrics.time(Metrics.Phase.PROCESS_CLASSES)) {
+			List<ClassEntry> entries = contents.getAllClasses();
+			byte[] fingerprint = cache != null ? getFingerprint(applyFixes) : null;
+			Utils.await(pool.submit(() -> entries.parallelStream().filter(clazz -> needsProcessing(clazz, applyFixes)).forEach(clazz -> {
+				if(cache == null) {
+					transformClass(clazz, applyFixes);
+					return;
+				}
+
+				String key = ClassCache.hash(fingerprint, clazz.getBytes());
+				byte[] entry = cache.get(key);
+				if(entry != null) {
+					try {
+						clazz.setResult(replayCached(entry));
+						return;
+					} catch (IOException | IllegalArgumentException ex) { // повреждённая запись обрабатывается заново
+						SimpleLogger.instance.log(Level.FINE, "Ignoring corrupted cache entry {0}: {1}", new Object[]{key, ex});
+					}
+				}
+
+				List<String> messages = new ArrayList<>();
+				Map<Metrics.Counter, Long> counters;
+				classLog.set(messages);
+				try (Metrics.Recording recording = metrics.record()) {
+					transformClass(clazz, applyFixes);
+					counters = recording.getValues();
+				} finally {
+					classLog.remove();
+				}
+				byte[] bytes;
+				try (Metrics.PhaseTimer serializeTimer = metrics.time(Metrics.Phase.SERIALIZE)) {
+					bytes = clazz.toByteArray();
+				}
+				try {
+					cache.put(key, writeCached(counters, messages, bytes));
+				} catch (IOException ex) {
+					throw new UncheckedIOException(ex);
+				}
+				clazz.setResult(bytes);
+			})));
+		}
+	}
+
+	/**
+	 * Записывает класс в формате кэша: изменения счётчиков и сообщения об удалениях, затем байт-код.
+	 * При попадании в кэш они учитываются повторно, как если бы класс был обработан заново.
+	 * @param counters Изменения счётчиков при обработке класса
+	 * @param messages Сообщения об удалениях без префикса профиля
+	 * @param bytes Байт-код обработанного класса
+	 * @return Запись кэша
+	 * @throws IOException Ошибка записи
+	 */
+	private static byte[] writeCached(Map<Metrics.Counter, Long> counters, List<String> messages, byte[] bytes) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length + 64);
+		DataOutputStream out = new DataOutputStream(buffer);
+		out.writeShort(counters.size());
+		for(Map.Entry<Metrics.Counter, Long> counter : counters.entrySet()) {
+			out.writeUTF(counter.getKey().name());
+			out.writeLong(counter.getValue());
+		}
+		out.writeInt(messages.size());
+		for(String message : messages) {
+			byte[] text = message.getBytes(StandardCharsets.UTF_8); // writeUTF ограничен 64 КБ
+			out.writeInt(text.length);
+			out.write(text);
+		}
+		out.write(bytes);
+		out.flush();
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * Читает класс из записи кэша, учитывая сохранённые счётчики и выводя сообщения об удалениях
+	 * @param entry Запись кэша
+	 * @return Байт-код обработанного класса
+	 * @throws IOException Запись повреждена
+	 */
+	private byte[] replayCached(byte[] entry) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry));
+		Map<Metrics.Counter, Long> counters = new EnumMap<>(Metrics.Counter.class);
+		for(int i = in.readUnsignedShort(); i > 0; i--) {
+			counters.put(Metrics.Counter.valueOf(in.readUTF()), in.readLong());
+		}
+		List<String> messages = new ArrayList<>();
+		for(int i = in.readInt(); i > 0; i--) {
+			byte[] text = new byte[in.readInt()];
+			in.readFully(text);
+			messages.add(new String(text, StandardCharsets.UTF_8));
+		}
+		byte[] bytes = new byte[in.available()];
+		in.readFully(bytes);
+
+		metrics.replay(counters);
+		for(String message : messages) {
+			SimpleLogger.instance.log(Level.INFO, logPrefix.concat("{0}"), message);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Применяет исправления к одному классу, если он может быть затронут удалением
+	 * @param clazz Класс
+	 * @param applyFixes Применять ли исправления наследования
+	 */
+	public void processClass(ClassEntry clazz, boolean applyFixes) {
+		if(needsProcessing(clazz, applyFixes)) transformClass(clazz, applyFixes);
+	}
+
+	/**
+	 * Отпечаток глобального состояния удаления. Вместе с байт-кодом класса однозначно определяет результат обработки.
+	 * @param applyFixes Применять ли исправления наследования
+	 * @return SHA-256 отпечатка
+	 */
+	public byte[] getFingerprint(boolean applyFixes) {
+		StringBuilder builder = new StringBuilder("v2;profile=").append(profile).append(";fixes=").append(applyFixes).append(";log=").append(logRemovals).append(";visitor=").append(visitorEngine).append(";frames=").append(frames != null);
+		if(flags != null) builder.append(";flags=").append(flags.describe());
+		if(stripper != null) builder.append(";strip=").append(stripper.describe());
+		if(frames != null) { // пересчитанные фреймы зависят от родителей всех сливаемых типов: классов архива, библиотек и JDK
+			builder.append(";frameHierarchy=").append(hierarchy != null ? hierarchy.getDigest() : null).append(";java=").append(System.getProperty("java.version"));
+		}
+		new TreeMap<>(deletedClasses).forEach((name, superName) -> builder.append(";class=").append(name).append(':').append(superName));
+		new TreeSet<>(deletedIfaces).forEach(name -> builder.append(";iface=").append(name));
+		if(inheritInterfaces && hierarchy != null) { // интерфейсы удалённых классов переходят к наследникам
+			builder.append(";hierarchy");
+			new TreeSet<>(deletedClasses.keySet()).forEach(name -> builder.append(";").append(name).append(hierarchy.getInterfaces(name)));
+			new TreeSet<>(deletedIfaces).forEach(name -> builder.append(";").append(name).append(hierarchy.getInterfaces(name)));
+		}
+		return ClassCache.hash(builder.toString().getBytes(StandardCharsets.UTF_8)).getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private boolean needsProcessing(ClassEntry clazz, boolean applyFixes) {
+		return stripper != null || clazz.isParsed() || REMOVABLE_FILTER.matches(clazz.getBytes()) || (applyFixes && deletedFilter.matches(clazz.getBytes())) || (flags != null && flags.matches(clazz.getBytes()));
+	}
+
+	@SuppressWarnings("try")
+	private ClassNode parse(ClassEntry clazz) {
+		if(clazz.isParsed()) return clazz.getNode();
+		try (Metrics.PhaseTimer timer = metrics.time(Metrics.Phase.PARSE)) {
+			return clazz.getNode();
+		}
+	}
+
+	/**
+	 * Читает заголовок класса: аннотации класса, полей и методов без кода методов
+	 * @param clazz Класс
+	 * @return Дерево класса без кода
+	 */
+	@SuppressWarnings("try")
+	ClassNode readHeader(ClassEntry clazz) {
+		try (Metrics.PhaseTimer timer = metrics.time(Metrics.Phase.PARSE)) {
+			ClassNode node = new ClassNode();
+			new ClassReader(clazz.getBytes()).accept(node, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+			return node;
+		}
+	}
+
+	@SuppressWarnings({"try", "unchecked"})
+	private void transformClass(ClassEntry clazz, boolean applyFixes) {
+		if(visitorEngine && !clazz.isParsed()) {
+			try (Metrics.PhaseTimer timer = metrics.time(Metrics.Phase.TRANSFORM, clazz.name)) {
+				clazz.setResult(new VisitorEngine(this, applyFixes).transform(clazz));
+			}
+			metrics.increment(Metrics.Counter.TRANSFORMED_CLASSES);
+			return;
+		}
+
+		ClassNode node = parse(clazz);
+		MemberSet changedMethods = new MemberSet(); // методы, код которых изменён
+		try (Metrics.PhaseTimer timer = metrics.time(Metrics.Phase.TRANSFORM, clazz.name)) {
+			MemberSet deletedFields = new MemberSet(); // удалённые поля
+			checkRemovable(node.invisibleAnnotations, true, profile); // аннотация класса с remove = false
 			if(applyFixes) {
+				List<String> inherited = getInheritedInterfaces(node.superName, node.interfaces);
 				checkInterfaces(node);
-				checkSuperclass(node);
+				checkSuperclass(node, changedMethods);
+				for(String iFace : inherited) {
+					node.interfaces.add(iFace);
+					logInheritedInterface(node.name, iFace);
+				}
+			}
+			checkFields(node, deletedFields);
+			checkMethods(node, deletedFields, changedMethods);
+			if(flags != null) checkFlags(node, changedMethods);
+			if(stripper != null) stripper.strip(node);
+		}
+		if(frames != null && !changedMethods.isEmpty()) {
+			try (Metrics.PhaseTimer timer = metrics.time(Metrics.Phase.SERIALIZE)) {
+				clazz.setResult(FrameWriter.recompute(clazz.toByteArray(), changedMethods, frames));
 			}
-			checkFields(node);
-			checkMethods(node);
 		}
+		metrics.increment(Metrics.Counter.TRANSFORMED_CLASSES);
+	}
+
+	/**
+	 * Ищет интерфейсы, которые класс потерял бы вместе с удалёнными интерфейсами и родительскими классами:
+	 * интерфейсы, унаследованные удалёнными интерфейсами, и интерфейсы удалённых родительских классов.
+	 * Без --classpath такие интерфейсы не восстанавливаются, в том числе если иерархия построена только для --frames.
+	 * @param superName Исходный родительский класс
+	 * @param interfaces Исходные интерфейсы класса
+	 * @return Интерфейсы, которые необходимо добавить классу
+	 */
+	List<String> getInheritedInterfaces(String superName, List<String> interfaces) {
+		if(!inheritInterfaces || hierarchy == null) return Collections.emptyList();
+
+		Set<String> inherited = new LinkedHashSet<>();
+		for(String iFace : interfaces) {
+			if(deletedIfaces.contains(iFace)) collectInterfaces(iFace, inherited);
+		}
+		for(String superclass = superName; superclass != null && deletedClasses.containsKey(superclass); superclass = deletedClasses.get(superclass)) {
+			collectInterfaces(superclass, inherited);
+		}
+		if(inherited.isEmpty()) return Collections.emptyList();
+
+		inherited.removeAll(interfaces);
+		return new ArrayList<>(inherited);
+	}
+
+	/**
+	 * Добавляет неудалённые интерфейсы класса, заменяя удалённые их собственными интерфейсами
+	 */
+	private void collectInterfaces(String className, Set<String> result) {
+		for(String iFace : hierarchy.getInterfaces(className)) {
+			if(deletedIfaces.contains(iFace)) {
+				collectInterfaces(iFace, result);
+			} else {
+				result.add(iFace);
+			}
+		}
+	}
+
+	void logInheritedInterface(String className, String iFace) {
+		metrics.increment(Metrics.Counter.INHERITED_INTERFACES);
+		if(logRemovals) log("Added inherited interface {0} to {1}", SimpleLogger.className(iFace), SimpleLogger.className(className));
 	}
 
 	/**
@@ -103,7 +579,8 @@ public final class AnnotationProccessor {
 			String iFace = it.next();
 			if(deletedIfaces.contains(iFace)) {
 				it.remove();
-				SimpleLogger.instance.info(String.format("Removed interface usage %s in %s", iFace, clazz.name));
+				metrics.increment(Metrics.Counter.REMOVED_INTERFACE_USAGES);
+				if(logRemovals) log("Removed interface usage {0} in {1}", iFace, clazz.name);
 			}
 		}
 	}
@@ -111,64 +588,80 @@ public final class AnnotationProccessor {
 	/**
 	 * Проверяет, были ли удалены родительские классы и перенаправлят так, чтобы восстановить цепочку наследования
 	 * @param clazz Класс
+	 * @param changedMethods Сюда добавляются методы с изменёнными инструкциями
 	 */
-	private void checkSuperclass(ClassNode clazz) {
+	private void checkSuperclass(ClassNode clazz, MemberSet changedMethods) {
 		String oldSuper = clazz.superName;
 		String superName = getSuperclass(oldSuper);
 		if(!oldSuper.equals(superName)) {
 			clazz.superName = superName;
+			int rewritten = 0;
 
 			// Исправляем случаи использования в методах
 			for(MethodNode method : (List<MethodNode>)clazz.methods) {
+				int before = rewritten;
 				ListIterator<AbstractInsnNode> itr = method.instructions.iterator();
 				while(itr.hasNext()) {
 					AbstractInsnNode insn = itr.next();
 					switch(insn.getType()) {
 						case AbstractInsnNode.FIELD_INSN:
 							FieldInsnNode faccess = (FieldInsnNode)insn;
-							if(faccess.owner.equals(oldSuper)) faccess.owner = superName;
+							if(faccess.owner.equals(oldSuper)) {
+								faccess.owner = superName;
+								rewritten++;
+							}
 							break;
 						case AbstractInsnNode.METHOD_INSN:
 							MethodInsnNode maccess = (MethodInsnNode)insn;
-							if(maccess.owner.equals(oldSuper)) maccess.owner = superName;
+							if(maccess.owner.equals(oldSuper)) {
+								maccess.owner = superName;
+								rewritten++;
+							}
 							break;
 						case AbstractInsnNode.TYPE_INSN:
 							TypeInsnNode type = (TypeInsnNode)insn;
-							if(type.desc.equals(oldSuper)) type.desc = superName;
+							if(type.desc.equals(oldSuper)) {
+								type.desc = superName;
+								rewritten++;
+							}
 							break;
 					}
 				}
+				if(rewritten != before) changedMethods.add(method.name, method.desc);
 			}
+			metrics.increment(Metrics.Counter.CHANGED_SUPERCLASSES);
+			metrics.add(Metrics.Counter.REWRITTEN_INSTRUCTIONS, rewritten);
 
-			SimpleLogger.instance.info(String.format("Changed superclass for %s: %s -> %s", Utils.normalizeName(clazz.name), Utils.normalizeName(oldSuper), Utils.normalizeName(superName)));
+			if(logRemovals) log("Changed superclass for {0}: {1} -> {2}", SimpleLogger.className(clazz.name), SimpleLogger.className(oldSuper), SimpleLogger.className(superName));
 		}
 	}
 
 	/**
-	 * Ищет родительский класс
+	 * Ищет родительский класс. Таблица родителей удалённых классов строится в {@link #endScan()}
 	 * @param className Старый родительский класс
 	 * @return Новый родительский класс
 	 */
-	private String getSuperclass(String className) {
-		if(className == null || className.equals("java/lang/Object")) return className;
+	String getSuperclass(String className) {
+		if(className == null) return null;
 
-		String deletedSuper = deletedClasses.get(className);
-		if(deletedSuper != null) return getSuperclass(deletedSuper);
-		return className;
+		String resolved = resolvedSupers.get(className);
+		return resolved != null ? resolved : className;
 	}
 
 	/**
 	 * Проверяет поля
 	 * @param clazz Класс
+	 * @param deletedFields Сюда добавляются удалённые поля
 	 */
-	private void checkFields(ClassNode clazz) {
+	private void checkFields(ClassNode clazz, MemberSet deletedFields) {
 		Iterator<FieldNode> it = clazz.fields.iterator();
 		while(it.hasNext()) {
 			FieldNode field = it.next();
-			if(checkRemovable(field.invisibleAnnotations, true)) {
-				deletedFields.add(field.name + DATA_SEPARATOR + field.desc);
+			if(checkRemovable(field.invisibleAnnotations, true, profile)) {
+				deletedFields.add(field.name, field.desc);
 				it.remove();
-				SimpleLogger.instance.info("Removed field: " + Utils.normalizeName(clazz.name) + "." + field.name);
+				metrics.increment(Metrics.Counter.REMOVED_FIELDS);
+				if(logRemovals) log("Removed field: {0}.{1}", SimpleLogger.className(clazz.name), field.name);
 			}
 		}
 	}
@@ -176,42 +669,61 @@ public final class AnnotationProccessor {
 	/**
 	 * Проверяет методы
 	 * @param clazz Класс
+	 * @param deletedFields Удалённые поля класса
+	 * @param changedMethods Сюда добавляются конструкторы с изменёнными инструкциями
 	 */
-	private void checkMethods(ClassNode clazz) {
+	private void checkMethods(ClassNode clazz, MemberSet deletedFields, MemberSet changedMethods) {
 		Iterator<MethodNode> it = clazz.methods.iterator();
 		while(it.hasNext()) {
 			MethodNode method = it.next();
 
 			// Убираем случаи использования удалённых полей в конструкторах (присвоение)
 			if(method.name.equals(OBJECT_CONSTRUCTOR) || method.name.equals(STATIC_CONSTRUCTOR)) {
-				this.checkConstructor(clazz, method);
-			} else if(checkRemovable(method.invisibleAnnotations, true)) {
+				if(this.checkConstructor(clazz.name, method, deletedFields)) changedMethods.add(method.name, method.desc);
+			} else if(checkRemovable(method.invisibleAnnotations, true, profile)) {
 				it.remove();
-				SimpleLogger.instance.info("Removed method: " + Utils.normalizeName(clazz.name) + "." + method.name + method.desc);
+				metrics.increment(Metrics.Counter.REMOVED_METHODS);
+				if(logRemovals) log("Removed method: {0}.{1}{2}", SimpleLogger.className(clazz.name), method.name, method.desc);
 			}
 		}
 	}
 
 	/**
-	 * Удаляет случаи использования удалённых полей в конструкторе
+	 * Подставляет значения флагов сборки и удаляет код, ставший недостижимым
 	 * @param clazz Класс
+	 * @param changedMethods Сюда добавляются методы с изменёнными инструкциями
+	 */
+	@SuppressWarnings("unchecked")
+	private void checkFlags(ClassNode clazz, MemberSet changedMethods) {
+		for(MethodNode method : (List<MethodNode>)clazz.methods) {
+			if(flags.fold(clazz.name, method)) changedMethods.add(method.name, method.desc);
+		}
+	}
+
+	/**
+	 * Удаляет случаи использования удалённых полей в конструкторе
+	 * @param className Имя класса
 	 * @param method Метод
+	 * @param deletedFields Удалённые поля класса
+	 * @return true, если код конструктора изменён
 	 */
-	private void checkConstructor(ClassNode clazz, MethodNode method) {
+	boolean checkConstructor(String className, MethodNode method, MemberSet deletedFields) {
 		ListIterator<AbstractInsnNode> itr = method.instructions.iterator();
 		final boolean isStatic = method.name.equals(STATIC_CONSTRUCTOR);
+		boolean changed = false;
 
 		while(itr.hasNext()) {
 			AbstractInsnNode insn = itr.next();
 			if(insn.getOpcode() == Opcodes.PUTFIELD || insn.getOpcode() == Opcodes.PUTSTATIC) {
 				FieldInsnNode faccess = (FieldInsnNode)insn;
-				if(deletedFields.contains(faccess.name + DATA_SEPARATOR + faccess.desc)) {
+				if(deletedFields.contains(faccess.name, faccess.desc)) {
 
 					boolean canRemovePrevious = false;
 					boolean removeAloadThis = false;
 					AbstractInsnNode valueLoadInsn = insn.getPrevious();
 					if(valueLoadInsn != null) {
-						canRemovePrevious = PRIMITIVE_OPCODES.contains(valueLoadInsn.getOpcode());
+						int opcode = valueLoadInsn.getOpcode();
+						canRemovePrevious = opcode >= 0 && PRIMITIVE_OPCODES[opcode]; // -1 у меток и фреймов
 						if(!isStatic && canRemovePrevious) { // Поиск инструкции this для удаления
 							AbstractInsnNode aload = valueLoadInsn.getPrevious();
 							removeAloadThis = (aload != null && aload.getOpcode() == Opcodes.ALOAD && ((VarInsnNode)aload).var == 0);
@@ -227,14 +739,29 @@ public final class AnnotationProccessor {
 							itr.previous();
 							itr.remove(); // this
 						}
+						metrics.add(Metrics.Counter.REWRITTEN_INSTRUCTIONS, removeAloadThis ? 3 : 2);
 					} else {
 						itr.set(new InsnNode(Opcodes.POP)); // для переменной
 						if(!isStatic) itr.add(new InsnNode(Opcodes.POP)); // для this
+						metrics.add(Metrics.Counter.REWRITTEN_INSTRUCTIONS, isStatic ? 1 : 2);
 					}
-					SimpleLogger.instance.info("Removed field '" + faccess.name + "' usage in: " + Utils.normalizeName(clazz.name) + "." + method.name + method.desc);
+					changed = true;
+					if(logRemovals) log("Removed field ''{0}'' usage in: {1}.{2}{3}", faccess.name, SimpleLogger.className(className), method.name, method.desc);
 				}
 			}
 		}
+		return changed;
+	}
+
+	/**
+	 * Выводит сообщение об удалении. Сообщение форматируется в потоке вывода логов, вызов должен проверять {@link #logRemovals}
+	 * @param pattern Шаблон сообщения в формате {@link java.text.MessageFormat}
+	 * @param params Параметры сообщения
+	 */
+	void log(String pattern, Object... params) {
+		SimpleLogger.instance.log(Level.INFO, logPrefix.concat(pattern), params);
+		List<String> messages = classLog.get();
+		if(messages != null) messages.add(MessageFormat.format(pattern, params));
 	}
 
 	/**
@@ -244,6 +771,17 @@ public final class AnnotationProccessor {
 	 * @return true - если элемент помечен для удаления
 	 */
 	public static boolean checkRemovable(List<AnnotationNode> annotations, boolean removeAnnotation) {
+		return checkRemovable(annotations, removeAnnotation, null);
+	}
+
+	/**
+	 * Проверяет наличие аннотации с учётом профиля сборки
+	 * @param annotations Список аннотаций
+	 * @param removeAnnotation Можно ли удалить аннотацию?
+	 * @param profile Профиль сборки или null. Аннотация со списком профилей действует только в указанных профилях
+	 * @return true - если элемент помечен для удаления
+	 */
+	public static boolean checkRemovable(List<AnnotationNode> annotations, boolean removeAnnotation, String profile) {
 		if(annotations != null && !annotations.isEmpty()) {
 			Iterator<AnnotationNode> it = annotations.iterator();
 			while(it.hasNext()) {
@@ -251,16 +789,24 @@ public final class AnnotationProccessor {
 				if(node.desc.equals(REMOVABLE_DESC) && !node.values.isEmpty()) {
 					if(node.values.size() % 2 != 0) throw new InternalError("Bad AnnotationNode values count: " + node.values.size()); // Число должно быть чётным
 
+					Boolean remove = null;
+					List<?> profiles = null;
 					for(int i = 0; i < node.values.size(); i += 2) {
 						String key = (String)node.values.get(i);
 						Object value = node.values.get(i + 1);
 
 						if(key.equals("remove")) {
-							boolean remove = (boolean)value;
-							if(!remove && removeAnnotation) it.remove(); // удаляем аннотацию
-							return remove;
+							remove = (Boolean)value;
+						} else if(key.equals("profiles")) {
+							profiles = (List<?>)value;
 						}
 					}
+
+					if(remove != null) {
+						boolean applies = profiles == null || profiles.isEmpty() || (profile != null && profiles.contains(profile));
+						if(!(remove && applies) && removeAnnotation) it.remove(); // удаляем аннотацию
+						return remove && applies;
+					}
 				}
 			}
 		}
@@ -0,0 +1,490 @@
+package ru.redserver.coderemover;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.objectweb.asm.Opcodes;
+import ru.redserver.coderemover.io.ClassCache;
+
+/**
+ * Неизменяемый индекс иерархии классов: родительские классы, интерфейсы, внешние классы вложенных классов
+ * и прямые наследники. Строится по классам входного архива и библиотекам из --classpath, для которых
+ * читаются только заголовки. Индекс библиотек сохраняется на диск и загружается при следующих запусках.
+ * <p>
+ * Классы хранятся по номерам в массивах, связи - номерами, поэтому индекс компактен и запросы не создают объектов.
+ * Имена, на которые ссылаются классы индекса, но которых в нём нет (например, классы JDK), тоже получают номер
+ * и считаются неизвестными.
+ * @author Nuclear
+ */
+public final class ClassHierarchy {
+
+	private static final int MAGIC = 0x43524831; // CRH1
+
+	/**
+	 * Класс отсутствует в индексе
+	 */
+	public static final byte UNKNOWN = 0;
+
+	/**
+	 * Класс входного архива
+	 */
+	public static final byte INPUT = 1;
+
+	/**
+	 * Класс библиотеки
+	 */
+	public static final byte LIBRARY = 2;
+
+	private final String[] names;
+	private final byte[] kinds;
+	private final int[] access;
+	private final int[] superclasses; // -1, если нет
+	private final int[] interfaceStart; // интерфейсы класса i: interfaces[interfaceStart[i]..interfaceStart[i + 1])
+	private final int[] interfaces;
+	private final int[] outerClasses; // -1 для классов верхнего уровня и внешних классов вне индекса
+	private final int[] subtypeStart;
+	private final int[] subtypes;
+	private final int[] table; // открытая адресация: номер класса + 1
+	private final int knownCount;
+	private volatile String digest; // хэш индекса, см. getDigest()
+
+	private ClassHierarchy(Builder builder) {
+		int count = builder.count;
+		this.names = Arrays.copyOf(builder.names, count);
+		this.kinds = Arrays.copyOf(builder.kinds, count);
+		this.access = Arrays.copyOf(builder.access, count);
+		this.superclasses = Arrays.copyOf(builder.superclasses, count);
+		this.table = builder.table;
+
+		// Интерфейсы
+		this.interfaceStart = new int[count + 1];
+		int total = 0;
+		for(int i = 0; i < count; i++) {
+			interfaceStart[i] = total;
+			int[] ifaces = builder.interfaces.get(i);
+			total += ifaces != null ? ifaces.length : 0;
+		}
+		interfaceStart[count] = total;
+		this.interfaces = new int[total];
+		for(int i = 0; i < count; i++) {
+			int[] ifaces = builder.interfaces.get(i);
+			if(ifaces != null) System.arraycopy(ifaces, 0, interfaces, interfaceStart[i], ifaces.length);
+		}
+
+		// Внешние классы и прямые наследники
+		this.outerClasses = new int[count];
+		int[] subtypeCount = new int[count];
+		int known = 0;
+		for(int i = 0; i < count; i++) {
+			String parent = Utils.getParentClassName(names[i]);
+			outerClasses[i] = parent != null ? indexOf(parent) : -1;
+			if(kinds[i] == UNKNOWN) continue;
+
+			known++;
+			if(superclasses[i] >= 0) subtypeCount[superclasses[i]]++;
+			for(int j = interfaceStart[i]; j < interfaceStart[i + 1]; j++) {
+				subtypeCount[interfaces[j]]++;
+			}
+		}
+		this.knownCount = known;
+
+		this.subtypeStart = new int[count + 1];
+		for(int i = 0; i < count; i++) {
+			subtypeStart[i + 1] = subtypeStart[i] + subtypeCount[i];
+		}
+		this.subtypes = new int[subtypeStart[count]];
+		int[] fill = Arrays.copyOf(subtypeStart, count);
+		for(int i = 0; i < count; i++) {
+			if(kinds[i] == UNKNOWN) continue;
+			if(superclasses[i] >= 0) subtypes[fill[superclasses[i]]++] = i;
+			for(int j = interfaceStart[i]; j < interfaceStart[i + 1]; j++) {
+				subtypes[fill[interfaces[j]]++] = i;
+			}
+		}
+	}
+
+	/**
+	 * @return Число классов в индексе, не считая неизвестных
+	 */
+	public int size() {
+		return knownCount;
+	}
+
+	/**
+	 * @param name Внутреннее имя класса
+	 * @return {@link #INPUT}, {@link #LIBRARY} или {@link #UNKNOWN}
+	 */
+	public byte getKind(String name) {
+		int id = indexOf(name);
+		return id >= 0 ? kinds[id] : UNKNOWN;
+	}
+
+	/**
+	 * @param name Внутреннее имя класса
+	 * @return true, если класс известен и является интерфейсом
+	 */
+	public boolean isInterface(String name) {
+		int id = indexOf(name);
+		return id >= 0 && kinds[id] != UNKNOWN && (access[id] & Opcodes.ACC_INTERFACE) != 0;
+	}
+
+	/**
+	 * @param name Внутреннее имя класса
+	 * @return Родительский класс или null, если класс неизвестен или это java/lang/Object
+	 */
+	public String getSuperclass(String name) {
+		int id = indexOf(name);
+		return id >= 0 && superclasses[id] >= 0 ? names[superclasses[id]] : null;
+	}
+
+	/**
+	 * @param name Внутреннее имя класса
+	 * @return Интерфейсы, непосредственно реализуемые классом
+	 */
+	public List<String> getInterfaces(String name) {
+		int id = indexOf(name);
+		return id >= 0 ? toNames(interfaces, interfaceStart[id], interfaceStart[id + 1]) : Collections.emptyList();
+	}
+
+	/**
+	 * @param name Внутреннее имя вложенного класса
+	 * @return Внешний класс, если он есть в индексе, иначе null
+	 */
+	public String getOuterClass(String name) {
+		int id = indexOf(name);
+		return id >= 0 && outerClasses[id] >= 0 ? names[outerClasses[id]] : null;
+	}
+
+	/**
+	 * @param name Внутреннее имя класса
+	 * @return Прямые наследники класса и классы, непосредственно реализующие интерфейс
+	 */
+	public List<String> getSubtypes(String name) {
+		int id = indexOf(name);
+		return id >= 0 ? toNames(subtypes, subtypeStart[id], subtypeStart[id + 1]) : Collections.emptyList();
+	}
+
+	/**
+	 * Проверяет, является ли тип потомком другого типа (или им самим). Учитываются только известные классы
+	 * @param type Проверяемый тип
+	 * @param supertype Родительский тип
+	 * @return true, если type наследует или реализует supertype
+	 */
+	public boolean isSubtypeOf(String type, String supertype) {
+		int target = indexOf(supertype);
+		int id = indexOf(type);
+		if(target < 0 || id < 0) return type.equals(supertype);
+		return isSubtypeOf(id, target);
+	}
+
+	private boolean isSubtypeOf(int id, int target) {
+		if(id == target) return true;
+		if(superclasses[id] >= 0 && isSubtypeOf(superclasses[id], target)) return true;
+		for(int j = interfaceStart[id]; j < interfaceStart[id + 1]; j++) {
+			if(isSubtypeOf(interfaces[j], target)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Сохраняет известные классы индекса
+	 * @param path Файл
+	 * @throws IOException Ошибка записи
+	 */
+	public void save(Path path) throws IOException {
+		Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+			write(out);
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Хэш известных классов индекса: модификаторов, родителей и интерфейсов. Вычисляется один раз
+	 * @return SHA-256 в шестнадцатеричном виде
+	 */
+	public String getDigest() {
+		String result = digest;
+		if(result == null) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (DataOutputStream out = new DataOutputStream(bytes)) {
+				write(out);
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+			digest = result = ClassCache.hash(bytes.toByteArray());
+		}
+		return result;
+	}
+
+	private void write(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(knownCount);
+		for(int i = 0; i < names.length; i++) {
+			if(kinds[i] == UNKNOWN) continue;
+			out.writeUTF(names[i]);
+			out.writeByte(kinds[i]);
+			out.writeInt(access[i]);
+			out.writeUTF(superclasses[i] >= 0 ? names[superclasses[i]] : "");
+			out.writeShort(interfaceStart[i + 1] - interfaceStart[i]);
+			for(int j = interfaceStart[i]; j < interfaceStart[i + 1]; j++) {
+				out.writeUTF(names[interfaces[j]]);
+			}
+		}
+	}
+
+	/**
+	 * Загружает индекс, сохранённый {@link #save(Path)}
+	 * @param path Файл
+	 * @return Индекс
+	 * @throws IOException Ошибка чтения или неверный формат файла
+	 */
+	public static ClassHierarchy load(Path path) throws IOException {
+		Builder builder = new Builder();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if(in.readInt() != MAGIC) throw new IOException("Bad hierarchy file: " + path);
+			int count = in.readInt();
+			for(int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				byte kind = in.readByte();
+				int flags = in.readInt();
+				String superName = in.readUTF();
+				String[] ifaces = new String[in.readUnsignedShort()];
+				for(int j = 0; j < ifaces.length; j++) {
+					ifaces[j] = in.readUTF();
+				}
+				builder.add(name, flags, superName.isEmpty() ? null : superName, ifaces, kind);
+			}
+		}
+		return builder.build();
+	}
+
+	private List<String> toNames(int[] ids, int from, int to) {
+		if(from == to) return Collections.emptyList();
+		List<String> result = new ArrayList<>(to - from);
+		for(int i = from; i < to; i++) {
+			result.add(names[ids[i]]);
+		}
+		return result;
+	}
+
+	private int indexOf(String name) {
+		return find(table, names, name);
+	}
+
+	private static int find(int[] table, String[] names, String name) {
+		int mask = table.length - 1;
+		int i = mix(name.hashCode()) & mask;
+		int id;
+		while((id = table[i] - 1) >= 0) {
+			if(names[id].equals(name)) return id;
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	private static int mix(int h) {
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Построитель индекса. Не потокобезопасен, заголовки классов можно читать параллельно через {@link Header}
+	 */
+	public static final class Builder {
+
+		private String[] names = new String[64];
+		private int count = 0;
+		private byte[] kinds = new byte[64];
+		private int[] access = new int[64];
+		private int[] superclasses = new int[64];
+		private final List<int[]> interfaces = new ArrayList<>();
+		private int[] table = new int[128];
+
+		/**
+		 * Добавляет класс. Если класс уже добавлен, первое добавление имеет приоритет (как в classpath)
+		 * @param header Заголовок класса
+		 * @param kind {@link #INPUT} или {@link #LIBRARY}
+		 */
+		public void add(Header header, byte kind) {
+			add(header.name, header.access, header.superName, header.interfaces, kind);
+		}
+
+		/**
+		 * Добавляет все известные классы другого индекса, например сохранённого индекса библиотек
+		 * @param hierarchy Индекс
+		 */
+		public void addAll(ClassHierarchy hierarchy) {
+			for(int i = 0; i < hierarchy.names.length; i++) {
+				if(hierarchy.kinds[i] == UNKNOWN) continue;
+				String[] ifaces = new String[hierarchy.interfaceStart[i + 1] - hierarchy.interfaceStart[i]];
+				for(int j = 0; j < ifaces.length; j++) {
+					ifaces[j] = hierarchy.names[hierarchy.interfaces[hierarchy.interfaceStart[i] + j]];
+				}
+				add(hierarchy.names[i], hierarchy.access[i], hierarchy.getSuperclass(hierarchy.names[i]), ifaces, hierarchy.kinds[i]);
+			}
+		}
+
+		private void add(String name, int flags, String superName, String[] ifaces, byte kind) {
+			int id = getId(name);
+			if(kinds[id] != UNKNOWN) return;
+
+			kinds[id] = kind;
+			access[id] = flags;
+			superclasses[id] = superName != null ? getId(superName) : -1;
+			if(ifaces.length > 0) {
+				int[] ids = new int[ifaces.length];
+				for(int i = 0; i < ifaces.length; i++) {
+					ids[i] = getId(ifaces[i]);
+				}
+				interfaces.set(id, ids);
+			}
+		}
+
+		private int getId(String name) {
+			int id = find(table, names, name);
+			if(id >= 0) return id;
+
+			id = count++;
+			if(id == names.length) {
+				names = Arrays.copyOf(names, id * 2);
+				kinds = Arrays.copyOf(kinds, id * 2);
+				access = Arrays.copyOf(access, id * 2);
+				superclasses = Arrays.copyOf(superclasses, id * 2);
+			}
+			names[id] = name;
+			interfaces.add(null);
+			superclasses[id] = -1;
+			if(count * 2 > table.length) {
+				rehash();
+			} else {
+				insert(table, name, id);
+			}
+			return id;
+		}
+
+		private void rehash() {
+			table = new int[table.length * 2];
+			for(int i = 0; i < count; i++) {
+				insert(table, names[i], i);
+			}
+		}
+
+		private static void insert(int[] table, String name, int id) {
+			int mask = table.length - 1;
+			int i = mix(name.hashCode()) & mask;
+			while(table[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			table[i] = id + 1;
+		}
+
+		public ClassHierarchy build() {
+			return new ClassHierarchy(this);
+		}
+
+	}
+
+	/**
+	 * Заголовок класса: имя, модификаторы, родитель и интерфейсы. Читается без разбора полей, методов и кода.
+	 * Пул констант разбирается здесь, а не ClassReader: версия класса не проверяется, поэтому читаются и классы
+	 * новее Java 8 (классы JDK 9+ и библиотек, собранных для новых версий)
+	 */
+	public static final class Header {
+
+		final String name;
+		final int access;
+		final String superName;
+		final String[] interfaces;
+
+		/**
+		 * @param classBytes Байт-код класса
+		 * @throws IllegalArgumentException Если байт-код повреждён
+		 */
+		public Header(byte[] classBytes) {
+			try {
+				if(readInt(classBytes, 0) != 0xCAFEBABE) throw new IllegalArgumentException("Bad class file magic");
+				int count = readUnsignedShort(classBytes, 8);
+				int[] offsets = new int[count]; // начало каждой константы после тега
+				int offset = 10;
+				for(int i = 1; i < count; i++) {
+					offsets[i] = offset + 1;
+					int tag = classBytes[offset] & 0xFF;
+					switch(tag) {
+						case 1: // Utf8
+							offset += 3 + readUnsignedShort(classBytes, offset + 1);
+							break;
+						case 5: // Long
+						case 6: // Double
+							offset += 9;
+							i++;
+							break;
+						case 3: // Integer
+						case 4: // Float
+						case 9: // Fieldref
+						case 10: // Methodref
+						case 11: // InterfaceMethodref
+						case 12: // NameAndType
+						case 17: // Dynamic
+						case 18: // InvokeDynamic
+							offset += 5;
+							break;
+						case 15: // MethodHandle
+							offset += 4;
+							break;
+						case 7: // Class
+						case 8: // String
+						case 16: // MethodType
+						case 19: // Module
+						case 20: // Package
+							offset += 3;
+							break;
+						default:
+							throw new IllegalArgumentException("Bad constant pool tag: " + tag);
+					}
+				}
+
+				this.access = readUnsignedShort(classBytes, offset);
+				this.name = readClass(classBytes, offsets, readUnsignedShort(classBytes, offset + 2));
+				this.superName = readClass(classBytes, offsets, readUnsignedShort(classBytes, offset + 4));
+				this.interfaces = new String[readUnsignedShort(classBytes, offset + 6)];
+				for(int i = 0; i < interfaces.length; i++) {
+					interfaces[i] = readClass(classBytes, offsets, readUnsignedShort(classBytes, offset + 8 + i * 2));
+				}
+			} catch (ArrayIndexOutOfBoundsException ex) {
+				throw new IllegalArgumentException("Truncated class file", ex);
+			}
+		}
+
+		private static String readClass(byte[] bytes, int[] offsets, int index) {
+			if(index == 0) return null; // java/lang/Object и module-info
+			int utf = offsets[readUnsignedShort(bytes, offsets[index])];
+			try {
+				return new DataInputStream(new ByteArrayInputStream(bytes, utf, readUnsignedShort(bytes, utf) + 2)).readUTF();
+			} catch (IOException ex) {
+				throw new IllegalArgumentException("Bad class name", ex);
+			}
+		}
+
+		private static int readUnsignedShort(byte[] bytes, int offset) {
+			return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+		}
+
+		private static int readInt(byte[] bytes, int offset) {
+			return (readUnsignedShort(bytes, offset) << 16) | readUnsignedShort(bytes, offset + 2);
+		}
+
+	}
+
+}
@@ -1,13 +1,30 @@
 package ru.redserver.coderemover;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+import ru.redserver.coderemover.io.ClassEntry;
+import ru.redserver.coderemover.io.ClassCache;
 import ru.redserver.coderemover.io.JarContents;
 import java.util.logging.Level;
 import ru.redserver.coderemover.io.JarManager;
+import ru.redserver.coderemover.io.Layout;
+import ru.redserver.coderemover.io.Resource;
 
 /**
  * Удаляет методы, поля, классы, помеченные аннотацией Removable
@@ -18,39 +35,501 @@ public final class CodeRemover {
 	public static boolean DEBUG_MODE = Boolean.parseBoolean(System.getProperty("coderemover.debug", "false")); // Включает более подробные логи
 
 	public void run(String args[]) {
-		Timer timer = new Timer();
-		int readTime = 0, applyTime = 0, writeTime = 0;
-		List<String> argsList = Arrays.asList(args);
+		ForkJoinPool pool = null;
 
 		// Запуск программы
 		try {
-			// Проверяем входные данные
-			if(argsList.size() < 2) throw new IllegalArgumentException("Too small arguments: <input file> <output file>");
-			Path inputFile = Paths.get(argsList.get(0));
-			Path outputFile = Paths.get(argsList.get(1));
-			boolean removeOnly = argsList.contains("--remove-only"); // Режим удаления классов без применения исправлений
-			if(!Files.isRegularFile(inputFile)) throw new IllegalArgumentException("File doesn't exists: " + inputFile);
-
-			// Загружаем Jar файл
-			JarContents contents = JarManager.loadClassesFromJar(inputFile);
+			List<String> argsList = Arrays.asList(args);
+			String mode = argsList.isEmpty() ? "" : argsList.get(0);
+			switch(mode) {
+				case "--batch": // Пакетный режим: задания из файла в одной JVM
+					if(argsList.size() < 2) throw new IllegalArgumentException("Too small arguments: --batch <jobs file> [--threads <count>]");
+					pool = new ForkJoinPool(getThreads(argsList.subList(2, argsList.size())));
+					if(!runBatch(Paths.get(argsList.get(1)), pool)) System.exit(1);
+					break;
+				case "--daemon": // Фоновый процесс, принимающий задания через локальный сокет
+					if(argsList.size() < 2) throw new IllegalArgumentException("Too small arguments: --daemon <port> [--threads <count>]");
+					pool = new ForkJoinPool(getThreads(argsList.subList(2, argsList.size())));
+					new Daemon(this, pool).serve(Integer.parseInt(argsList.get(1)));
+					break;
+				case "--submit": // Отправка задания фоновому процессу
+					if(argsList.size() < 2) throw new IllegalArgumentException("Too small arguments: --submit <port> <arguments...>");
+					if(!Daemon.submit(Integer.parseInt(argsList.get(1)), argsList.subList(2, argsList.size()))) System.exit(1);
+					break;
+				default:
+					Options options = Options.parse(argsList);
+					pool = new ForkJoinPool(options.threads);
+					execute(options, pool);
+			}
+		} catch (Exception ex) {
+			SimpleLogger.instance.log(Level.SEVERE, "An error occurred", ex);
+			System.exit(1);
+		} finally {
+			if(pool != null) pool.shutdown();
+		}
+	}
+
+	/**
+	 * Выполняет одно задание. Не использует общего изменяемого состояния, поэтому несколько заданий
+	 * могут выполняться одновременно в одной JVM с общим пулом потоков.
+	 * @param options Параметры задания
+	 * @param pool Пул потоков
+	 * @throws IOException Ошибка чтения, обработки или записи
+	 */
+	public void execute(Options options, ForkJoinPool pool) throws IOException {
+		Timer timer = new Timer();
+		Metrics metrics = new Metrics();
+
+		// Проверяем входные данные
+		if(!Files.isRegularFile(options.inputFile) && !Files.isDirectory(options.inputFile)) throw new IllegalArgumentException("File doesn't exists: " + options.inputFile);
+		checkOutputs(options);
+		if(options.removeOnly) SimpleLogger.instance.info("Unsing remove only mode.");
+		if(options.planFile != null) {
+			runPlan(options, pool, metrics);
+		} else if(options.streaming) {
+			runStreaming(options, pool, metrics);
+		} else {
+			process(options, pool, metrics);
+		}
+
+		if(options.metricsFile != null) metrics.writeJson(options.metricsFile, options);
+		SimpleLogger.instance.log(options.logSummary ? Level.INFO : Level.FINE, "Removed {0,number,#} classes, {1,number,#} interfaces, {2,number,#} nested classes, {3,number,#} fields, {4,number,#} methods, {5,number,#} interface usages; changed {6,number,#} superclasses.", new Object[]{
+			metrics.get(Metrics.Counter.REMOVED_CLASSES), metrics.get(Metrics.Counter.REMOVED_INTERFACES), metrics.get(Metrics.Counter.REMOVED_SUBCLASSES),
+			metrics.get(Metrics.Counter.REMOVED_FIELDS), metrics.get(Metrics.Counter.REMOVED_METHODS), metrics.get(Metrics.Counter.REMOVED_INTERFACE_USAGES),
+			metrics.get(Metrics.Counter.CHANGED_SUPERCLASSES)});
+		if(!options.flags.isEmpty() || options.flagsClass != null) SimpleLogger.instance.log(options.logSummary ? Level.INFO : Level.FINE, "Substituted {0,number,#} flag reads, folded {1,number,#} branches, removed {2,number,#} unreachable instructions.", new Object[]{
+			metrics.get(Metrics.Counter.SUBSTITUTED_FLAGS), metrics.get(Metrics.Counter.FOLDED_BRANCHES), metrics.get(Metrics.Counter.PRUNED_INSTRUCTIONS)});
+		if(options.shrink) SimpleLogger.instance.log(options.logSummary ? Level.INFO : Level.FINE, "Shrunk {0,number,#} unreachable classes, {1,number,#} methods, {2,number,#} fields.", new Object[]{
+			metrics.get(Metrics.Counter.SHRUNK_CLASSES), metrics.get(Metrics.Counter.SHRUNK_METHODS), metrics.get(Metrics.Counter.SHRUNK_FIELDS)});
+		if(!options.strip.isEmpty()) SimpleLogger.instance.log(options.logSummary ? Level.INFO : Level.FINE, "Stripped {0,number,#} bytes of debug info, {1,number,#} bytes of annotations, {2,number,#} bytes of inner class entries.", new Object[]{
+			metrics.get(Metrics.Counter.STRIPPED_DEBUG_BYTES), metrics.get(Metrics.Counter.STRIPPED_ANNOTATION_BYTES), metrics.get(Metrics.Counter.STRIPPED_INNER_CLASS_BYTES)});
+		SimpleLogger.instance.log(Level.FINE, "Task done in {0}ms (read {1}ms, remove {2}ms, process {3}ms, write {4}ms, {5} threads).", new Object[]{
+			timer.flip(), toMillis(metrics.getTime(Metrics.Phase.READ)), toMillis(metrics.getTime(Metrics.Phase.REMOVE_CLASSES)),
+			toMillis(metrics.getTime(Metrics.Phase.PROCESS_CLASSES)), toMillis(metrics.getTime(Metrics.Phase.WRITE)), pool.getParallelism()});
+	}
+
+	/**
+	 * Обрабатывает архив целиком в памяти
+	 * @param options Параметры задания
+	 * @param pool Пул потоков
+	 * @param metrics Метрики задания
+	 * @throws IOException Ошибка чтения, обработки или записи
+	 */
+	private void process(Options options, ForkJoinPool pool, Metrics metrics) throws IOException {
+		// Пропускаем задание, если входной файл, параметры и результат не изменились
+		ClassCache cache = null;
+		String jobKey = null, inputHash = null;
+		if(options.cacheDir != null) {
+			cache = new ClassCache(options.cacheDir, options.cacheSize);
+			jobKey = ClassCache.hash(options.describe().getBytes(StandardCharsets.UTF_8));
+			inputHash = Files.isDirectory(options.inputFile) ? ClassCache.hashDirectory(options.inputFile) : ClassCache.hash(options.inputFile);
+			if(cache.isUpToDate(jobKey, getJobState(options, inputHash))) {
+				SimpleLogger.instance.info("Input and options are unchanged, output is up to date.");
+				return;
+			}
+		}
+
+		// Загружаем Jar файл (классы читаются параллельно)
+		try (JarContents contents = JarManager.loadClasses(options.inputFile, pool, metrics, options.getNestedFilter())) {
 			SimpleLogger.instance.log(Level.FINE, "Loaded {0} classes and {1} resources.", new Object[]{contents.classes.size(), contents.resources.size()});
-			if(removeOnly) SimpleLogger.instance.info("Unsing remove only mode.");
+			if(!contents.nested.isEmpty()) SimpleLogger.instance.log(Level.FINE, "Loaded {0} nested archives with {1} classes.", new Object[]{contents.getArchives().size() - 1, contents.getAllClasses().size() - contents.classes.size()});
 
-			readTime += timer.flip();
+			ClassHierarchy hierarchy = !options.classpath.isEmpty() || options.frames ? buildHierarchy(options, contents, pool, metrics) : null;
+			Layout layout = createLayout(options);
+			if(options.profiles.isEmpty()) {
+				transform(contents, null, options, hierarchy, pool, cache);
+				JarManager.writeClasses(options.outputFile, contents, pool, options.compression, layout, options.isDirectoryOutput(options.outputFile));
+			} else {
+				runProfiles(options, contents, pool, cache, hierarchy, layout);
+			}
+		}
 
-			AnnotationProccessor processor = new AnnotationProccessor();
-			processor.removeClasses(contents);
-			processor.processClasses(contents, !removeOnly);
+		if(cache != null) {
+			cache.markDone(jobKey, getJobState(options, inputHash));
+			int evicted = cache.evict();
+			SimpleLogger.instance.log(Level.INFO, "Cache: {0} hits, {1} misses, {2} evicted.", new Object[]{cache.getHits(), cache.getMisses(), evicted});
+		}
+	}
 
-			applyTime += timer.flip();
-			JarManager.writeClasssesToJar(outputFile, contents);
-			writeTime += timer.flip();
+	/**
+	 * Удаляет классы одного профиля, применяет исправления и сокращение. Удаление классов - общий барьер,
+	 * исправления классов выполняются параллельно
+	 * @param contents Содержимое архива, изменяется
+	 * @param profile Профиль сборки или null
+	 * @param options Параметры задания
+	 * @param hierarchy Иерархия классов или null
+	 * @param pool Пул потоков
+	 * @param cache Кэш обработанных классов или null
+	 * @throws IOException Ошибка обработки
+	 */
+	private static void transform(JarContents contents, String profile, Options options, ClassHierarchy hierarchy, ForkJoinPool pool, ClassCache cache) throws IOException {
+		AnnotationProccessor processor = new AnnotationProccessor(profile, contents.metrics, options);
+		processor.setHierarchy(hierarchy);
+		processor.removeClasses(contents, pool);
+		processor.processClasses(contents, !options.removeOnly, pool, cache);
+		if(options.shrink) new Shrinker(profile, contents.metrics, options).shrink(contents, pool);
+	}
 
-			SimpleLogger.instance.log(Level.FINE, "Task done in {0}ms (read {1}ms, apply {2}ms, write {3}ms).", new Object[]{readTime + applyTime + writeTime, readTime, applyTime, writeTime});
-		} catch (Exception ex) {
-			SimpleLogger.instance.log(Level.SEVERE, "An error occurred", ex);
-			System.exit(1);
+	/**
+	 * Обрабатывает записи архива в памяти, без чтения и записи файлов. В отличие от {@link #run(String[])}
+	 * ошибки передаются вызывающему, а не завершают JVM. Входной и выходные файлы, профили, кэш и отчёт метрик
+	 * из параметров не используются.
+	 * @param in Записи архива. Записи каталогов пропускаются
+	 * @param out Получатель записей результата: манифест, классы и ресурсы в исходном порядке
+	 * @param options Параметры обработки
+	 * @return Метрики обработки
+	 * @throws IOException Ошибка обработки или получателя
+	 */
+	public static Metrics process(Iterable<Entry> in, Sink out, Options options) throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(options.threads);
+		try {
+			return process(in, out, options, null, pool);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Обрабатывает записи архива в памяти для профиля сборки в заданном пуле потоков
+	 * @param in Записи архива. Записи каталогов пропускаются
+	 * @param out Получатель записей результата: манифест, классы и ресурсы в исходном порядке
+	 * @param options Параметры обработки
+	 * @param profile Профиль сборки или null
+	 * @param pool Пул потоков
+	 * @return Метрики обработки
+	 * @throws IOException Ошибка обработки или получателя
+	 */
+	@SuppressWarnings("try")
+	public static Metrics process(Iterable<Entry> in, Sink out, Options options, String profile, ForkJoinPool pool) throws IOException {
+		if(options.streaming || !options.nested.isEmpty()) throw new IllegalArgumentException("Streaming and nested archives are not supported in memory");
+
+		Metrics metrics = new Metrics();
+		JarContents contents = new JarContents();
+		contents.metrics = metrics;
+		try (Metrics.PhaseTimer timer = metrics.time(Metrics.Phase.READ)) {
+			for(Entry entry : in) {
+				if(entry.name.endsWith("/")) {
+					metrics.addInput(Metrics.EntryType.DIRECTORY, 0);
+				} else if(entry.name.equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+					contents.manifest = new Manifest(new ByteArrayInputStream(entry.data));
+					metrics.addInput(Metrics.EntryType.MANIFEST, entry.data.length);
+				} else if(entry.name.endsWith(".class")) {
+					ClassEntry clazz = new ClassEntry(entry.data);
+					contents.classes.put(clazz.name, clazz);
+					metrics.addInput(Metrics.EntryType.CLASS, entry.data.length);
+				} else {
+					contents.resources.put(entry.name, new Resource(entry.data));
+					metrics.addInput(Metrics.EntryType.RESOURCE, entry.data.length);
+				}
+			}
+		}
+
+		ClassHierarchy hierarchy = !options.classpath.isEmpty() || options.frames ? buildHierarchy(options, contents, pool, metrics) : null;
+		transform(contents, profile, options, hierarchy, pool, null);
+
+		List<ClassEntry> classes = new ArrayList<>(contents.classes.values());
+		try (Metrics.PhaseTimer timer = metrics.time(Metrics.Phase.SERIALIZE)) {
+			Utils.await(pool.submit(() -> classes.parallelStream().filter(ClassEntry::isParsed).forEach(clazz -> clazz.setResult(clazz.toByteArray()))));
+		}
+		try (Metrics.PhaseTimer timer = metrics.time(Metrics.Phase.WRITE)) {
+			if(contents.manifest != null) {
+				ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+				contents.manifest.write(manifest);
+				out.accept(JarFile.MANIFEST_NAME, manifest.toByteArray());
+				metrics.addOutput(Metrics.EntryType.MANIFEST, manifest.size(), manifest.size());
+			}
+			for(ClassEntry clazz : classes) {
+				byte[] data = clazz.toByteArray();
+				if(!clazz.isChanged()) metrics.increment(Metrics.Counter.PASSED_THROUGH_CLASSES);
+				out.accept(clazz.name.concat(".class"), data);
+				metrics.addOutput(Metrics.EntryType.CLASS, data.length, data.length);
+			}
+			for(Map.Entry<String, Resource> entry : contents.resources.entrySet()) {
+				byte[] data = entry.getValue().getBytes();
+				out.accept(entry.getKey(), data);
+				metrics.addOutput(Metrics.EntryType.RESOURCE, data.length, data.length);
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * Строит план удаления для каждого профиля без изменения и записи классов
+	 * @param options Параметры задания
+	 * @param pool Пул потоков
+	 * @param metrics Метрики задания
+	 * @throws IOException Ошибка чтения или записи плана
+	 */
+	private void runPlan(Options options, ForkJoinPool pool, Metrics metrics) throws IOException {
+		RemovalPlan plan = new RemovalPlan();
+		try (JarContents contents = JarManager.loadClasses(options.inputFile, pool, metrics, options.getNestedFilter())) {
+			ClassHierarchy hierarchy = !options.classpath.isEmpty() ? buildHierarchy(options, contents, pool, metrics) : null; // для унаследованных интерфейсов
+			List<String> profiles = options.profiles.isEmpty() ? Collections.singletonList(null) : new ArrayList<>(options.profiles.keySet());
+			for(String profile : profiles) {
+				AnnotationProccessor processor = new AnnotationProccessor(profile, metrics, options);
+				processor.setHierarchy(hierarchy);
+				plan.addProfile(profile, contents.copy(), processor, !options.removeOnly, pool);
+			}
+		}
+		plan.write(options.planFile, options);
+
+		Map<RemovalPlan.Action, Integer> summary = plan.getSummary();
+		SimpleLogger.instance.log(Level.INFO, "Plan written to {0}: {1,number,#} classes, {2,number,#} interfaces, {3,number,#} nested classes, {4,number,#} fields, {5,number,#} methods to remove; {6,number,#} classes still reference removed ones.", new Object[]{
+			options.planFile, summary.get(RemovalPlan.Action.REMOVE_CLASS), summary.get(RemovalPlan.Action.REMOVE_INTERFACE), summary.get(RemovalPlan.Action.REMOVE_SUBCLASS),
+			summary.get(RemovalPlan.Action.REMOVE_FIELD), summary.get(RemovalPlan.Action.REMOVE_METHOD), summary.get(RemovalPlan.Action.REFERENCES_REMOVED)});
+	}
+
+	/**
+	 * Пакетный режим. Каждая строка файла - аргументы одного запуска, пустые строки и строки, начинающиеся с '#', пропускаются.
+	 * Задания выполняются одновременно в общем пуле потоков, ошибка одного задания не прерывает остальные.
+	 * @param jobsFile Файл заданий
+	 * @param pool Пул потоков
+	 * @return true, если все задания выполнены успешно
+	 * @throws IOException Ошибка чтения файла заданий
+	 */
+	private boolean runBatch(Path jobsFile, ForkJoinPool pool) throws IOException {
+		Timer timer = new Timer();
+		List<String> lines = new ArrayList<>();
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		int failed = 0;
+		for(String line : Files.readAllLines(jobsFile, StandardCharsets.UTF_8)) {
+			line = line.trim();
+			if(line.isEmpty() || line.startsWith("#")) continue;
+
+			Options options;
+			try {
+				options = Options.parse(Utils.splitArguments(line));
+			} catch (IllegalArgumentException ex) { // неверная строка - проваленное задание, остальные задания выполняются
+				failed++;
+				SimpleLogger.instance.log(Level.SEVERE, "Job failed: {0}: {1}", new Object[]{line, ex.getMessage()});
+				lines.add(line);
+				tasks.add(null);
+				continue;
+			}
+			lines.add(line);
+			tasks.add(pool.submit(() -> {
+				execute(options, pool);
+				return null;
+			}));
+		}
+
+		for(int i = 0; i < tasks.size(); i++) {
+			if(tasks.get(i) == null) continue;
+			try {
+				Utils.await(tasks.get(i));
+			} catch (Exception ex) {
+				failed++;
+				SimpleLogger.instance.log(Level.SEVERE, "Job failed: " + lines.get(i), ex);
+			}
 		}
+
+		SimpleLogger.instance.log(Level.INFO, "Batch done in {0}ms: {1} jobs, {2} failed.", new Object[]{timer.flip(), tasks.size(), failed});
+		return failed == 0;
+	}
+
+	/**
+	 * Состояние задания: хэш входного файла, параметры и размер и время изменения выходных файлов
+	 */
+	private static String getJobState(Options options, String inputHash) throws IOException {
+		StringBuilder state = new StringBuilder(inputHash).append('\n').append(options.describe());
+		if(!options.classpath.isEmpty()) state.append('\n').append(ClassCache.describeFiles(options.classpath));
+		if(options.loadOrderFile != null) state.append('\n').append(ClassCache.describeFiles(Collections.singletonList(options.loadOrderFile)));
+		for(Path output : options.getOutputFiles()) {
+			state.append('\n').append(output.toAbsolutePath());
+			if(Files.isDirectory(output)) {
+				state.append(' ').append(ClassCache.hashDirectory(output));
+			} else if(Files.isRegularFile(output)) {
+				state.append(' ').append(Files.size(output)).append(' ').append(Files.getLastModifiedTime(output).toMillis());
+			} else {
+				state.append(" missing");
+			}
+		}
+		return state.toString();
+	}
+
+	/**
+	 * Проверяет выходные каталоги: файлы удалённых классов из них удаляются, поэтому выходной каталог
+	 * не может содержать входной файл или каталог и находиться внутри входного каталога (кроме записи на место)
+	 */
+	private static void checkOutputs(Options options) {
+		Path input = options.inputFile.toAbsolutePath().normalize();
+		for(Path output : options.getOutputFiles()) {
+			if(!options.isDirectoryOutput(output)) continue;
+
+			if(options.streaming) throw new IllegalArgumentException("Directories are not supported in streaming mode: " + output);
+			Path dir = output.toAbsolutePath().normalize();
+			if(!dir.equals(input) && (input.startsWith(dir) || dir.startsWith(input))) throw new IllegalArgumentException("Output directory overlaps input: " + output);
+		}
+		if(options.streaming && Files.isDirectory(options.inputFile)) throw new IllegalArgumentException("Directories are not supported in streaming mode: " + options.inputFile);
+	}
+
+	private static int getThreads(List<String> args) {
+		if(args.isEmpty()) return Runtime.getRuntime().availableProcessors();
+		if(args.size() != 2 || !args.get(0).equals("--threads")) throw new IllegalArgumentException("Unknown options: " + args);
+		int threads = Integer.parseInt(args.get(1));
+		if(threads < 1) throw new IllegalArgumentException("Bad threads count: " + threads);
+		return threads;
+	}
+
+	/**
+	 * Обрабатывает один загруженный архив для нескольких профилей сборки. Профили обрабатываются параллельно,
+	 * каждый со своей копией содержимого: изменяемые классы разбираются заново в каждой копии.
+	 * @param options Параметры запуска
+	 * @param contents Общее содержимое архива, не изменяется
+	 * @param pool Пул потоков
+	 * @param cache Кэш обработанных классов или null
+	 * @param hierarchy Иерархия классов или null
+	 * @param layout Расположение записей выходных архивов или null
+	 * @throws IOException Ошибка обработки или записи
+	 */
+	private void runProfiles(Options options, JarContents contents, ForkJoinPool pool, ClassCache cache, ClassHierarchy hierarchy, Layout layout) throws IOException {
+		List<ForkJoinTask<Integer>> tasks = new ArrayList<>();
+		for(Map.Entry<String, Path> profile : options.profiles.entrySet()) {
+			tasks.add(pool.submit(() -> {
+				Timer profileTimer = new Timer();
+				JarContents view = contents.copy();
+				transform(view, profile.getKey(), options, hierarchy, pool, cache);
+				JarManager.writeClasses(profile.getValue(), view, pool, options.compression, layout, options.isDirectoryOutput(profile.getValue()));
+				return profileTimer.flip();
+			}));
+		}
+
+		Iterator<String> names = options.profiles.keySet().iterator();
+		for(ForkJoinTask<Integer> task : tasks) {
+			SimpleLogger.instance.log(Level.FINE, "Profile {0} done in {1}ms.", new Object[]{names.next(), Utils.await(task)});
+		}
+	}
+
+	/**
+	 * Потоковый режим для больших архивов. Первый проход строит таблицы удалённых классов,
+	 * второй переписывает архив запись за записью.
+	 * @param options Параметры запуска
+	 * @param pool Пул потоков для чтения библиотек
+	 * @param metrics Метрики задания. Первый проход учитывается как чтение, второй - как запись
+	 * @throws IOException Ошибка чтения или записи
+	 */
+	@SuppressWarnings("try")
+	private void runStreaming(Options options, ForkJoinPool pool, Metrics metrics) throws IOException {
+		AnnotationProccessor processor = new AnnotationProccessor(null, metrics, options);
+		List<ClassHierarchy.Header> headers = new ArrayList<>();
+		boolean needHierarchy = !options.classpath.isEmpty() || options.frames;
+		try (Metrics.PhaseTimer timer = metrics.time(Metrics.Phase.READ)) {
+			JarManager.scanClasses(options.inputFile, clazz -> {
+				if(needHierarchy) headers.add(new ClassHierarchy.Header(clazz.getBytes()));
+				processor.scanClass(clazz);
+			});
+			processor.endScan();
+		}
+		if(needHierarchy) processor.setHierarchy(buildHierarchy(options, headers, pool, metrics));
+
+		try (Metrics.PhaseTimer timer = metrics.time(Metrics.Phase.WRITE)) {
+			JarManager.transformJar(options.inputFile, options.outputFile, clazz -> {
+				if(processor.isRemoved(clazz.name)) return null;
+				processor.processClass(clazz, !options.removeOnly);
+				return clazz;
+			}, options.compression);
+		}
+	}
+
+	/**
+	 * @return Расположение записей выходных архивов по --load-order и --jar-index или null
+	 */
+	private static Layout createLayout(Options options) throws IOException {
+		if(options.loadOrderFile == null && !options.jarIndex) return null;
+
+		List<String> loadOrder = options.loadOrderFile != null ? Layout.readLoadOrder(options.loadOrderFile) : Collections.emptyList();
+		Layout layout = new Layout(loadOrder, options.jarIndex);
+		SimpleLogger.instance.log(Level.FINE, "Load order: {0,number,#} entries.", layout.getLoadOrderSize());
+		return layout;
+	}
+
+	/**
+	 * Строит иерархию классов загруженного архива и библиотек из --classpath
+	 */
+	private static ClassHierarchy buildHierarchy(Options options, JarContents contents, ForkJoinPool pool, Metrics metrics) throws IOException {
+		List<ClassEntry> classes = contents.getAllClasses();
+		List<ClassHierarchy.Header> headers = Utils.await(pool.submit(() -> classes.parallelStream().map(clazz -> new ClassHierarchy.Header(clazz.getBytes())).collect(Collectors.toList())));
+		return buildHierarchy(options, headers, pool, metrics);
+	}
+
+	/**
+	 * Строит иерархию классов архива и библиотек из --classpath. Индекс библиотек сохраняется в кэш
+	 * и загружается из него, пока библиотеки не изменились. Классы архива имеют приоритет над библиотеками.
+	 * @param options Параметры задания
+	 * @param headers Заголовки классов архива
+	 * @param pool Пул потоков
+	 * @param metrics Метрики задания
+	 * @return Иерархия классов
+	 * @throws IOException Ошибка чтения библиотек или индекса
+	 */
+	@SuppressWarnings("try")
+	private static ClassHierarchy buildHierarchy(Options options, List<ClassHierarchy.Header> headers, ForkJoinPool pool, Metrics metrics) throws IOException {
+		try (Metrics.PhaseTimer timer = metrics.time(Metrics.Phase.HIERARCHY)) {
+			for(Path library : options.classpath) {
+				if(!Files.isRegularFile(library)) throw new IllegalArgumentException("Library doesn't exists: " + library);
+			}
+			Path indexFile = options.cacheDir != null && !options.classpath.isEmpty() ? new ClassCache(options.cacheDir, options.cacheSize).getHierarchyFile(options.classpath) : null;
+			ClassHierarchy libraries = null;
+			if(indexFile != null && Files.isRegularFile(indexFile)) {
+				try {
+					libraries = ClassHierarchy.load(indexFile);
+					SimpleLogger.instance.log(Level.FINE, "Loaded hierarchy of {0} library classes from cache.", libraries.size());
+				} catch (IOException ex) {
+					SimpleLogger.instance.log(Level.WARNING, "Can''t load hierarchy cache {0}: {1}", new Object[]{indexFile, ex});
+				}
+			}
+			if(libraries == null) {
+				ClassHierarchy.Builder builder = new ClassHierarchy.Builder();
+				for(Path library : options.classpath) {
+					for(ClassHierarchy.Header header : JarManager.readClassHeaders(library, pool)) {
+						builder.add(header, ClassHierarchy.LIBRARY);
+					}
+				}
+				libraries = builder.build();
+				if(indexFile != null) libraries.save(indexFile);
+			}
+
+			ClassHierarchy.Builder builder = new ClassHierarchy.Builder();
+			for(ClassHierarchy.Header header : headers) {
+				builder.add(header, ClassHierarchy.INPUT);
+			}
+			builder.addAll(libraries);
+			ClassHierarchy hierarchy = builder.build();
+			SimpleLogger.instance.log(Level.FINE, "Hierarchy: {0} classes ({1} from libraries).", new Object[]{hierarchy.size(), libraries.size()});
+			return hierarchy;
+		}
+	}
+
+	/**
+	 * Запись архива для обработки в памяти
+	 */
+	public static final class Entry {
+
+		/**
+		 * Имя записи с разделителем '/'
+		 */
+		public final String name;
+		public final byte[] data;
+
+		public Entry(String name, byte[] data) {
+			this.name = name;
+			this.data = data;
+		}
+
+	}
+
+	/**
+	 * Получатель записей результата обработки в памяти
+	 */
+	@FunctionalInterface
+	public interface Sink {
+
+		void accept(String name, byte[] data) throws IOException;
+
+	}
+
+	private static long toMillis(long nanos) {
+		return nanos / 1_000_000;
 	}
 
 	private static class Timer {
@@ -58,12 +537,13 @@ public final class CodeRemover {
 		private long start;
 
 		public Timer() {
-			start = System.currentTimeMillis();
+			start = System.nanoTime();
 		}
 
 		public int flip() {
-			int rv = (int)(System.currentTimeMillis() - start);
-			start = System.currentTimeMillis();
+			long now = System.nanoTime();
+			int rv = (int)((now - start) / 1_000_000);
+			start = now;
 			return rv;
 		}
 
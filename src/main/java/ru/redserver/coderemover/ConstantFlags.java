@@ -0,0 +1,431 @@
+package ru.redserver.coderemover;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.analysis.Analyzer;
+import org.objectweb.asm.tree.analysis.AnalyzerException;
+import org.objectweb.asm.tree.analysis.BasicInterpreter;
+import org.objectweb.asm.tree.analysis.Frame;
+import ru.redserver.coderemover.io.ClassEntry;
+
+/**
+ * Флаги сборки: статические поля с заданными для профиля значениями. Чтение флага (GETSTATIC) заменяется константой,
+ * условные переходы и switch по константам сворачиваются, а код, ставший недостижимым, удаляется по графу потока
+ * управления ({@link Analyzer}). Значения задаются параметрами --flag или берутся из static final полей
+ * с константным значением (ConstantValue) класса флагов --flags-class.
+ * <p>
+ * Значения читаются до обработки классов, после {@link #endScan()} объект только читается и потокобезопасен.
+ * @author Nuclear
+ */
+final class ConstantFlags {
+
+	private static final String STRING_DESC = "Ljava/lang/String;";
+
+	private final AnnotationProccessor processor;
+	private final Map<String, Map<String, String>> values = new HashMap<>(); // класс -> поле -> значение
+	final String flagsClass; // класс флагов или null
+	private boolean flagsClassFound = false;
+	private ConstantPoolFilter filter = new ConstantPoolFilter(new ArrayList<>()); // классы, читающие флаги
+
+	/**
+	 * @param processor Обработчик профиля: метрики и вывод изменений
+	 * @param options Параметры запуска: флаги и класс флагов
+	 */
+	ConstantFlags(AnnotationProccessor processor, Options options) {
+		this.processor = processor;
+		this.flagsClass = options.flagsClass != null ? options.flagsClass.replace('.', '/') : null;
+
+		// Сначала общие флаги, затем флаги профиля, переопределяющие их
+		for(int pass = 0; pass < 2; pass++) {
+			for(String flag : options.flags) {
+				int sep = flag.indexOf('=');
+				String name = flag.substring(0, sep);
+				int colon = name.indexOf(':');
+				if(pass == 0 ? colon >= 0 : colon < 0 || !name.substring(0, colon).equals(processor.profile)) continue;
+
+				name = name.substring(colon + 1);
+				int dot = name.lastIndexOf('.');
+				put(name.substring(0, dot).replace('.', '/'), name.substring(dot + 1), flag.substring(sep + 1), true);
+			}
+		}
+	}
+
+	private void put(String owner, String name, String value, boolean replace) {
+		Map<String, String> fields = values.computeIfAbsent(owner, key -> new HashMap<>());
+		if(replace) {
+			fields.put(name, value);
+		} else {
+			fields.putIfAbsent(name, value);
+		}
+	}
+
+	/**
+	 * Читает значения флагов, если класс - класс флагов. Флаги, заданные параметрами, имеют приоритет
+	 * @param clazz Класс или null
+	 */
+	@SuppressWarnings("unchecked")
+	void scanClass(ClassEntry clazz) {
+		if(clazz == null || !clazz.name.equals(flagsClass)) return;
+
+		ClassNode node = new ClassNode();
+		new ClassReader(clazz.getBytes()).accept(node, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+		int count = 0;
+		for(FieldNode field : (List<FieldNode>)node.fields) {
+			if(field.value == null || (field.access & (Opcodes.ACC_STATIC | Opcodes.ACC_FINAL)) != (Opcodes.ACC_STATIC | Opcodes.ACC_FINAL)) continue;
+			String value = field.desc.equals("Z") ? String.valueOf(((Integer)field.value) != 0) : String.valueOf(field.value);
+			put(node.name, field.name, value, false);
+			count++;
+		}
+		flagsClassFound = true;
+		SimpleLogger.instance.log(Level.FINE, "Read {0} flags from {1}.", new Object[]{count, SimpleLogger.className(node.name)});
+	}
+
+	/**
+	 * Завершает чтение значений флагов
+	 */
+	void endScan() {
+		if(flagsClass != null && !flagsClassFound) SimpleLogger.instance.log(Level.WARNING, "Flags class not found: {0}", SimpleLogger.className(flagsClass));
+		filter = new ConstantPoolFilter(values.keySet());
+	}
+
+	/**
+	 * Проверяет, может ли класс читать флаги
+	 * @param bytes Байт-код класса
+	 * @return true, если класс ссылается на класс с флагами
+	 */
+	boolean matches(byte[] bytes) {
+		return filter.matches(bytes);
+	}
+
+	/**
+	 * @return Значения флагов для отпечатка обработки
+	 */
+	String describe() {
+		Map<String, Map<String, String>> sorted = new TreeMap<>();
+		values.forEach((owner, fields) -> sorted.put(owner, new TreeMap<>(fields)));
+		return sorted.toString();
+	}
+
+	/**
+	 * Подставляет значения флагов в метод, сворачивает переходы по ним и удаляет недостижимый код
+	 * @param className Имя класса
+	 * @param method Метод
+	 * @return true, если код метода изменён
+	 */
+	boolean fold(String className, MethodNode method) {
+		boolean initializer = method.name.equals(AnnotationProccessor.STATIC_CONSTRUCTOR);
+		int substituted = 0;
+		for(AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+			if(insn.getOpcode() != Opcodes.GETSTATIC) continue;
+
+			FieldInsnNode faccess = (FieldInsnNode)insn;
+			if(initializer && faccess.owner.equals(className)) continue; // значение ещё вычисляется
+			Map<String, String> fields = values.get(faccess.owner);
+			String value = fields != null ? fields.get(faccess.name) : null;
+			if(value == null) continue;
+
+			AbstractInsnNode constant = getConstant(faccess, value);
+			method.instructions.set(insn, constant);
+			insn = constant;
+			substituted++;
+		}
+		if(substituted == 0) return false;
+		processor.metrics.add(Metrics.Counter.SUBSTITUTED_FLAGS, substituted);
+
+		int folded = foldBranches(method.instructions);
+		if(folded > 0) {
+			int pruned = prune(className, method);
+			processor.metrics.add(Metrics.Counter.FOLDED_BRANCHES, folded);
+			processor.metrics.add(Metrics.Counter.PRUNED_INSTRUCTIONS, pruned);
+			if(processor.logRemovals) processor.log("Folded {0,number,#} flag branches in {1}.{2}{3}, removed {4,number,#} unreachable instructions", folded, SimpleLogger.className(className), method.name, method.desc, pruned);
+		}
+		return true;
+	}
+
+	private static AbstractInsnNode getConstant(FieldInsnNode faccess, String value) {
+		switch(faccess.desc) {
+			case "Z":
+				if(!value.equals("true") && !value.equals("false")) throw new IllegalArgumentException("Bad boolean flag " + faccess.owner + "." + faccess.name + ": " + value);
+				return new InsnNode(value.equals("true") ? Opcodes.ICONST_1 : Opcodes.ICONST_0);
+			case "B":
+			case "C":
+			case "S":
+			case "I":
+				int i = Integer.decode(value);
+				if(i >= -1 && i <= 5) return new InsnNode(Opcodes.ICONST_0 + i);
+				if(i >= Byte.MIN_VALUE && i <= Byte.MAX_VALUE) return new IntInsnNode(Opcodes.BIPUSH, i);
+				if(i >= Short.MIN_VALUE && i <= Short.MAX_VALUE) return new IntInsnNode(Opcodes.SIPUSH, i);
+				return new LdcInsnNode(i);
+			case "J":
+				return new LdcInsnNode(Long.decode(value));
+			case "F":
+				return new LdcInsnNode(Float.parseFloat(value));
+			case "D":
+				return new LdcInsnNode(Double.parseDouble(value));
+			case STRING_DESC:
+				return new LdcInsnNode(value);
+			default:
+				throw new IllegalArgumentException("Unsupported flag type " + faccess.desc + ": " + faccess.owner + "." + faccess.name);
+		}
+	}
+
+	/**
+	 * Сворачивает условные переходы и switch, операнды которых - константы, стоящие непосредственно перед переходом
+	 * @param instructions Инструкции метода
+	 * @return Число свёрнутых переходов
+	 */
+	private static int foldBranches(InsnList instructions) {
+		int folded = 0;
+		AbstractInsnNode next;
+		for(AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = next) {
+			next = insn.getNext();
+			int opcode = insn.getOpcode();
+			AbstractInsnNode operand = insn.getPrevious();
+			if(operand == null) continue;
+
+			LabelNode target = null;
+			int operands;
+			if(opcode >= Opcodes.IFEQ && opcode <= Opcodes.IFLE) {
+				Integer value = getInt(operand);
+				if(value == null) continue;
+				if(compare(opcode - Opcodes.IFEQ, value, 0)) target = ((JumpInsnNode)insn).label;
+				operands = 1;
+			} else if(opcode >= Opcodes.IF_ICMPEQ && opcode <= Opcodes.IF_ICMPLE) {
+				Integer value2 = getInt(operand);
+				Integer value1 = operand.getPrevious() != null ? getInt(operand.getPrevious()) : null;
+				if(value1 == null || value2 == null) continue;
+				if(compare(opcode - Opcodes.IF_ICMPEQ, value1, value2)) target = ((JumpInsnNode)insn).label;
+				operands = 2;
+			} else if(opcode == Opcodes.IFNULL || opcode == Opcodes.IFNONNULL) {
+				Boolean isNull = getNull(operand);
+				if(isNull == null) continue;
+				if(isNull == (opcode == Opcodes.IFNULL)) target = ((JumpInsnNode)insn).label;
+				operands = 1;
+			} else if(opcode == Opcodes.TABLESWITCH) {
+				Integer value = getInt(operand);
+				if(value == null) continue;
+				TableSwitchInsnNode table = (TableSwitchInsnNode)insn;
+				target = value >= table.min && value <= table.max ? (LabelNode)table.labels.get(value - table.min) : table.dflt;
+				operands = 1;
+			} else if(opcode == Opcodes.LOOKUPSWITCH) {
+				Integer value = getInt(operand);
+				if(value == null) continue;
+				LookupSwitchInsnNode lookup = (LookupSwitchInsnNode)insn;
+				int index = lookup.keys.indexOf(value);
+				target = index >= 0 ? (LabelNode)lookup.labels.get(index) : lookup.dflt;
+				operands = 1;
+			} else {
+				continue;
+			}
+
+			for(int i = 0; i < operands; i++) {
+				instructions.remove(insn.getPrevious());
+			}
+			if(target != null) {
+				instructions.set(insn, new JumpInsnNode(Opcodes.GOTO, target));
+			} else {
+				instructions.remove(insn);
+			}
+			folded++;
+		}
+		return folded;
+	}
+
+	/**
+	 * @param condition Условие в порядке инструкций IFEQ, IFNE, IFLT, IFGE, IFGT, IFLE
+	 */
+	private static boolean compare(int condition, int value1, int value2) {
+		switch(condition) {
+			case 0: return value1 == value2;
+			case 1: return value1 != value2;
+			case 2: return value1 < value2;
+			case 3: return value1 >= value2;
+			case 4: return value1 > value2;
+			default: return value1 <= value2;
+		}
+	}
+
+	private static Integer getInt(AbstractInsnNode insn) {
+		int opcode = insn.getOpcode();
+		if(opcode >= Opcodes.ICONST_M1 && opcode <= Opcodes.ICONST_5) return opcode - Opcodes.ICONST_0;
+		if(opcode == Opcodes.BIPUSH || opcode == Opcodes.SIPUSH) return ((IntInsnNode)insn).operand;
+		if(opcode == Opcodes.LDC && ((LdcInsnNode)insn).cst instanceof Integer) return (Integer)((LdcInsnNode)insn).cst;
+		return null;
+	}
+
+	private static Boolean getNull(AbstractInsnNode insn) {
+		if(insn.getOpcode() == Opcodes.ACONST_NULL) return true;
+		if(insn.getOpcode() == Opcodes.LDC && ((LdcInsnNode)insn).cst instanceof String) return false;
+		return null;
+	}
+
+	/**
+	 * Удаляет недостижимые инструкции, переходы на следующую инструкцию и обработчики исключений, диапазон которых
+	 * стал пустым. Код удалённого обработчика становится недостижимым, поэтому удаление повторяется.
+	 * Метки сохраняются, так как на них ссылаются таблицы локальных переменных. Если удаляется фрейм, остальные фреймы
+	 * метода записываются полностью, так как сжатые фреймы задаются относительно предыдущего.
+	 * @return Число удалённых инструкций
+	 */
+	@SuppressWarnings("unchecked")
+	private static int prune(String className, MethodNode method) {
+		int pruned = 0;
+		boolean removedBlocks;
+		do {
+			pruned += removeUnreachable(className, method);
+			for(AbstractInsnNode insn = method.instructions.getFirst(), next; insn != null; insn = next) {
+				next = insn.getNext();
+				if(insn.getOpcode() != Opcodes.GOTO || !isNext(insn, ((JumpInsnNode)insn).label)) continue; // остаток свёрнутого перехода
+
+				// Фрейм перед переходом оказался бы на одном смещении с фреймом метки. Фрейм метки учитывает оба пути
+				FrameNode before = getFrame(insn, false), after = getFrame(insn, true);
+				if(before != null && after != null) {
+					expandFrames(className, method);
+					method.instructions.remove(before);
+				}
+				method.instructions.remove(insn);
+				pruned++;
+			}
+
+			removedBlocks = method.tryCatchBlocks != null && ((List<TryCatchBlockNode>)method.tryCatchBlocks).removeIf(block -> {
+				for(AbstractInsnNode insn = block.start; insn != block.end; insn = insn.getNext()) {
+					if(insn.getOpcode() >= 0) return false;
+				}
+				return true;
+			});
+		} while(removedBlocks);
+		return pruned;
+	}
+
+	private static int removeUnreachable(String className, MethodNode method) {
+		Frame[] frames;
+		try {
+			frames = new Analyzer(new BasicInterpreter()).analyze(className, method);
+		} catch (AnalyzerException ex) {
+			throw new IllegalStateException("Can't analyze " + className + "." + method.name + method.desc, ex);
+		}
+
+		AbstractInsnNode[] insns = method.instructions.toArray();
+		for(int i = 0; i < insns.length; i++) {
+			if(frames[i] == null && insns[i].getType() == AbstractInsnNode.FRAME) {
+				expandFrames(className, method);
+				break;
+			}
+		}
+
+		int pruned = 0;
+		for(int i = 0; i < insns.length; i++) {
+			if(frames[i] != null || insns[i].getType() == AbstractInsnNode.LABEL) continue;
+			if(insns[i].getOpcode() >= 0) pruned++;
+			method.instructions.remove(insns[i]);
+		}
+		return pruned;
+	}
+
+	/**
+	 * @param insn Инструкция
+	 * @param forward Искать после инструкции, иначе перед ней
+	 * @return Фрейм, отделённый от инструкции только метками и номерами строк, или null
+	 */
+	private static FrameNode getFrame(AbstractInsnNode insn, boolean forward) {
+		for(AbstractInsnNode node = forward ? insn.getNext() : insn.getPrevious(); node != null && node.getOpcode() < 0; node = forward ? node.getNext() : node.getPrevious()) {
+			if(node.getType() == AbstractInsnNode.FRAME) return (FrameNode)node;
+		}
+		return null;
+	}
+
+	/**
+	 * @return true, если между инструкцией и меткой нет других инструкций, то есть переход на метку не нужен
+	 */
+	private static boolean isNext(AbstractInsnNode insn, LabelNode label) {
+		for(AbstractInsnNode next = insn.getNext(); next != null && next.getOpcode() < 0; next = next.getNext()) {
+			if(next == label) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Заменяет сжатые фреймы метода полными
+	 */
+	@SuppressWarnings("unchecked")
+	private static void expandFrames(String className, MethodNode method) {
+		List<Object> locals = new ArrayList<>();
+		List<Object> stack = new ArrayList<>();
+		if((method.access & Opcodes.ACC_STATIC) == 0) locals.add(method.name.equals(AnnotationProccessor.OBJECT_CONSTRUCTOR) ? Opcodes.UNINITIALIZED_THIS : className);
+		for(Type type : Type.getArgumentTypes(method.desc)) {
+			locals.add(getFrameType(type));
+		}
+
+		for(AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext()) {
+			if(insn.getType() != AbstractInsnNode.FRAME) continue;
+
+			FrameNode frame = (FrameNode)insn;
+			switch(frame.type) {
+				case Opcodes.F_NEW:
+					return; // фреймы уже полные
+				case Opcodes.F_FULL:
+					locals = new ArrayList<>(frame.local);
+					stack = new ArrayList<>(frame.stack);
+					break;
+				case Opcodes.F_APPEND:
+					locals.addAll(frame.local);
+					stack.clear();
+					break;
+				case Opcodes.F_CHOP:
+					locals.subList(locals.size() - frame.local.size(), locals.size()).clear();
+					stack.clear();
+					break;
+				case Opcodes.F_SAME:
+					stack.clear();
+					break;
+				case Opcodes.F_SAME1:
+					stack = new ArrayList<>(frame.stack);
+					break;
+			}
+			frame.type = Opcodes.F_FULL;
+			frame.local = new ArrayList<>(locals);
+			frame.stack = new ArrayList<>(stack);
+		}
+	}
+
+	private static Object getFrameType(Type type) {
+		switch(type.getSort()) {
+			case Type.BOOLEAN:
+			case Type.CHAR:
+			case Type.BYTE:
+			case Type.SHORT:
+			case Type.INT:
+				return Opcodes.INTEGER;
+			case Type.FLOAT:
+				return Opcodes.FLOAT;
+			case Type.LONG:
+				return Opcodes.LONG;
+			case Type.DOUBLE:
+				return Opcodes.DOUBLE;
+			default:
+				return type.getInternalName(); // для массивов - дескриптор
+		}
+	}
+
+}
@@ -0,0 +1,155 @@
+package ru.redserver.coderemover;
+
+import java.util.Collection;
+
+/**
+ * Быстрый фильтр классов по пулу констант. Проверяет, содержит ли класс одну из заданных строк (Utf8 констант),
+ * не разбирая класс целиком и не создавая объектов.
+ * @author Nuclear
+ */
+public final class ConstantPoolFilter {
+
+	private final byte[][] table; // открытая адресация, строки в modified UTF-8
+	private final int mask;
+	private final int size;
+
+	public ConstantPoolFilter(Collection<String> strings) {
+		int capacity = Integer.highestOneBit(Math.max(strings.size(), 1) * 2 + 1) << 1;
+		this.table = new byte[capacity][];
+		this.mask = capacity - 1;
+
+		int count = 0;
+		for(String string : strings) {
+			byte[] bytes = encode(string);
+			int i = hash(bytes, 0, bytes.length) & mask;
+			boolean found = false;
+			while(table[i] != null) {
+				if(equals(table[i], bytes, 0, bytes.length)) {
+					found = true;
+					break;
+				}
+				i = (i + 1) & mask;
+			}
+			if(!found) {
+				table[i] = bytes;
+				count++;
+			}
+		}
+		this.size = count;
+	}
+
+	/**
+	 * @return true, если фильтр не содержит строк
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Проверяет пул констант класса
+	 * @param b Байт-код класса
+	 * @return true, если одна из Utf8 констант класса совпадает со строкой фильтра
+	 */
+	public boolean matches(byte[] b) {
+		if(size == 0) return false;
+
+		int count = readUnsignedShort(b, 8);
+		int offset = 10;
+		for(int i = 1; i < count; i++) {
+			switch(b[offset]) {
+				case 1: // Utf8
+					int length = readUnsignedShort(b, offset + 1);
+					if(contains(b, offset + 3, length)) return true;
+					offset += 3 + length;
+					break;
+				case 3: // Integer
+				case 4: // Float
+				case 9: // Fieldref
+				case 10: // Methodref
+				case 11: // InterfaceMethodref
+				case 12: // NameAndType
+				case 17: // Dynamic
+				case 18: // InvokeDynamic
+					offset += 5;
+					break;
+				case 5: // Long
+				case 6: // Double
+					offset += 9;
+					i++; // занимает две ячейки
+					break;
+				case 15: // MethodHandle
+					offset += 4;
+					break;
+				case 7: // Class
+				case 8: // String
+				case 16: // MethodType
+				case 19: // Module
+				case 20: // Package
+					offset += 3;
+					break;
+				default:
+					throw new IllegalArgumentException("Bad constant pool tag: " + b[offset]);
+			}
+		}
+		return false;
+	}
+
+	private boolean contains(byte[] b, int offset, int length) {
+		int i = hash(b, offset, length) & mask;
+		byte[] entry;
+		while((entry = table[i]) != null) {
+			if(equals(entry, b, offset, length)) return true;
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	private static int hash(byte[] b, int offset, int length) {
+		int h = length;
+		for(int i = offset; i < offset + length; i++) {
+			h = 31 * h + b[i];
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean equals(byte[] entry, byte[] b, int offset, int length) {
+		if(entry.length != length) return false;
+		for(int i = 0; i < length; i++) {
+			if(entry[i] != b[offset + i]) return false;
+		}
+		return true;
+	}
+
+	private static int readUnsignedShort(byte[] b, int offset) {
+		return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+	}
+
+	/**
+	 * Кодирует строку в modified UTF-8, как она хранится в пуле констант
+	 */
+	private static byte[] encode(String string) {
+		int length = 0;
+		for(int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+			length += (c >= 0x0001 && c <= 0x007F) ? 1 : (c <= 0x07FF ? 2 : 3);
+		}
+
+		byte[] bytes = new byte[length];
+		int pos = 0;
+		for(int i = 0; i < string.length(); i++) {
+			char c = string.charAt(i);
+			if(c >= 0x0001 && c <= 0x007F) {
+				bytes[pos++] = (byte)c;
+			} else if(c <= 0x07FF) {
+				bytes[pos++] = (byte)(0xC0 | ((c >> 6) & 0x1F));
+				bytes[pos++] = (byte)(0x80 | (c & 0x3F));
+			} else {
+				bytes[pos++] = (byte)(0xE0 | ((c >> 12) & 0x0F));
+				bytes[pos++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+				bytes[pos++] = (byte)(0x80 | (c & 0x3F));
+			}
+		}
+		return bytes;
+	}
+
+}
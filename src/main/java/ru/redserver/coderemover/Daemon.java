@@ -0,0 +1,187 @@
+package ru.redserver.coderemover;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+
+/**
+ * Фоновый процесс, принимающий задания через локальный сокет. JVM и JIT остаются прогретыми между заданиями,
+ * задания выполняются одновременно в общем пуле потоков.
+ * <p>
+ * Протокол: клиент отправляет одну строку - ключ доступа, рабочий каталог и аргументы запуска, разделённые символом '\0'.
+ * Сервер отвечает строкой "OK" или "ERROR &lt;сообщение&gt;". Строка "&lt;ключ&gt;\0shutdown" останавливает сервер.
+ * <p>
+ * Задания читают и записывают любые файлы с правами владельца процесса, поэтому сокет принимает только запросы
+ * с ключом доступа. Случайный ключ создаётся при запуске и записывается в файл ~/.coderemover/daemon-&lt;порт&gt;.token,
+ * доступный только владельцу; клиент читает ключ из этого файла. Файл удаляется при остановке.
+ * @author Nuclear
+ */
+public final class Daemon {
+
+	private static final char SEPARATOR = '\0';
+	private static final String SHUTDOWN = "shutdown";
+	private static final int TOKEN_BYTES = 32;
+
+	private final CodeRemover remover;
+	private final ForkJoinPool pool;
+	private volatile boolean running = true;
+	private byte[] token;
+
+	public Daemon(CodeRemover remover, ForkJoinPool pool) {
+		this.remover = remover;
+		this.pool = pool;
+	}
+
+	/**
+	 * Принимает задания, пока не будет получена команда остановки
+	 * @param port Порт на локальном интерфейсе
+	 * @throws IOException Ошибка сокета
+	 */
+	public void serve(int port) throws IOException {
+		ExecutorService connections = Executors.newCachedThreadPool();
+		Path tokenFile = null;
+		try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+			tokenFile = getTokenFile(server.getLocalPort());
+			token = createToken(tokenFile);
+			SimpleLogger.instance.log(Level.INFO, "Daemon listening on port {0,number,#}, access token: {1}.", new Object[]{server.getLocalPort(), tokenFile});
+			while(running) {
+				Socket socket = server.accept();
+				connections.execute(() -> handle(socket, server));
+			}
+		} catch (IOException ex) {
+			if(running) throw ex; // сокет закрыт командой остановки
+		} finally {
+			connections.shutdown();
+			if(tokenFile != null) Files.deleteIfExists(tokenFile);
+		}
+		SimpleLogger.instance.info("Daemon stopped.");
+	}
+
+	private void handle(Socket socket, ServerSocket server) {
+		try (Socket client = socket;
+				BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+				Writer writer = new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8)) {
+			String line = reader.readLine();
+			if(line == null) return;
+
+			int sep = line.indexOf(SEPARATOR);
+			String response;
+			if(sep < 0 || !MessageDigest.isEqual(token, line.substring(0, sep).getBytes(StandardCharsets.US_ASCII))) {
+				SimpleLogger.instance.log(Level.WARNING, "Rejected request without valid access token from {0}.", client.getRemoteSocketAddress());
+				response = "ERROR Invalid access token";
+			} else if((line = line.substring(sep + 1)).equals(SHUTDOWN)) {
+				running = false;
+				server.close();
+				response = "OK";
+			} else {
+				response = runJob(line);
+			}
+			writer.write(response);
+			writer.write('\n');
+			writer.flush();
+		} catch (IOException ex) {
+			SimpleLogger.instance.log(Level.WARNING, "Connection error", ex);
+		}
+	}
+
+	private String runJob(String line) {
+		List<String> fields = Arrays.asList(line.split(String.valueOf(SEPARATOR), -1));
+		try {
+			Options options = Options.parse(fields.subList(1, fields.size()));
+			options.resolve(Paths.get(fields.get(0)));
+			remover.execute(options, pool);
+			return "OK";
+		} catch (Exception ex) {
+			SimpleLogger.instance.log(Level.SEVERE, "Job failed: " + fields.subList(1, fields.size()), ex);
+			return "ERROR " + String.valueOf(ex).replace('\n', ' ');
+		}
+	}
+
+	/**
+	 * Создаёт ключ доступа и записывает его в файл, доступный только владельцу. Файл прежнего процесса заменяется
+	 * @param file Файл ключа
+	 * @return Ключ в шестнадцатеричной записи
+	 * @throws IOException Ошибка записи
+	 */
+	private static byte[] createToken(Path file) throws IOException {
+		byte[] random = new byte[TOKEN_BYTES];
+		new SecureRandom().nextBytes(random);
+		StringBuilder hex = new StringBuilder(TOKEN_BYTES * 2);
+		for(byte b : random) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		byte[] token = hex.toString().getBytes(StandardCharsets.US_ASCII);
+
+		boolean posix = file.getFileSystem().supportedFileAttributeViews().contains("posix");
+		if(posix) {
+			if(!Files.isDirectory(file.getParent())) Files.createDirectories(file.getParent(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+			Files.deleteIfExists(file);
+			Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))); // права задаются при создании, до записи ключа
+		} else { // каталог пользователя защищён правами доступа системы
+			Files.createDirectories(file.getParent());
+			Files.deleteIfExists(file);
+			Files.createFile(file);
+		}
+		Files.write(file, token, StandardOpenOption.TRUNCATE_EXISTING);
+		return token;
+	}
+
+	private static Path getTokenFile(int port) {
+		return Paths.get(System.getProperty("user.home"), ".coderemover", "daemon-" + port + ".token");
+	}
+
+	/**
+	 * Отправляет задание фоновому процессу и ожидает его завершения. Ключ доступа читается из файла ключа процесса
+	 * @param port Порт фонового процесса
+	 * @param args Аргументы запуска или "shutdown"
+	 * @return true, если задание выполнено успешно
+	 * @throws IOException Ошибка соединения
+	 */
+	public static boolean submit(int port, List<String> args) throws IOException {
+		Path tokenFile = getTokenFile(port);
+		if(!Files.isRegularFile(tokenFile)) throw new IOException("Daemon access token not found: " + tokenFile);
+		List<String> fields = new ArrayList<>();
+		fields.add(new String(Files.readAllBytes(tokenFile), StandardCharsets.US_ASCII).trim());
+		if(args.size() == 1 && args.get(0).equals(SHUTDOWN)) {
+			fields.add(SHUTDOWN);
+		} else {
+			fields.add(Paths.get("").toAbsolutePath().toString());
+			fields.addAll(args);
+		}
+		String request = String.join(String.valueOf(SEPARATOR), fields);
+
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+				BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+				Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+			writer.write(request);
+			writer.write('\n');
+			writer.flush();
+
+			String response = reader.readLine();
+			if(response == null) throw new IOException("Daemon closed connection");
+			if(!response.equals("OK")) SimpleLogger.instance.severe(response);
+			return response.equals("OK");
+		}
+	}
+
+}
@@ -0,0 +1,161 @@
+package ru.redserver.coderemover;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * ClassWriter, пересчитывающий фреймы и размеры стека только для изменённых методов: методы, которые
+ * ClassReader передаёт без изменений, копируются из исходного класса вместе со старыми фреймами.
+ * Общий родительский класс определяется по иерархии классов с учётом удалённых классов, без загрузки классов.
+ * @author Nuclear
+ */
+final class FrameWriter extends ClassWriter {
+
+	private final Resolver resolver;
+
+	/**
+	 * @param reader Исходный класс. Неизменённые методы копируются из него
+	 * @param resolver Поиск общих родительских классов
+	 */
+	FrameWriter(ClassReader reader, Resolver resolver) {
+		super(reader, getFlags(reader));
+		this.resolver = resolver;
+	}
+
+	/**
+	 * Пересчитывает фреймы всех методов: класс пишется без копирования из исходного
+	 * @param flags Флаги ClassWriter, см. {@link #getFlags(ClassReader)}
+	 * @param resolver Поиск общих родительских классов
+	 */
+	FrameWriter(int flags, Resolver resolver) {
+		super(flags);
+		this.resolver = resolver;
+	}
+
+	/**
+	 * Классы до Java 6 не содержат фреймов, для них пересчитываются только размеры стека и локальных переменных
+	 */
+	static int getFlags(ClassReader reader) {
+		return reader.readUnsignedShort(6) >= Opcodes.V1_6 ? COMPUTE_FRAMES : COMPUTE_MAXS;
+	}
+
+	@Override
+	protected String getCommonSuperClass(String type1, String type2) {
+		return resolver.getCommonSuperclass(type1, type2);
+	}
+
+	/**
+	 * Пересчитывает фреймы указанных методов записанного класса
+	 * @param classBytes Байт-код класса
+	 * @param methods Изменённые методы
+	 * @param resolver Поиск общих родительских классов
+	 * @return Байт-код класса
+	 */
+	static byte[] recompute(byte[] classBytes, MemberSet methods, Resolver resolver) {
+		ClassReader reader = new ClassReader(classBytes);
+		ClassWriter writer = new FrameWriter(reader, resolver);
+		reader.accept(new ClassVisitor(Opcodes.ASM5, writer) {
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+				MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+				if(mv == null || !methods.contains(name, desc)) return mv; // копируется как есть
+				return new MethodVisitor(Opcodes.ASM5, mv) {
+				};
+			}
+		}, 0);
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Поиск общих родительских классов для одного профиля. Родители берутся из иерархии классов, удалённые классы
+	 * заменяются их неудалёнными родителями. Классы платформы, которых нет в иерархии, читаются как ресурсы
+	 * (только заголовок без проверки версии класса, класс не загружается). Если слияние затрагивает неизвестный класс,
+	 * обработка прерывается, как в ClassWriter: считать его наследником java/lang/Object значит записать фреймы,
+	 * которые не пройдут проверку байт-кода. Результаты кэшируются, потокобезопасен.
+	 */
+	static final class Resolver {
+
+		private static final String OBJECT = "java/lang/Object";
+
+		private final AnnotationProccessor processor;
+		private final Map<String, String> common = new ConcurrentHashMap<>();
+		private final Map<String, Optional<ClassHierarchy.Header>> platform = new ConcurrentHashMap<>();
+
+		Resolver(AnnotationProccessor processor) {
+			this.processor = processor;
+		}
+
+		String getCommonSuperclass(String type1, String type2) {
+			if(type1.equals(type2)) return type1;
+
+			String key = type1.concat(" ").concat(type2);
+			String result = common.get(key);
+			if(result == null) {
+				result = findCommonSuperclass(type1, type2);
+				common.put(key, result);
+			}
+			return result;
+		}
+
+		private String findCommonSuperclass(String type1, String type2) {
+			if(isInterface(type1) || isInterface(type2)) return OBJECT; // как в ClassWriter
+			for(String superclass = type1; superclass != null; superclass = getSuperclass(superclass)) {
+				for(String type = type2; type != null; type = getSuperclass(type)) {
+					if(type.equals(superclass)) return superclass;
+				}
+			}
+			return OBJECT;
+		}
+
+		private String getSuperclass(String name) {
+			if(name.equals(OBJECT)) return null;
+
+			ClassHierarchy hierarchy = processor.getHierarchy();
+			if(hierarchy != null && hierarchy.getKind(name) != ClassHierarchy.UNKNOWN) {
+				return processor.getSuperclass(hierarchy.getSuperclass(name));
+			}
+			return getPlatformHeader(name).superName;
+		}
+
+		private boolean isInterface(String name) {
+			ClassHierarchy hierarchy = processor.getHierarchy();
+			if(hierarchy != null && hierarchy.getKind(name) != ClassHierarchy.UNKNOWN) return hierarchy.isInterface(name);
+			return (getPlatformHeader(name).access & Opcodes.ACC_INTERFACE) != 0;
+		}
+
+		/**
+		 * @param name Имя класса платформы
+		 * @return Заголовок класса
+		 * @throws IllegalStateException Класс не найден или не читается
+		 */
+		private ClassHierarchy.Header getPlatformHeader(String name) {
+			Optional<ClassHierarchy.Header> header = platform.computeIfAbsent(name, key -> {
+				try (InputStream in = ClassLoader.getSystemResourceAsStream(key.concat(".class"))) {
+					if(in == null) return Optional.empty();
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					byte[] buffer = new byte[8192];
+					int read;
+					while((read = in.read(buffer)) >= 0) {
+						bytes.write(buffer, 0, read);
+					}
+					return Optional.of(new ClassHierarchy.Header(bytes.toByteArray()));
+				} catch (IOException | IllegalArgumentException ex) {
+					return Optional.empty();
+				}
+			});
+			if(!header.isPresent()) throw new IllegalStateException("Can't recompute frames: class " + name + " is not found, add its library to --classpath");
+			return header.get();
+		}
+
+	}
+
+}
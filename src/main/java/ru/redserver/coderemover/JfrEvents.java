@@ -0,0 +1,91 @@
+package ru.redserver.coderemover;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * События Java Flight Recorder для фаз обработки. Если JFR недоступен (старые сборки Java 8),
+ * классы событий не загружаются и замеры пишутся только в отчёт метрик.
+ * @author Nuclear
+ */
+final class JfrEvents {
+
+	private static final boolean AVAILABLE = isAvailable();
+
+	private JfrEvents() {
+	}
+
+	/**
+	 * Начинает событие
+	 * @param phase Фаза
+	 * @param className Имя класса или null
+	 * @return Событие или null, если JFR недоступен или запись события выключена
+	 */
+	static Object begin(Metrics.Phase phase, String className) {
+		if(!AVAILABLE) return null;
+		return Events.begin(phase, className);
+	}
+
+	static void commit(Object event) {
+		((Event)event).commit();
+	}
+
+	private static boolean isAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event", false, JfrEvents.class.getClassLoader());
+			return true;
+		} catch (ClassNotFoundException | LinkageError ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Создание событий вынесено в отдельный класс, чтобы не загружать классы JFR без необходимости
+	 */
+	private static final class Events {
+
+		static Object begin(Metrics.Phase phase, String className) {
+			Event event;
+			if(className == null) {
+				PhaseEvent phaseEvent = new PhaseEvent();
+				phaseEvent.phase = phase.name();
+				event = phaseEvent;
+			} else {
+				ClassEvent classEvent = new ClassEvent();
+				classEvent.phase = phase.name();
+				classEvent.className = className;
+				event = classEvent;
+			}
+			if(!event.isEnabled()) return null;
+			event.begin();
+			return event;
+		}
+
+	}
+
+	@Name("ru.redserver.coderemover.Phase")
+	@Label("CodeRemover Phase")
+	@Category("CodeRemover")
+	static final class PhaseEvent extends Event {
+
+		@Label("Phase")
+		String phase;
+
+	}
+
+	@Name("ru.redserver.coderemover.Class")
+	@Label("CodeRemover Class")
+	@Category("CodeRemover")
+	static final class ClassEvent extends Event {
+
+		@Label("Phase")
+		String phase;
+
+		@Label("Class")
+		String className;
+
+	}
+
+}
@@ -0,0 +1,16 @@
+package ru.redserver.coderemover;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Класс или элемент, который не удаляется при сокращении архива (--shrink), даже если он недостижим
+ * из точек входа. Например, классы и методы, используемые через рефлексию. Аннотация класса сохраняет все его элементы.
+ */
+@Target({ElementType.METHOD, ElementType.FIELD, ElementType.TYPE, ElementType.CONSTRUCTOR})
+@Retention(RetentionPolicy.CLASS)
+public @interface Keep {
+
+}
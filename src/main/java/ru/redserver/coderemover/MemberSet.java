@@ -0,0 +1,60 @@
+package ru.redserver.coderemover;
+
+/**
+ * Множество элементов класса (имя + описание) с открытой адресацией. Проверка не создаёт объектов:
+ * хэш строится из закэшированных хэшей имени и описания, без склеивания строк.
+ * @author Nuclear
+ */
+final class MemberSet {
+
+	private String[] names = new String[8];
+	private String[] descs = new String[8];
+	private int size = 0;
+
+	/**
+	 * @param name Имя элемента
+	 * @param desc Описание элемента
+	 * @return true, если элемент добавлен, false - если уже был в множестве
+	 */
+	boolean add(String name, String desc) {
+		if((size + 1) * 2 > names.length) grow();
+		int i = indexOf(name, desc);
+		if(names[i] != null) return false;
+		names[i] = name;
+		descs[i] = desc;
+		size++;
+		return true;
+	}
+
+	boolean contains(String name, String desc) {
+		return size != 0 && names[indexOf(name, desc)] != null;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	private int indexOf(String name, String desc) {
+		int mask = names.length - 1;
+		int h = name.hashCode() * 31 + desc.hashCode();
+		int i = (h ^ (h >>> 16)) & mask;
+		while(names[i] != null && !(names[i].equals(name) && descs[i].equals(desc))) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	private void grow() {
+		String[] oldNames = names, oldDescs = descs;
+		names = new String[oldNames.length * 2];
+		descs = new String[oldNames.length * 2];
+		for(int i = 0; i < oldNames.length; i++) {
+			if(oldNames[i] != null) {
+				int j = indexOf(oldNames[i], oldDescs[i]);
+				names[j] = oldNames[i];
+				descs[j] = oldDescs[i];
+			}
+		}
+	}
+
+}
@@ -0,0 +1,303 @@
+package ru.redserver.coderemover;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Метрики одного запуска: время фаз в наносекундах, объём данных по типам записей, счётчики удалений
+ * и самые медленные классы. Потокобезопасен. Выводится в JSON отчёт и в события JFR.
+ * @author Nuclear
+ */
+public final class Metrics {
+
+	/**
+	 * Фазы обработки. Время фаз, выполняемых параллельно (разбор, изменение, сериализация, сжатие), суммируется по всем потокам
+	 */
+	public enum Phase {
+		READ, HIERARCHY, PARSE, REMOVE_CLASSES, PLAN, PROCESS_CLASSES, TRANSFORM, SHRINK, SERIALIZE, COMPRESS, WRITE
+	}
+
+	/**
+	 * Типы записей архива
+	 */
+	public enum EntryType {
+		CLASS, RESOURCE, MANIFEST, DIRECTORY
+	}
+
+	public enum Counter {
+		REMOVED_CLASSES, REMOVED_INTERFACES, REMOVED_SUBCLASSES, REMOVED_FIELDS, REMOVED_METHODS,
+		REMOVED_INTERFACE_USAGES, INHERITED_INTERFACES, CHANGED_SUPERCLASSES, REWRITTEN_INSTRUCTIONS,
+		SUBSTITUTED_FLAGS, FOLDED_BRANCHES, PRUNED_INSTRUCTIONS,
+		SHRUNK_CLASSES, SHRUNK_METHODS, SHRUNK_FIELDS, TRANSFORMED_CLASSES, PASSED_THROUGH_CLASSES,
+		STRIPPED_DEBUG_BYTES, STRIPPED_ANNOTATION_BYTES, STRIPPED_INNER_CLASS_BYTES
+	}
+
+	private static final int SLOWEST_CLASSES = 20;
+
+	private final Map<Phase, LongAdder> phases = new EnumMap<>(Phase.class);
+	private final Map<Counter, LongAdder> counters = new EnumMap<>(Counter.class);
+	private final Map<EntryType, LongAdder[]> bytes = new EnumMap<>(EntryType.class); // count, in, out, compressed out
+	private final PriorityQueue<ClassTime> slowest = new PriorityQueue<>(Comparator.comparingLong(time -> time.nanos));
+	private final ThreadLocal<Recording> recordings = new ThreadLocal<>(); // запись счётчиков обрабатываемого класса
+
+	public Metrics() {
+		for(Phase phase : Phase.values()) {
+			phases.put(phase, new LongAdder());
+		}
+		for(Counter counter : Counter.values()) {
+			counters.put(counter, new LongAdder());
+		}
+		for(EntryType type : EntryType.values()) {
+			bytes.put(type, new LongAdder[]{new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder()});
+		}
+	}
+
+	/**
+	 * Начинает замер фазы. Замер завершается вызовом {@link PhaseTimer#close()}
+	 * @param phase Фаза
+	 * @return Замер
+	 */
+	public PhaseTimer time(Phase phase) {
+		return new PhaseTimer(phase, null);
+	}
+
+	/**
+	 * Начинает замер обработки одного класса. Время также учитывается в списке самых медленных классов
+	 * @param phase Фаза
+	 * @param className Имя класса
+	 * @return Замер
+	 */
+	public PhaseTimer time(Phase phase, String className) {
+		return new PhaseTimer(phase, className);
+	}
+
+	public void addTime(Phase phase, long nanos) {
+		phases.get(phase).add(nanos);
+	}
+
+	public long getTime(Phase phase) {
+		return phases.get(phase).sum();
+	}
+
+	public void increment(Counter counter) {
+		add(counter, 1);
+	}
+
+	public void add(Counter counter, long value) {
+		counters.get(counter).add(value);
+		Recording recording = recordings.get();
+		if(recording != null) recording.values.merge(counter, value, Long::sum);
+	}
+
+	/**
+	 * Начинает запись счётчиков, изменённых текущим потоком, например при обработке класса, сохраняемого в кэш.
+	 * Запись завершается вызовом {@link Recording#close()}
+	 * @return Запись
+	 */
+	public Recording record() {
+		Recording recording = new Recording();
+		recordings.set(recording);
+		return recording;
+	}
+
+	/**
+	 * Повторно учитывает записанные счётчики, например для класса, взятого из кэша
+	 * @param values Значения счётчиков
+	 */
+	public void replay(Map<Counter, Long> values) {
+		values.forEach((counter, value) -> counters.get(counter).add(value));
+	}
+
+	public long get(Counter counter) {
+		return counters.get(counter).sum();
+	}
+
+	/**
+	 * Учитывает прочитанную запись
+	 * @param type Тип записи
+	 * @param size Размер распакованных данных
+	 */
+	public void addInput(EntryType type, long size) {
+		LongAdder[] values = bytes.get(type);
+		values[0].increment();
+		values[1].add(size);
+	}
+
+	/**
+	 * Учитывает записанную запись
+	 * @param type Тип записи
+	 * @param size Размер распакованных данных
+	 * @param compressedSize Размер сжатых данных
+	 */
+	public void addOutput(EntryType type, long size, long compressedSize) {
+		LongAdder[] values = bytes.get(type);
+		values[2].add(size);
+		values[3].add(compressedSize);
+	}
+
+	private void addClassTime(String className, long nanos) {
+		synchronized(slowest) {
+			if(slowest.size() < SLOWEST_CLASSES) {
+				slowest.add(new ClassTime(className, nanos));
+			} else if(slowest.peek().nanos < nanos) {
+				slowest.poll();
+				slowest.add(new ClassTime(className, nanos));
+			}
+		}
+	}
+
+	/**
+	 * Записывает отчёт в формате JSON
+	 * @param path Файл отчёта
+	 * @param options Параметры запуска
+	 * @throws IOException Ошибка записи
+	 */
+	public void writeJson(Path path, Options options) throws IOException {
+		List<ClassTime> classes;
+		synchronized(slowest) {
+			classes = new ArrayList<>(slowest);
+		}
+		classes.sort(Comparator.comparingLong((ClassTime time) -> time.nanos).reversed());
+
+		try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+			writer.write("{\n  \"input\": ");
+			writeString(writer, options.inputFile.toString());
+			writer.write(",\n  \"outputs\": [");
+			List<Path> outputs = options.getOutputFiles();
+			for(int i = 0; i < outputs.size(); i++) {
+				if(i > 0) writer.write(", ");
+				writeString(writer, outputs.get(i).toString());
+			}
+
+			writer.write("],\n  \"phasesNanos\": {");
+			int i = 0;
+			for(Phase phase : Phase.values()) {
+				writer.write((i++ > 0 ? "," : "") + "\n    \"" + toCamelCase(phase.name()) + "\": " + getTime(phase));
+			}
+
+			writer.write("\n  },\n  \"counters\": {");
+			i = 0;
+			for(Counter counter : Counter.values()) {
+				writer.write((i++ > 0 ? "," : "") + "\n    \"" + toCamelCase(counter.name()) + "\": " + get(counter));
+			}
+
+			writer.write("\n  },\n  \"entries\": {");
+			i = 0;
+			for(EntryType type : EntryType.values()) {
+				LongAdder[] values = bytes.get(type);
+				writer.write((i++ > 0 ? "," : "") + "\n    \"" + toCamelCase(type.name()) + "\": {\"count\": " + values[0].sum()
+						+ ", \"bytesIn\": " + values[1].sum() + ", \"bytesOut\": " + values[2].sum() + ", \"compressedBytesOut\": " + values[3].sum() + "}");
+			}
+
+			writer.write("\n  },\n  \"slowestClasses\": [");
+			i = 0;
+			for(ClassTime time : classes) {
+				writer.write((i++ > 0 ? "," : "") + "\n    {\"name\": ");
+				writeString(writer, time.className);
+				writer.write(", \"nanos\": " + time.nanos + "}");
+			}
+			writer.write("\n  ]\n}\n");
+		}
+	}
+
+	static void writeString(Writer writer, String value) throws IOException {
+		writer.write('"');
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c == '"' || c == '\\') {
+				writer.write('\\');
+				writer.write(c);
+			} else if(c < 0x20) {
+				writer.write(String.format("\\u%04x", (int)c));
+			} else {
+				writer.write(c);
+			}
+		}
+		writer.write('"');
+	}
+
+	private static String toCamelCase(String name) {
+		StringBuilder builder = new StringBuilder(name.length());
+		boolean upper = false;
+		for(char c : name.toCharArray()) {
+			if(c == '_') {
+				upper = true;
+			} else {
+				builder.append(upper ? c : Character.toLowerCase(c));
+				upper = false;
+			}
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Замер времени фазы. Одновременно записывает событие JFR, если запись включена
+	 */
+	public final class PhaseTimer implements AutoCloseable {
+
+		private final Phase phase;
+		private final String className;
+		private final Object event;
+		private final long start;
+
+		private PhaseTimer(Phase phase, String className) {
+			this.phase = phase;
+			this.className = className;
+			this.event = JfrEvents.begin(phase, className);
+			this.start = System.nanoTime();
+		}
+
+		@Override
+		public void close() {
+			long nanos = System.nanoTime() - start;
+			addTime(phase, nanos);
+			if(className != null) addClassTime(className, nanos);
+			if(event != null) JfrEvents.commit(event);
+		}
+
+	}
+
+	public final class Recording implements AutoCloseable {
+
+		private final Map<Counter, Long> values = new EnumMap<>(Counter.class);
+
+		private Recording() {
+		}
+
+		/**
+		 * @return Изменения счётчиков с начала записи
+		 */
+		public Map<Counter, Long> getValues() {
+			return values;
+		}
+
+		@Override
+		public void close() {
+			recordings.remove();
+		}
+
+	}
+
+	private static final class ClassTime {
+
+		final String className;
+		final long nanos;
+
+		ClassTime(String className, long nanos) {
+			this.className = className;
+			this.nanos = nanos;
+		}
+
+	}
+
+}
@@ -0,0 +1,347 @@
+package ru.redserver.coderemover;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import ru.redserver.coderemover.io.Compression;
+
+/**
+ * Параметры запуска, полученные из командной строки
+ * @author Nuclear
+ */
+public final class Options {
+
+	public static final String ENGINE_TREE = "tree";
+	public static final String ENGINE_VISITOR = "visitor";
+
+	/**
+	 * Входной файл
+	 */
+	public Path inputFile;
+
+	/**
+	 * Выходной файл
+	 */
+	public Path outputFile;
+
+	/**
+	 * Записывать все выходные пути каталогами (--output-dir)
+	 */
+	public boolean outputDir = false;
+
+	/**
+	 * Выходные пути, указанные с разделителем в конце (out/): записываются каталогами
+	 */
+	public final Set<Path> outputDirs = new HashSet<>();
+
+	/**
+	 * Профили сборки и их выходные файлы. Если указаны, архив читается один раз и обрабатывается для каждого профиля
+	 */
+	public final Map<String, Path> profiles = new LinkedHashMap<>();
+
+	/**
+	 * Режим удаления классов без применения исправлений
+	 */
+	public boolean removeOnly = false;
+
+	/**
+	 * Потоковый режим: архив читается дважды, в памяти находится только обрабатываемый класс
+	 */
+	public boolean streaming = false;
+
+	/**
+	 * Каталог кэша обработанных классов или null
+	 */
+	public Path cacheDir;
+
+	/**
+	 * Максимальный размер кэша в байтах
+	 */
+	public long cacheSize = 256L * 1024 * 1024;
+
+	/**
+	 * Библиотеки, используемые для построения иерархии классов. Из них читаются только заголовки классов
+	 */
+	public final List<Path> classpath = new ArrayList<>();
+
+	/**
+	 * Способ обработки классов: tree - разбор в дерево ClassNode, visitor - один проход ClassReader -> ClassWriter
+	 */
+	public String engine = ENGINE_TREE;
+
+	/**
+	 * Пересчитывать фреймы и размеры стека изменённых методов по иерархии классов
+	 */
+	public boolean frames = false;
+
+	/**
+	 * Флаги сборки: [профиль:]класс.поле=значение. Чтение поля заменяется значением, недостижимый код удаляется
+	 */
+	public final List<String> flags = new ArrayList<>();
+
+	/**
+	 * Класс, static final поля которого с константным значением используются как флаги сборки, или null
+	 */
+	public String flagsClass;
+
+	/**
+	 * Удалять классы, методы и поля, недостижимые из точек входа
+	 */
+	public boolean shrink = false;
+
+	/**
+	 * Шаблоны имён классов, сохраняемых при сокращении целиком (com.example.api.**, com.example.*Impl)
+	 */
+	public final List<String> keep = new ArrayList<>();
+
+	/**
+	 * Данные, удаляемые из выходных классов: отладочная информация, аннотации {@link Removable}, записи InnerClasses удалённых классов
+	 */
+	public final Set<Strip> strip = EnumSet.noneOf(Strip.class);
+
+	/**
+	 * Шаблоны имён вложенных архивов (META-INF/jars/*.jar), обрабатываемых вместе с внешним архивом
+	 */
+	public final List<String> nested = new ArrayList<>();
+
+	/**
+	 * Степень сжатия выходного архива или null: неизменённые записи копируются без перепаковки
+	 */
+	public Compression compression;
+
+	/**
+	 * Трассировка загрузки классов (-Xlog:class+load или список имён) или null. Записи из неё пишутся в начало архива
+	 */
+	public Path loadOrderFile;
+
+	/**
+	 * Записывать индекс META-INF/INDEX.LIST
+	 */
+	public boolean jarIndex = false;
+
+	/**
+	 * Файл плана удаления (JSON или CSV по расширению) или null. В режиме плана выходные файлы не записываются
+	 */
+	public Path planFile;
+
+	/**
+	 * Выводить только итоговое число удалений вместо сообщения о каждом удалении
+	 */
+	public boolean logSummary = false;
+
+	/**
+	 * Файл отчёта метрик в формате JSON или null
+	 */
+	public Path metricsFile;
+
+	/**
+	 * Число потоков для обработки классов
+	 */
+	public int threads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Разбирает аргументы командной строки
+	 * @param args Аргументы
+	 * @return Параметры запуска
+	 */
+	public static Options parse(List<String> args) {
+		Options options = new Options();
+		List<String> files = new ArrayList<>();
+
+		for(int i = 0; i < args.size(); i++) {
+			String arg = args.get(i);
+			switch(arg) {
+				case "--remove-only":
+					options.removeOnly = true;
+					break;
+				case "--streaming":
+					options.streaming = true;
+					break;
+				case "--profile":
+					String profile = getValue(args, ++i, arg);
+					int sep = profile.indexOf('=');
+					if(sep < 0) sep = profile.length(); // только имя профиля: для плана удаления
+					if(sep == 0 || sep == profile.length() - 1) throw new IllegalArgumentException("Bad profile, expected <profile>=<output file>: " + profile);
+					String output = sep < profile.length() ? profile.substring(sep + 1) : "";
+					if(isDirectoryPath(output)) options.outputDirs.add(Paths.get(output));
+					if(options.profiles.put(profile.substring(0, sep), Paths.get(output)) != null) {
+						throw new IllegalArgumentException("Duplicate profile: " + profile.substring(0, sep));
+					}
+					break;
+				case "--output-dir":
+					options.outputDir = true;
+					break;
+				case "--cache":
+					options.cacheDir = Paths.get(getValue(args, ++i, arg));
+					break;
+				case "--cache-size": // в мегабайтах
+					options.cacheSize = Long.parseLong(getValue(args, ++i, arg)) * 1024 * 1024;
+					if(options.cacheSize <= 0) throw new IllegalArgumentException("Bad cache size: " + options.cacheSize);
+					break;
+				case "--classpath":
+					for(String library : getValue(args, ++i, arg).split(File.pathSeparator)) {
+						if(!library.isEmpty()) options.classpath.add(Paths.get(library));
+					}
+					break;
+				case "--engine":
+					options.engine = getValue(args, ++i, arg);
+					if(!options.engine.equals(ENGINE_TREE) && !options.engine.equals(ENGINE_VISITOR)) throw new IllegalArgumentException("Unknown engine: " + options.engine);
+					break;
+				case "--frames":
+					options.frames = true;
+					break;
+				case "--flag":
+					String flag = getValue(args, ++i, arg);
+					int eq = flag.indexOf('=');
+					String field = eq > 0 ? flag.substring(flag.substring(0, eq).indexOf(':') + 1, eq) : ""; // без профиля
+					int dot = field.lastIndexOf('.');
+					if(dot <= 0 || dot == field.length() - 1) {
+						throw new IllegalArgumentException("Bad flag, expected [<profile>:]<class>.<field>=<value>: " + flag);
+					}
+					options.flags.add(flag);
+					break;
+				case "--flags-class":
+					options.flagsClass = getValue(args, ++i, arg);
+					break;
+				case "--shrink":
+					options.shrink = true;
+					break;
+				case "--keep":
+					options.keep.add(getValue(args, ++i, arg));
+					break;
+				case "--strip":
+					options.strip.addAll(Strip.parse(getValue(args, ++i, arg)));
+					break;
+				case "--nested":
+					options.nested.add(getValue(args, ++i, arg));
+					break;
+				case "--compression":
+					options.compression = Compression.parse(getValue(args, ++i, arg));
+					break;
+				case "--load-order":
+					options.loadOrderFile = Paths.get(getValue(args, ++i, arg));
+					break;
+				case "--jar-index":
+					options.jarIndex = true;
+					break;
+				case "--plan":
+					options.planFile = Paths.get(getValue(args, ++i, arg));
+					break;
+				case "--log-summary":
+					options.logSummary = true;
+					break;
+				case "--metrics":
+					options.metricsFile = Paths.get(getValue(args, ++i, arg));
+					break;
+				case "--threads":
+					options.threads = Integer.parseInt(getValue(args, ++i, arg));
+					if(options.threads < 1) throw new IllegalArgumentException("Bad threads count: " + options.threads);
+					break;
+				default:
+					if(arg.startsWith("--")) throw new IllegalArgumentException("Unknown option: " + arg);
+					files.add(arg);
+			}
+		}
+
+		if(options.planFile != null) {
+			if(files.isEmpty()) throw new IllegalArgumentException("Too small arguments: <input file> --plan <plan file>");
+			if(files.size() > 1 || options.profiles.values().stream().anyMatch(path -> !path.toString().isEmpty())) throw new IllegalArgumentException("Plan mode doesn't write output files");
+			if(options.streaming) throw new IllegalArgumentException("Plan mode is not supported in streaming mode");
+			options.inputFile = Paths.get(files.get(0));
+			return options;
+		}
+		options.profiles.forEach((name, path) -> {
+			if(path.toString().isEmpty()) throw new IllegalArgumentException("Bad profile, expected <profile>=<output file>: " + name);
+		});
+		if(files.size() < (options.profiles.isEmpty() ? 2 : 1)) throw new IllegalArgumentException("Too small arguments: <input file> <output file> | <input file> --profile <profile>=<output file> ...");
+		if(!options.profiles.isEmpty() && files.size() > 1) throw new IllegalArgumentException("Output file is set by --profile options");
+		if(!options.profiles.isEmpty() && options.streaming) throw new IllegalArgumentException("Profiles are not supported in streaming mode");
+		if(options.shrink && options.streaming) throw new IllegalArgumentException("Shrinking is not supported in streaming mode");
+		if(!options.nested.isEmpty() && options.streaming) throw new IllegalArgumentException("Nested archives are not supported in streaming mode");
+		if(!options.nested.isEmpty() && options.shrink) throw new IllegalArgumentException("Shrinking is not supported with nested archives");
+		if((options.loadOrderFile != null || options.jarIndex) && options.streaming) throw new IllegalArgumentException("Entry layout is not supported in streaming mode");
+		options.inputFile = Paths.get(files.get(0));
+		if(files.size() > 1) options.outputFile = Paths.get(files.get(1));
+		if(files.size() > 1 && isDirectoryPath(files.get(1))) options.outputDirs.add(options.outputFile);
+		return options;
+	}
+
+	/**
+	 * Разрешает относительные пути относительно указанного каталога
+	 * @param base Рабочий каталог
+	 */
+	public void resolve(Path base) {
+		inputFile = base.resolve(inputFile);
+		if(outputFile != null) outputFile = base.resolve(outputFile);
+		profiles.replaceAll((profile, path) -> path.toString().isEmpty() ? path : base.resolve(path));
+		if(cacheDir != null) cacheDir = base.resolve(cacheDir);
+		if(metricsFile != null) metricsFile = base.resolve(metricsFile);
+		if(planFile != null) planFile = base.resolve(planFile);
+		if(loadOrderFile != null) loadOrderFile = base.resolve(loadOrderFile);
+		List<Path> dirs = new ArrayList<>(outputDirs);
+		outputDirs.clear();
+		dirs.forEach(dir -> outputDirs.add(base.resolve(dir)));
+		classpath.replaceAll(base::resolve);
+	}
+
+	/**
+	 * Параметры, влияющие на результат обработки. Используются для проверки актуальности выходных файлов
+	 * @return Строка параметров
+	 */
+	public String describe() {
+		return "input=" + inputFile.toAbsolutePath() + ";output=" + (outputFile != null ? outputFile.toAbsolutePath() : null)
+				+ ";removeOnly=" + removeOnly + ";streaming=" + streaming + ";profiles=" + profiles + ";outputDir=" + outputDir + new TreeSet<>(outputDirs) + ";engine=" + engine + ";classpath=" + classpath + ";frames=" + frames + ";flags=" + flags + ";flagsClass=" + flagsClass + ";shrink=" + shrink + ";keep=" + keep + ";strip=" + strip + ";nested=" + nested + ";compression=" + compression
+				+ ";loadOrder=" + loadOrderFile + ";jarIndex=" + jarIndex;
+	}
+
+	/**
+	 * @return Проверка имени записи на вложенный архив или null, если вложенные архивы не обрабатываются
+	 */
+	public Predicate<String> getNestedFilter() {
+		if(nested.isEmpty()) return null;
+		List<Pattern> patterns = nested.stream().map(pattern -> Utils.compileGlob(pattern, '/')).collect(Collectors.toList());
+		return name -> patterns.stream().anyMatch(pattern -> pattern.matcher(name).matches());
+	}
+
+	/**
+	 * @return Все выходные файлы. В режиме плана удаления выходных файлов нет
+	 */
+	public List<Path> getOutputFiles() {
+		if(planFile != null) return new ArrayList<>();
+		List<Path> outputs = new ArrayList<>(profiles.values());
+		if(outputFile != null) outputs.add(outputFile);
+		return outputs;
+	}
+
+	/**
+	 * Определяет, записывается ли результат в каталог: путь указан с разделителем в конце, задан --output-dir
+	 * или каталог уже существует. Остальные пути, в том числе без расширения, - архивы
+	 * @param output Выходной путь
+	 * @return true, если результат записывается в каталог
+	 */
+	public boolean isDirectoryOutput(Path output) {
+		return outputDir || outputDirs.contains(output) || Files.isDirectory(output);
+	}
+
+	private static boolean isDirectoryPath(String path) {
+		return path.endsWith("/") || path.endsWith(File.separator);
+	}
+
+	private static String getValue(List<String> args, int index, String option) {
+		if(index >= args.size()) throw new IllegalArgumentException("No value for option: " + option);
+		return args.get(index);
+	}
+
+}
@@ -0,0 +1,77 @@
+package ru.redserver.coderemover;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Префиксное дерево имён удалённых классов для поиска удалённых внешних классов. Класс вложен в удалённый,
+ * если часть его имени до одного из '$' после пакета - имя удалённого класса. Проверка имени - один проход
+ * по символам без создания строк и поиска в хэш-таблицах. Узлы хранятся в массивах, без объекта на узел.
+ * После построения только читается и потокобезопасен.
+ * @author Nuclear
+ */
+public final class OuterClassIndex {
+
+	private static final int NONE = -1;
+
+	private char[] labels = new char[64]; // символ, по которому достигается узел
+	private int[] firstChild = new int[64];
+	private int[] nextSibling = new int[64];
+	private boolean[] terminal = new boolean[64]; // узел завершает имя удалённого класса
+	private int count = 1; // узел 0 - корень
+
+	public OuterClassIndex(Collection<String> names) {
+		firstChild[0] = NONE;
+		nextSibling[0] = NONE;
+		for(String name : names) {
+			int node = 0;
+			for(int i = 0; i < name.length(); i++) {
+				char c = name.charAt(i);
+				int child = child(node, c);
+				node = child != NONE ? child : addChild(node, c);
+			}
+			terminal[node] = true;
+		}
+	}
+
+	/**
+	 * Находит ближайший удалённый внешний класс
+	 * @param name Внутреннее имя класса
+	 * @return Длина имени ближайшего удалённого внешнего класса или -1, если внешние классы не удалены
+	 */
+	public int findOuter(String name) {
+		int packageEnd = name.lastIndexOf('/');
+		int node = 0, found = NONE;
+		for(int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if(c == '$' && i > packageEnd && terminal[node]) found = i;
+			node = child(node, c);
+			if(node == NONE) break;
+		}
+		return found;
+	}
+
+	private int child(int node, char c) {
+		for(int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+			if(labels[child] == c) return child;
+		}
+		return NONE;
+	}
+
+	private int addChild(int node, char c) {
+		if(count == labels.length) {
+			int capacity = count * 2;
+			labels = Arrays.copyOf(labels, capacity);
+			firstChild = Arrays.copyOf(firstChild, capacity);
+			nextSibling = Arrays.copyOf(nextSibling, capacity);
+			terminal = Arrays.copyOf(terminal, capacity);
+		}
+		int child = count++;
+		labels[child] = c;
+		firstChild[child] = NONE;
+		nextSibling[child] = firstChild[node];
+		firstChild[node] = child;
+		return child;
+	}
+
+}
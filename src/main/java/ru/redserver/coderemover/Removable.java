@@ -15,4 +15,10 @@ public @interface Removable {
 	 */
 	boolean remove();
 
+	/**
+	 * Профили сборки, в которых действует аннотация. Если список пуст, аннотация действует всегда
+	 * @return
+	 */
+	String[] profiles() default {};
+
 }
@@ -0,0 +1,263 @@
+package ru.redserver.coderemover;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodNode;
+import ru.redserver.coderemover.io.ClassEntry;
+import ru.redserver.coderemover.io.JarContents;
+
+/**
+ * План удаления: что будет удалено и какие классы затронуты, без изменения и записи классов.
+ * Классы читаются только по заголовкам, код методов не разбирается. Шаги, требующие анализа кода
+ * (флаги сборки, сокращение), в план не входят.
+ * @author Nuclear
+ */
+public final class RemovalPlan {
+
+	private static final int CONSTANT_CLASS = 7;
+
+	public enum Action {
+		REMOVE_CLASS("removeClass"),
+		REMOVE_INTERFACE("removeInterface"),
+		REMOVE_SUBCLASS("removeSubclass"),
+		REMOVE_FIELD("removeField"),
+		REMOVE_METHOD("removeMethod"),
+		REMOVE_INTERFACE_USAGE("removeInterfaceUsage"),
+		ADD_INHERITED_INTERFACE("addInheritedInterface"),
+		CHANGE_SUPERCLASS("changeSuperclass"),
+		/**
+		 * Класс остаётся, но его пул констант ссылается на удалённый класс
+		 */
+		REFERENCES_REMOVED("referencesRemoved");
+
+		public final String key;
+
+		private Action(String key) {
+			this.key = key;
+		}
+	}
+
+	private final List<Item> items = new ArrayList<>();
+
+	/**
+	 * Строит план для одного профиля
+	 * @param profile Профиль сборки или null
+	 * @param contents Содержимое архива. Удаляемые классы исключаются из него
+	 * @param processor Обработчик профиля
+	 * @param applyFixes Учитывать исправления неудалённых классов
+	 * @param pool Пул потоков для чтения заголовков
+	 * @throws IOException Если разбор завершился с ошибкой
+	 */
+	@SuppressWarnings("try")
+	public void addProfile(String profile, JarContents contents, AnnotationProccessor processor, boolean applyFixes, ForkJoinPool pool) throws IOException {
+		Set<String> names = new LinkedHashSet<>();
+		contents.getAllClasses().forEach(clazz -> names.add(clazz.name));
+		processor.removeClasses(contents, pool);
+
+		try (Metrics.PhaseTimer timer = processor.metrics.time(Metrics.Phase.PLAN)) {
+			List<ClassEntry> entries = contents.getAllClasses();
+			Set<String> removed = new HashSet<>(names);
+			entries.forEach(clazz -> removed.remove(clazz.name));
+			List<Item> result = new ArrayList<>();
+			for(String name : names) {
+				if(!removed.contains(name)) continue;
+				if(processor.deletedIfaces.contains(name)) {
+					result.add(new Item(profile, Action.REMOVE_INTERFACE, name, null, null));
+				} else if(processor.isDeleted(name)) {
+					result.add(new Item(profile, Action.REMOVE_CLASS, name, null, Utils.normalizeName(processor.getSuperclass(name)))); // новый родитель подклассов
+				} else {
+					result.add(new Item(profile, Action.REMOVE_SUBCLASS, name, null, Utils.normalizeName(processor.getRemovedOuter(name))));
+				}
+			}
+
+			ConstantPoolFilter removedFilter = new ConstantPoolFilter(removed);
+			List<List<Item>> affected = Utils.await(pool.submit(() -> entries.parallelStream()
+					.map(clazz -> checkClass(profile, clazz, processor, applyFixes, removed, removedFilter))
+					.collect(Collectors.toList())));
+			affected.forEach(result::addAll);
+
+			synchronized(items) {
+				items.addAll(result);
+			}
+		}
+	}
+
+	/**
+	 * Проверяет неудалённый класс: удаляемые поля и методы, исправления заголовка и оставшиеся ссылки на удалённые классы
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<Item> checkClass(String profile, ClassEntry clazz, AnnotationProccessor processor, boolean applyFixes, Set<String> removed, ConstantPoolFilter removedFilter) {
+		byte[] bytes = clazz.getBytes();
+		boolean removable = AnnotationProccessor.REMOVABLE_FILTER.matches(bytes);
+		boolean references = removedFilter.matches(bytes);
+		if(!removable && !references) return Collections.emptyList();
+
+		List<Item> result = new ArrayList<>();
+		ClassNode node = processor.readHeader(clazz);
+		if(removable) {
+			for(FieldNode field : (List<FieldNode>)node.fields) {
+				if(AnnotationProccessor.checkRemovable(field.invisibleAnnotations, false, processor.profile)) {
+					result.add(new Item(profile, Action.REMOVE_FIELD, node.name, field.name, field.desc));
+					processor.metrics.increment(Metrics.Counter.REMOVED_FIELDS);
+				}
+			}
+			for(MethodNode method : (List<MethodNode>)node.methods) {
+				if(method.name.equals(AnnotationProccessor.OBJECT_CONSTRUCTOR) || method.name.equals(AnnotationProccessor.STATIC_CONSTRUCTOR)) continue; // аннотации конструкторов не проверяются
+				if(AnnotationProccessor.checkRemovable(method.invisibleAnnotations, false, processor.profile)) {
+					result.add(new Item(profile, Action.REMOVE_METHOD, node.name, method.name, method.desc));
+					processor.metrics.increment(Metrics.Counter.REMOVED_METHODS);
+				}
+			}
+		}
+		if(!references) return result;
+
+		List<String> interfaces = (List<String>)node.interfaces;
+		if(applyFixes) {
+			for(String iFace : interfaces) {
+				if(processor.deletedIfaces.contains(iFace)) {
+					result.add(new Item(profile, Action.REMOVE_INTERFACE_USAGE, node.name, null, Utils.normalizeName(iFace)));
+					processor.metrics.increment(Metrics.Counter.REMOVED_INTERFACE_USAGES);
+				}
+			}
+			for(String iFace : processor.getInheritedInterfaces(node.superName, interfaces)) {
+				result.add(new Item(profile, Action.ADD_INHERITED_INTERFACE, node.name, null, Utils.normalizeName(iFace)));
+				processor.metrics.increment(Metrics.Counter.INHERITED_INTERFACES);
+			}
+			String superclass = processor.getSuperclass(node.superName);
+			if(node.superName != null && !node.superName.equals(superclass)) {
+				result.add(new Item(profile, Action.CHANGE_SUPERCLASS, node.name, null, Utils.normalizeName(node.superName) + " -> " + Utils.normalizeName(superclass)));
+				processor.metrics.increment(Metrics.Counter.CHANGED_SUPERCLASSES);
+			}
+		}
+
+		// Остальные ссылки на удалённые классы из кода и сигнатур - по пулу констант, без разбора методов
+		ClassReader reader = new ClassReader(bytes);
+		char[] buffer = new char[reader.getMaxStringLength()];
+		Set<String> referenced = new TreeSet<>();
+		for(int i = 1; i < reader.getItemCount(); i++) {
+			int offset = reader.getItem(i); // 0 для второй половины long и double
+			if(offset == 0 || bytes[offset - 1] != CONSTANT_CLASS) continue;
+
+			String name = reader.readUTF8(offset, buffer);
+			if(!removed.contains(name)) continue;
+			if(applyFixes && (name.equals(node.superName) || interfaces.contains(name))) continue; // исправляется в заголовке
+			referenced.add(name);
+		}
+		for(String name : referenced) {
+			result.add(new Item(profile, Action.REFERENCES_REMOVED, node.name, null, Utils.normalizeName(name)));
+		}
+		return result;
+	}
+
+	/**
+	 * @return Число действий каждого типа
+	 */
+	public Map<Action, Integer> getSummary() {
+		Map<Action, Integer> summary = new EnumMap<>(Action.class);
+		for(Action action : Action.values()) {
+			summary.put(action, 0);
+		}
+		synchronized(items) {
+			for(Item item : items) {
+				summary.merge(item.action, 1, Integer::sum);
+			}
+		}
+		return summary;
+	}
+
+	/**
+	 * Записывает план. Формат определяется расширением файла: .csv - CSV, иначе JSON
+	 * @param path Файл плана
+	 * @param options Параметры запуска
+	 * @throws IOException Ошибка записи
+	 */
+	public void write(Path path, Options options) throws IOException {
+		List<Item> copy;
+		synchronized(items) {
+			copy = new ArrayList<>(items);
+		}
+
+		try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+			if(path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".csv")) {
+				writer.write("profile,action,class,member,detail\n");
+				for(Item item : copy) {
+					writer.write(toCsv(item.profile) + ',' + item.action.key + ',' + toCsv(item.className) + ',' + toCsv(item.member) + ',' + toCsv(item.detail) + '\n');
+				}
+				return;
+			}
+
+			writer.write("{\n  \"input\": ");
+			Metrics.writeString(writer, options.inputFile.toString());
+			writer.write(",\n  \"summary\": {");
+			int i = 0;
+			for(Map.Entry<Action, Integer> entry : getSummary().entrySet()) {
+				writer.write((i++ > 0 ? "," : "") + "\n    \"" + entry.getKey().key + "\": " + entry.getValue());
+			}
+			writer.write("\n  },\n  \"actions\": [");
+			i = 0;
+			for(Item item : copy) {
+				writer.write((i++ > 0 ? "," : "") + "\n    {\"profile\": ");
+				writeValue(writer, item.profile);
+				writer.write(", \"action\": \"" + item.action.key + "\", \"class\": ");
+				writeValue(writer, item.className);
+				writer.write(", \"member\": ");
+				writeValue(writer, item.member);
+				writer.write(", \"detail\": ");
+				writeValue(writer, item.detail);
+				writer.write("}");
+			}
+			writer.write("\n  ]\n}\n");
+		}
+	}
+
+	private static void writeValue(Writer writer, String value) throws IOException {
+		if(value == null) {
+			writer.write("null");
+		} else {
+			Metrics.writeString(writer, value);
+		}
+	}
+
+	private static String toCsv(String value) {
+		if(value == null) return "";
+		if(value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) return value;
+		return '"' + value.replace("\"", "\"\"") + '"';
+	}
+
+	private static final class Item {
+
+		final String profile;
+		final Action action;
+		final String className;
+		final String member;
+		final String detail;
+
+		Item(String profile, Action action, String className, String member, String detail) {
+			this.profile = profile;
+			this.action = action;
+			this.className = Utils.normalizeName(className);
+			this.member = member;
+			this.detail = detail;
+		}
+
+	}
+
+}
@@ -0,0 +1,662 @@
+package ru.redserver.coderemover;
+
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.jar.Attributes;
+import java.util.logging.Level;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import ru.redserver.coderemover.io.ClassEntry;
+import ru.redserver.coderemover.io.JarContents;
+import ru.redserver.coderemover.io.Resource;
+
+/**
+ * Сокращение архива после удаления помеченного кода: удаляет классы, методы и поля, недостижимые из точек входа.
+ * <p>
+ * Точки входа: классы из атрибутов манифеста (Main-Class, Premain-Class, Agent-Class, Launcher-Agent-Class)
+ * с их методами main/premain/agentmain, сервисы из META-INF/services, классы по шаблонам --keep
+ * и элементы с аннотацией {@link Keep}. Достижимость считается по ссылкам на классы, поля и методы в коде,
+ * дескрипторах и видимых аннотациях. Виртуальный метод достижим, если его сигнатура вызывается где-либо в достижимом коде.
+ * Классы, наследующие классы и интерфейсы вне архива (кроме java/lang/Object), сохраняются целиком, так как их
+ * методы могут вызываться библиотеками. Код, используемый только через рефлексию, необходимо отметить через --keep или {@link Keep}.
+ * <p>
+ * Граф строится один раз: ссылки указывают прямо на объекты классов, а достижимость отмечается флагами объектов.
+ * Обход выполняется параллельно по уровням: все элементы текущего уровня обрабатываются в пуле потоков,
+ * найденные новые элементы образуют следующий уровень.
+ * @author Nuclear
+ */
+public final class Shrinker {
+
+	static final String KEEP_DESC = Type.getDescriptor(Keep.class);
+	private static final String OBJECT = "java/lang/Object";
+	private static final String SERVICES = "META-INF/services/";
+	private static final String[] ENTRY_ATTRIBUTES = {"Main-Class", "Premain-Class", "Agent-Class", "Launcher-Agent-Class"};
+	private static final Set<String> ENTRY_METHODS = new HashSet<>(Arrays.asList("main", "premain", "agentmain"));
+	private static final String[] OBJECT_METHODS = {"toString()Ljava/lang/String;", "equals(Ljava/lang/Object;)Z", "hashCode()I", "finalize()V", "clone()Ljava/lang/Object;"}; // вызываются платформой
+
+	private static final AtomicIntegerFieldUpdater<Node> REACHABLE = AtomicIntegerFieldUpdater.newUpdater(Node.class, "reachable");
+
+	private final Metrics metrics;
+	private final List<Pattern> keepPatterns;
+	private final boolean logRemovals;
+	private final String logPrefix;
+
+	private final Map<String, ClassInfo> classes = new HashMap<>();
+	private final Map<String, List<MemberInfo>> overriders = new HashMap<>(); // сигнатура -> виртуальные методы с этой сигнатурой
+	private final Set<String> invoked = ConcurrentHashMap.newKeySet(); // вызываемые сигнатуры виртуальных методов
+	private final Queue<Object> next = new ConcurrentLinkedQueue<>(); // следующий уровень обхода: классы, элементы и сигнатуры
+
+	/**
+	 * @param profile Профиль сборки или null
+	 * @param metrics Метрики запуска
+	 * @param options Параметры запуска: шаблоны --keep и вывод удалений
+	 */
+	public Shrinker(String profile, Metrics metrics, Options options) {
+		this.metrics = metrics;
+		this.keepPatterns = options.keep.stream().map(pattern -> Utils.compileGlob(pattern, '.')).collect(Collectors.toList());
+		this.logRemovals = !options.logSummary && SimpleLogger.instance.isLoggable(Level.INFO);
+		this.logPrefix = SimpleLogger.profilePrefix(profile);
+	}
+
+	/**
+	 * Удаляет недостижимые классы и элементы классов
+	 * @param contents Содержимое архива
+	 * @param pool Пул потоков
+	 * @throws IOException Ошибка чтения ресурсов или обработки
+	 */
+	@SuppressWarnings("try")
+	public void shrink(JarContents contents, ForkJoinPool pool) throws IOException {
+		try (Metrics.PhaseTimer timer = metrics.time(Metrics.Phase.SHRINK)) {
+			// Объекты классов создаются заранее, чтобы ссылки при чтении указывали прямо на них
+			List<ClassEntry> entries = new ArrayList<>(contents.classes.values());
+			for(ClassEntry clazz : entries) {
+				classes.put(clazz.name, new ClassInfo(clazz.name));
+			}
+			Utils.await(pool.submit(() -> entries.parallelStream().forEach(this::scan)));
+			for(ClassInfo info : classes.values()) {
+				for(MemberInfo member : info.members) {
+					if(member.isVirtual()) overriders.computeIfAbsent(member.name.concat(member.desc), key -> new ArrayList<>()).add(member);
+				}
+			}
+
+			addRoots(contents);
+			if(next.isEmpty()) {
+				SimpleLogger.instance.warning("No shrink roots found (Main-Class, META-INF/services, @Keep or --keep), shrinking skipped.");
+				return;
+			}
+			for(String signature : OBJECT_METHODS) {
+				markSignature(signature);
+			}
+
+			// Обход по уровням
+			int levels = 0;
+			while(!next.isEmpty()) {
+				List<Object> level = new ArrayList<>(next);
+				next.clear();
+				Utils.await(pool.submit(() -> level.parallelStream().forEach(this::visit)));
+				levels++;
+			}
+			SimpleLogger.instance.log(Level.FINE, "Shrink: {0} of {1} classes reachable, {2} levels.", new Object[]{classes.values().stream().filter(Node::isReachable).count(), classes.size(), levels});
+
+			apply(contents, entries, pool);
+		}
+	}
+
+	private void addRoots(JarContents contents) throws IOException {
+		if(contents.manifest != null) {
+			Attributes attributes = contents.manifest.getMainAttributes();
+			for(String attribute : ENTRY_ATTRIBUTES) {
+				String value = attributes.getValue(attribute);
+				if(value == null) continue;
+
+				ClassInfo info = classes.get(value.trim().replace('.', '/'));
+				if(info == null) continue;
+				mark(info);
+				for(MemberInfo member : info.members) {
+					if((member.access & Opcodes.ACC_STATIC) != 0 && ENTRY_METHODS.contains(member.name)) mark(member);
+				}
+			}
+		}
+
+		for(Map.Entry<String, Resource> resource : contents.resources.entrySet()) {
+			String name = resource.getKey();
+			if(!name.startsWith(SERVICES) || name.endsWith("/")) continue;
+
+			keepClass(name.substring(SERVICES.length()).replace('.', '/'));
+			for(String line : new String(resource.getValue().getBytes(), StandardCharsets.UTF_8).split("\n")) {
+				int comment = line.indexOf('#');
+				String provider = (comment >= 0 ? line.substring(0, comment) : line).trim();
+				if(!provider.isEmpty()) keepClass(provider.replace('.', '/'));
+			}
+		}
+
+		for(ClassInfo info : classes.values()) {
+			if(info.keepAll || matchesKeep(info.name)) {
+				keepClass(info.name);
+			} else {
+				for(MemberInfo member : info.members) {
+					if(member.keep) mark(member);
+				}
+			}
+		}
+	}
+
+	private boolean matchesKeep(String name) {
+		if(keepPatterns.isEmpty()) return false;
+		String dotted = Utils.normalizeName(name);
+		for(Pattern pattern : keepPatterns) {
+			if(pattern.matcher(dotted).matches()) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Сохраняет класс целиком
+	 */
+	private void keepClass(String name) {
+		ClassInfo info = classes.get(name);
+		if(info == null) return;
+		info.keepAll = true;
+		mark(info);
+	}
+
+	private void mark(Node node) {
+		if(REACHABLE.compareAndSet(node, 0, 1)) next.add(node);
+	}
+
+	private void markSignature(String signature) {
+		if(invoked.add(signature)) next.add(signature);
+	}
+
+	private void visit(Object item) {
+		if(item instanceof ClassInfo) {
+			visitClass((ClassInfo)item);
+		} else if(item instanceof MemberInfo) {
+			MemberInfo member = (MemberInfo)item;
+			mark(member.owner);
+			visitRefs(member.refs);
+		} else { // класс может стать достижимым до или после вызова сигнатуры - проверяются обе стороны
+			for(MemberInfo member : overriders.getOrDefault((String)item, Collections.emptyList())) {
+				if(member.owner.isReachable()) mark(member);
+			}
+		}
+	}
+
+	private void visitClass(ClassInfo info) {
+		for(ClassInfo supertype : info.supertypes) {
+			mark(supertype);
+		}
+		if(info.outerClass != null) mark(info.outerClass);
+		visitRefs(info.refs);
+
+		boolean keepAll = info.keepAll || info.hasLibrarySupertype();
+		for(MemberInfo member : info.members) {
+			if(keepAll || member.name.equals(AnnotationProccessor.STATIC_CONSTRUCTOR) || (member.isVirtual() && invoked.contains(member.name.concat(member.desc)))) {
+				mark(member);
+			}
+		}
+	}
+
+	private void visitRefs(List<Object> refs) {
+		for(Object ref : refs) {
+			if(ref instanceof ClassInfo) {
+				mark((ClassInfo)ref);
+			} else if(ref instanceof MemberRef) {
+				MemberRef member = (MemberRef)ref;
+				mark(member.owner);
+				if(member.virtual) markSignature(member.name.concat(member.desc));
+				resolve(member.owner, member.name, member.desc);
+			} else {
+				markSignature((String)ref);
+			}
+		}
+	}
+
+	/**
+	 * Отмечает объявление поля или метода, на которое ссылается инструкция: в самом классе, его родителях или интерфейсах
+	 */
+	private void resolve(ClassInfo owner, String name, String desc) {
+		for(ClassInfo info = owner; info != null; info = info.superclass) {
+			MemberInfo member = info.getMember(name, desc);
+			if(member != null) {
+				mark(member);
+				return;
+			}
+		}
+		resolveInterfaces(owner, name, desc, new HashSet<>());
+	}
+
+	private void resolveInterfaces(ClassInfo info, String name, String desc, Set<ClassInfo> visited) {
+		if(!visited.add(info)) return;
+
+		if(Modifier.isInterface(info.access)) {
+			MemberInfo member = info.getMember(name, desc);
+			if(member != null) mark(member);
+		}
+		for(ClassInfo supertype : info.supertypes) {
+			resolveInterfaces(supertype, name, desc, visited);
+		}
+	}
+
+	/**
+	 * Удаляет недостижимые классы и элементы, а также записи InnerClasses об удалённых классах
+	 */
+	private void apply(JarContents contents, List<ClassEntry> entries, ForkJoinPool pool) throws IOException {
+		Set<String> removed = new HashSet<>();
+		for(ClassEntry clazz : entries) {
+			if(classes.get(clazz.name).isReachable()) continue;
+
+			removed.add(clazz.name);
+			contents.classes.remove(clazz.name);
+			metrics.increment(Metrics.Counter.SHRUNK_CLASSES);
+			if(logRemovals) log("Removed unreachable class: {0}", SimpleLogger.className(clazz.name));
+		}
+
+		Utils.await(pool.submit(() -> entries.parallelStream().filter(clazz -> !removed.contains(clazz.name)).forEach(clazz -> {
+			ClassInfo info = classes.get(clazz.name);
+			MemberSet removedMembers = new MemberSet();
+			for(MemberInfo member : info.members) {
+				if(!member.isReachable()) removedMembers.add(member.name, member.desc);
+			}
+			boolean staleInnerClasses = info.innerClasses.stream().anyMatch(removed::contains);
+			if(removedMembers.isEmpty() && !staleInnerClasses) return;
+
+			ClassReader reader = new ClassReader(clazz.toByteArray());
+			ClassWriter writer = new ClassWriter(reader, 0);
+			reader.accept(new ClassVisitor(Opcodes.ASM5, writer) {
+				@Override
+				public void visitInnerClass(String name, String outerName, String innerName, int access) {
+					if(!removed.contains(name)) super.visitInnerClass(name, outerName, innerName, access);
+				}
+
+				@Override
+				public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+					if(!removedMembers.contains(name, desc)) return super.visitField(access, name, desc, signature, value);
+					metrics.increment(Metrics.Counter.SHRUNK_FIELDS);
+					if(logRemovals) log("Removed unreachable field: {0}.{1}", SimpleLogger.className(info.name), name);
+					return null;
+				}
+
+				@Override
+				public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+					if(!removedMembers.contains(name, desc)) return super.visitMethod(access, name, desc, signature, exceptions);
+					metrics.increment(Metrics.Counter.SHRUNK_METHODS);
+					if(logRemovals) log("Removed unreachable method: {0}.{1}{2}", SimpleLogger.className(info.name), name, desc);
+					return null;
+				}
+			}, 0);
+			clazz.setResult(writer.toByteArray());
+		})));
+	}
+
+	private void log(String pattern, Object... params) {
+		SimpleLogger.instance.log(Level.INFO, logPrefix.concat(pattern), params);
+	}
+
+	/**
+	 * Читает класс и собирает ссылки его элементов. Изменённые классы сериализуются один раз, результат сохраняется в записи класса
+	 */
+	@SuppressWarnings("try")
+	private void scan(ClassEntry clazz) {
+		byte[] bytes;
+		if(clazz.isParsed()) {
+			try (Metrics.PhaseTimer timer = metrics.time(Metrics.Phase.SERIALIZE)) {
+				bytes = clazz.toByteArray();
+			}
+			clazz.setResult(bytes);
+		} else {
+			bytes = clazz.toByteArray();
+		}
+		new ClassReader(bytes).accept(new Scanner(classes.get(clazz.name)), ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+	}
+
+	/**
+	 * Добавляет классы архива из описания поля или метода
+	 */
+	private void addDesc(List<Object> refs, String desc) {
+		int i = desc.indexOf('L');
+		while(i >= 0) {
+			int end = desc.indexOf(';', i);
+			addClass(refs, desc.substring(i + 1, end));
+			i = desc.indexOf('L', end);
+		}
+	}
+
+	/**
+	 * Добавляет класс архива по внутреннему имени или описанию массива
+	 */
+	private void addClass(List<Object> refs, String name) {
+		if(name.charAt(0) == '[') {
+			addDesc(refs, name);
+			return;
+		}
+		ClassInfo info = classes.get(name);
+		if(info != null) refs.add(info);
+	}
+
+	/**
+	 * Вершина графа: класс или элемент класса
+	 */
+	private static class Node {
+
+		volatile int reachable;
+
+		boolean isReachable() {
+			return reachable != 0;
+		}
+
+	}
+
+	private static final class ClassInfo extends Node {
+
+		final String name;
+		int access;
+		ClassInfo superclass; // null для классов вне архива
+		ClassInfo[] supertypes; // родитель и интерфейсы из архива
+		boolean librarySupertype; // непосредственно наследует класс или интерфейс вне архива, кроме java/lang/Object
+		ClassInfo outerClass;
+		final List<String> innerClasses = new ArrayList<>();
+		final List<Object> refs = new ArrayList<>(); // ссылки аннотаций класса
+		final List<MemberInfo> members = new ArrayList<>();
+		volatile boolean keepAll; // задаётся до обхода
+		private volatile Boolean inheritsLibrary;
+
+		ClassInfo(String name) {
+			this.name = name;
+		}
+
+		MemberInfo getMember(String name, String desc) {
+			for(MemberInfo member : members) {
+				if(member.name.equals(name) && member.desc.equals(desc)) return member;
+			}
+			return null;
+		}
+
+		/**
+		 * Вычисляется при обходе, когда все классы уже прочитаны. Гонка безопасна: результат всегда одинаков
+		 */
+		boolean hasLibrarySupertype() {
+			Boolean result = inheritsLibrary;
+			if(result == null) {
+				boolean inherits = librarySupertype;
+				for(ClassInfo supertype : supertypes) {
+					inherits |= supertype.hasLibrarySupertype();
+				}
+				inheritsLibrary = result = inherits;
+			}
+			return result;
+		}
+
+	}
+
+	private static final class MemberInfo extends Node {
+
+		final ClassInfo owner;
+		final String name;
+		final String desc;
+		final int access;
+		final boolean method;
+		final List<Object> refs = new ArrayList<>(); // ClassInfo, MemberRef или сигнатура вызываемого метода
+		boolean keep;
+
+		MemberInfo(ClassInfo owner, String name, String desc, int access, boolean method) {
+			this.owner = owner;
+			this.name = name;
+			this.desc = desc;
+			this.access = access;
+			this.method = method;
+		}
+
+		boolean isVirtual() {
+			return method && (access & (Opcodes.ACC_STATIC | Opcodes.ACC_PRIVATE)) == 0 && !name.equals(AnnotationProccessor.OBJECT_CONSTRUCTOR);
+		}
+
+	}
+
+	/**
+	 * Ссылка на поле или метод класса архива
+	 */
+	private static final class MemberRef {
+
+		final ClassInfo owner;
+		final String name;
+		final String desc;
+		final boolean virtual;
+
+		MemberRef(ClassInfo owner, String name, String desc, boolean virtual) {
+			this.owner = owner;
+			this.name = name;
+			this.desc = desc;
+			this.virtual = virtual;
+		}
+
+	}
+
+	/**
+	 * Собирает ссылки класса на классы архива: типы, поля и методы из кода, дескрипторов, исключений и видимых аннотаций.
+	 * Ссылки на классы вне архива не сохраняются: классы архива, переопределяющие их методы, сохраняются целиком
+	 */
+	private final class Scanner extends ClassVisitor {
+
+		private final ClassInfo info;
+
+		Scanner(ClassInfo info) {
+			super(Opcodes.ASM5);
+			this.info = info;
+		}
+
+		@Override
+		public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+			info.access = access;
+			List<ClassInfo> supertypes = new ArrayList<>();
+			if(superName != null) {
+				info.superclass = classes.get(superName);
+				if(info.superclass != null) {
+					supertypes.add(info.superclass);
+				} else if(!superName.equals(OBJECT)) {
+					info.librarySupertype = true;
+				}
+			}
+			if(interfaces != null) {
+				for(String iFace : interfaces) {
+					ClassInfo ifaceInfo = classes.get(iFace);
+					if(ifaceInfo != null) {
+						supertypes.add(ifaceInfo);
+					} else {
+						info.librarySupertype = true;
+					}
+				}
+			}
+			info.supertypes = supertypes.toArray(new ClassInfo[supertypes.size()]);
+		}
+
+		@Override
+		public void visitOuterClass(String owner, String name, String desc) {
+			info.outerClass = classes.get(owner);
+		}
+
+		@Override
+		public void visitInnerClass(String name, String outerName, String innerName, int access) {
+			info.innerClasses.add(name);
+			if(name.equals(info.name) && outerName != null) info.outerClass = classes.get(outerName);
+		}
+
+		@Override
+		public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+			if(!visible && desc.equals(KEEP_DESC)) info.keepAll = true;
+			return visible ? new RefCollector(info.refs, desc) : null;
+		}
+
+		@Override
+		public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+			MemberInfo member = new MemberInfo(info, name, desc, access, false);
+			info.members.add(member);
+			addDesc(member.refs, desc);
+			return new FieldVisitor(Opcodes.ASM5) {
+				@Override
+				public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+					if(!visible && desc.equals(KEEP_DESC)) member.keep = true;
+					return visible ? new RefCollector(member.refs, desc) : null;
+				}
+			};
+		}
+
+		@Override
+		public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+			MemberInfo member = new MemberInfo(info, name, desc, access, true);
+			info.members.add(member);
+			List<Object> refs = member.refs;
+			addDesc(refs, desc);
+			if(exceptions != null) {
+				for(String exception : exceptions) {
+					addClass(refs, exception);
+				}
+			}
+
+			return new MethodVisitor(Opcodes.ASM5) {
+				@Override
+				public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+					if(!visible && desc.equals(KEEP_DESC)) member.keep = true;
+					return visible ? new RefCollector(refs, desc) : null;
+				}
+
+				@Override
+				public AnnotationVisitor visitParameterAnnotation(int parameter, String desc, boolean visible) {
+					return visible ? new RefCollector(refs, desc) : null;
+				}
+
+				@Override
+				public AnnotationVisitor visitAnnotationDefault() {
+					return new RefCollector(refs, null);
+				}
+
+				@Override
+				public void visitTypeInsn(int opcode, String type) {
+					addClass(refs, type);
+				}
+
+				@Override
+				public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+					addMember(refs, owner, name, desc, false);
+					addDesc(refs, desc);
+				}
+
+				@Override
+				public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+					addMember(refs, owner, name, desc, opcode == Opcodes.INVOKEVIRTUAL || opcode == Opcodes.INVOKEINTERFACE);
+					addDesc(refs, desc);
+				}
+
+				@Override
+				public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+					addDesc(refs, desc);
+					addHandle(refs, bsm);
+					for(Object arg : bsmArgs) {
+						if(arg instanceof Handle) {
+							addHandle(refs, (Handle)arg);
+						} else if(arg instanceof Type) {
+							Type type = (Type)arg;
+							if(type.getSort() == Type.METHOD) refs.add(name.concat(type.getDescriptor())); // метод функционального интерфейса
+							addDesc(refs, type.getDescriptor());
+						}
+					}
+				}
+
+				@Override
+				public void visitLdcInsn(Object cst) {
+					if(cst instanceof Type) {
+						addDesc(refs, ((Type)cst).getDescriptor());
+					} else if(cst instanceof Handle) {
+						addHandle(refs, (Handle)cst);
+					}
+				}
+
+				@Override
+				public void visitMultiANewArrayInsn(String desc, int dims) {
+					addDesc(refs, desc);
+				}
+
+				@Override
+				public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+					if(type != null) addClass(refs, type);
+				}
+			};
+		}
+
+		private void addHandle(List<Object> refs, Handle handle) {
+			int tag = handle.getTag();
+			addMember(refs, handle.getOwner(), handle.getName(), handle.getDesc(), tag == Opcodes.H_INVOKEVIRTUAL || tag == Opcodes.H_INVOKEINTERFACE);
+			addDesc(refs, handle.getDesc());
+		}
+
+		private void addMember(List<Object> refs, String owner, String name, String desc, boolean virtual) {
+			if(owner.charAt(0) == '[') { // clone() массива
+				addDesc(refs, owner);
+				return;
+			}
+			ClassInfo ownerInfo = classes.get(owner);
+			if(ownerInfo != null) refs.add(new MemberRef(ownerInfo, name, desc, virtual));
+		}
+
+	}
+
+	/**
+	 * Собирает типы из значений аннотации: класс аннотации, значения-классы и перечисления
+	 */
+	private final class RefCollector extends AnnotationVisitor {
+
+		private final List<Object> refs;
+
+		RefCollector(List<Object> refs, String desc) {
+			super(Opcodes.ASM5);
+			this.refs = refs;
+			if(desc != null) addDesc(refs, desc);
+		}
+
+		@Override
+		public void visit(String name, Object value) {
+			if(value instanceof Type) addDesc(refs, ((Type)value).getDescriptor());
+		}
+
+		@Override
+		public void visitEnum(String name, String desc, String value) {
+			addDesc(refs, desc);
+		}
+
+		@Override
+		public AnnotationVisitor visitAnnotation(String name, String desc) {
+			return new RefCollector(refs, desc);
+		}
+
+		@Override
+		public AnnotationVisitor visitArray(String name) {
+			return this;
+		}
+
+	}
+
+}
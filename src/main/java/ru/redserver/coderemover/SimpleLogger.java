@@ -1,8 +1,20 @@
 package ru.redserver.coderemover;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.text.SimpleDateFormat;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.ErrorManager;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -12,51 +24,150 @@ import java.util.logging.Logger;
 public final class SimpleLogger {
 
 	public static final Logger instance;
+	private static final AsyncHandler handler;
 
 	private SimpleLogger() {
 	}
 
 	static {
 		instance = Logger.getLogger("CodeRemoved");
+		handler = new AsyncHandler();
 
 		// Конфигурация Logger
 		instance.setLevel(CodeRemover.DEBUG_MODE ? Level.ALL : Level.INFO);
 		instance.setUseParentHandlers(false);
-		instance.addHandler(new ConsoleHandler());
+		instance.addHandler(handler);
+		Runtime.getRuntime().addShutdownHook(new Thread(handler::flush, "CodeRemover-Logger-Flush"));
 	}
 
-	private static class ConsoleHandler extends Handler {
+	/**
+	 * Ожидает вывода всех записанных сообщений
+	 */
+	public static void flush() {
+		handler.flush();
+	}
+
+	/**
+	 * Имя класса для параметра сообщения. Преобразуется в привычный вид только при форматировании сообщения
+	 * @param name Внутреннее имя класса
+	 * @return Параметр сообщения
+	 */
+	public static Object className(String name) {
+		return new Object() {
+			@Override
+			public String toString() {
+				return Utils.normalizeName(name);
+			}
+		};
+	}
+
+	/**
+	 * Префикс сообщений профиля сборки, экранированный для использования в шаблоне MessageFormat
+	 * @param profile Профиль сборки или null
+	 * @return "[профиль] " или пустая строка
+	 */
+	public static String profilePrefix(String profile) {
+		return profile == null ? "" : "[" + profile.replace("'", "''").replace("{", "'{'") + "] ";
+	}
+
+	/**
+	 * Асинхронный вывод в консоль. Сообщения форматируются и пишутся пачками в отдельном потоке,
+	 * потоки обработки только помещают запись в очередь. При переполнении очереди запись ожидает освобождения места.
+	 */
+	private static class AsyncHandler extends Handler {
+
+		private static final int BATCH_SIZE = 512;
 
-		public ConsoleHandler() {
+		private final BlockingQueue<LogRecord> queue = new LinkedBlockingQueue<>(64 * 1024);
+		private final Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+		private long published = 0; // под блокировкой this
+		private long written = 0;
+
+		public AsyncHandler() {
 			setFormatter(new LoggerFormatter());
+			Thread writer = new Thread(this::writeLoop, "CodeRemover-Logger");
+			writer.setDaemon(true);
+			writer.start();
 		}
 
 		@Override
 		public void publish(LogRecord record) {
-			String msg = getFormatter().format(record);
-			System.out.print(msg);
+			if(!isLoggable(record)) return;
+			synchronized(this) {
+				published++;
+			}
+			try {
+				queue.put(record);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				synchronized(this) {
+					published--;
+				}
+			}
 		}
 
+		private void writeLoop() {
+			List<LogRecord> batch = new ArrayList<>(BATCH_SIZE);
+			while(true) {
+				try {
+					batch.add(queue.take());
+				} catch (InterruptedException ex) {
+					return;
+				}
+				queue.drainTo(batch, BATCH_SIZE - 1);
+
+				try {
+					for(LogRecord record : batch) {
+						out.write(getFormatter().format(record));
+					}
+					out.flush();
+				} catch (IOException | RuntimeException ex) {
+					reportError(null, ex, ErrorManager.WRITE_FAILURE);
+				}
+
+				synchronized(this) {
+					written += batch.size();
+					notifyAll();
+				}
+				batch.clear();
+			}
+		}
+
+		/**
+		 * Ожидает вывода сообщений, записанных до вызова. Ожидание ограничено, чтобы не зависнуть при завершении JVM
+		 */
 		@Override
-		public void flush() {
+		public synchronized void flush() {
+			long target = published;
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			try {
+				while(written < target) {
+					long timeout = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+					if(timeout <= 0) return;
+					wait(timeout);
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
 		}
 
 		@Override
 		public void close() throws SecurityException {
+			flush();
 		}
 
 	}
 
 	private static class LoggerFormatter extends Formatter {
 
-		private final SimpleDateFormat date = new SimpleDateFormat("HH:mm:ss");
+		private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
 
 		@Override
 		public String format(LogRecord record) {
 			StringBuilder builder = new StringBuilder();
 			Throwable throwable = record.getThrown();
 
-			builder.append(date.format(record.getMillis()));
+			DATE.formatTo(Instant.ofEpochMilli(record.getMillis()), builder);
 			builder.append(" [");
 			builder.append(record.getLevel().getLocalizedName().toUpperCase());
 			builder.append("] ");
@@ -0,0 +1,53 @@
+package ru.redserver.coderemover;
+
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Данные, удаляемые из выходных классов для уменьшения размера архива
+ * @author Nuclear
+ */
+public enum Strip {
+
+	/**
+	 * Номера строк, таблицы локальных переменных, имя исходного файла и SourceDebugExtension
+	 */
+	DEBUG,
+	/**
+	 * Аннотации {@link Removable}, оставшиеся после удаления: с remove = false и для других профилей
+	 */
+	ANNOTATIONS,
+	/**
+	 * Записи InnerClasses об удалённых классах
+	 */
+	INNER_CLASSES;
+
+	/**
+	 * Название в параметрах запуска
+	 */
+	public final String key = name().toLowerCase(Locale.ROOT).replace('_', '-');
+
+	/**
+	 * @param list Названия через запятую: debug, annotations, inner-classes или all
+	 * @return Удаляемые данные
+	 */
+	public static Set<Strip> parse(String list) {
+		Set<Strip> parts = EnumSet.noneOf(Strip.class);
+		for(String name : list.split(",")) {
+			name = name.trim();
+			if(name.equals("all")) {
+				parts.addAll(EnumSet.allOf(Strip.class));
+				continue;
+			}
+			Strip part = null;
+			for(Strip strip : values()) {
+				if(strip.key.equals(name)) part = strip;
+			}
+			if(part == null) throw new IllegalArgumentException("Unknown strip category: " + name);
+			parts.add(part);
+		}
+		return parts;
+	}
+
+}
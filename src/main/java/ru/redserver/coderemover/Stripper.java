@@ -0,0 +1,355 @@
+package ru.redserver.coderemover;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.InnerClassNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.MethodNode;
+
+/**
+ * Уменьшение размера выходных классов: удаляет отладочную информацию, все оставшиеся аннотации {@link Removable}
+ * и записи InnerClasses об удалённых классах. Применяется в том же проходе, что и удаление: к дереву класса
+ * или к потоку событий перед ClassWriter. Сэкономленные байты считаются по атрибутам и записям класса,
+ * освободившиеся строки пула констант не учитываются.
+ * @author Nuclear
+ */
+final class Stripper {
+
+	private static final int ATTRIBUTE_HEADER = 6; // attribute_name_index и attribute_length
+	private static final int EMPTY_TABLE = ATTRIBUTE_HEADER + 2; // атрибут с числом записей
+	private static final int LINE_NUMBER_SIZE = 4;
+	private static final int LOCAL_VARIABLE_SIZE = 10;
+	private static final int INNER_CLASS_SIZE = 8;
+
+	private final AnnotationProccessor processor;
+	private final Set<Strip> parts;
+	private final boolean debug;
+	private final boolean annotations;
+	private final boolean innerClasses;
+
+	/**
+	 * @param processor Обработчик профиля: удалённые классы и метрики
+	 * @param parts Удаляемые данные
+	 */
+	Stripper(AnnotationProccessor processor, Set<Strip> parts) {
+		this.processor = processor;
+		this.parts = parts;
+		this.debug = parts.contains(Strip.DEBUG);
+		this.annotations = parts.contains(Strip.ANNOTATIONS);
+		this.innerClasses = parts.contains(Strip.INNER_CLASSES);
+	}
+
+	/**
+	 * @return Удаляемые данные для отпечатка обработки
+	 */
+	String describe() {
+		return parts.toString();
+	}
+
+	/**
+	 * Удаляет данные из дерева класса. Вызывается после удаления элементов класса
+	 * @param node Класс
+	 */
+	@SuppressWarnings("unchecked")
+	void strip(ClassNode node) {
+		long debugBytes = 0, annotationBytes = 0, innerClassBytes = 0;
+		if(debug) {
+			debugBytes += getSourceSize(node.sourceFile, node.sourceDebug);
+			node.sourceFile = null;
+			node.sourceDebug = null;
+			for(MethodNode method : (List<MethodNode>)node.methods) {
+				int lines = 0;
+				for(Iterator<AbstractInsnNode> it = method.instructions.iterator(); it.hasNext();) {
+					if(it.next() instanceof LineNumberNode) {
+						it.remove();
+						lines++;
+					}
+				}
+				int variables = 0, typedVariables = 0;
+				if(method.localVariables != null) {
+					for(LocalVariableNode variable : (List<LocalVariableNode>)method.localVariables) {
+						variables++;
+						if(variable.signature != null) typedVariables++;
+					}
+					method.localVariables = null;
+				}
+				debugBytes += getDebugSize(lines, variables, typedVariables);
+			}
+		}
+		if(annotations) {
+			annotationBytes += stripAnnotations(node.invisibleAnnotations);
+			for(FieldNode field : (List<FieldNode>)node.fields) {
+				annotationBytes += stripAnnotations(field.invisibleAnnotations);
+			}
+			for(MethodNode method : (List<MethodNode>)node.methods) {
+				annotationBytes += stripAnnotations(method.invisibleAnnotations);
+			}
+		}
+		if(innerClasses && node.innerClasses != null) {
+			int removed = 0;
+			for(Iterator<InnerClassNode> it = node.innerClasses.iterator(); it.hasNext();) {
+				if(processor.wasRemoved(it.next().name)) {
+					it.remove();
+					removed++;
+				}
+			}
+			innerClassBytes += getInnerClassesSize(removed, node.innerClasses.size());
+		}
+		addMetrics(debugBytes, annotationBytes, innerClassBytes);
+	}
+
+	/**
+	 * Оборачивает получателя событий класса. Неизменённые методы не копируются из исходного класса:
+	 * атрибуты отладки копировались бы вместе с кодом
+	 * @param cv Получатель событий, обычно ClassWriter без исходного класса
+	 * @return Фильтр событий класса
+	 */
+	ClassVisitor wrap(ClassVisitor cv) {
+		return new ClassFilter(cv);
+	}
+
+	private long stripAnnotations(List<AnnotationNode> annotations) {
+		if(annotations == null || annotations.isEmpty()) return 0;
+		List<AnnotationNode> removed = new ArrayList<>();
+		for(Iterator<AnnotationNode> it = annotations.iterator(); it.hasNext();) {
+			AnnotationNode annotation = it.next();
+			if(annotation.desc.equals(AnnotationProccessor.REMOVABLE_DESC)) {
+				removed.add(annotation);
+				it.remove();
+			}
+		}
+		return getAnnotationsSize(removed, annotations.size());
+	}
+
+	private void addMetrics(long debugBytes, long annotationBytes, long innerClassBytes) {
+		if(debugBytes > 0) processor.metrics.add(Metrics.Counter.STRIPPED_DEBUG_BYTES, debugBytes);
+		if(annotationBytes > 0) processor.metrics.add(Metrics.Counter.STRIPPED_ANNOTATION_BYTES, annotationBytes);
+		if(innerClassBytes > 0) processor.metrics.add(Metrics.Counter.STRIPPED_INNER_CLASS_BYTES, innerClassBytes);
+	}
+
+	private static long getSourceSize(String sourceFile, String sourceDebug) {
+		long size = sourceFile != null ? ATTRIBUTE_HEADER + 2 : 0;
+		if(sourceDebug != null) size += ATTRIBUTE_HEADER + sourceDebug.getBytes(StandardCharsets.UTF_8).length;
+		return size;
+	}
+
+	/**
+	 * @return Размер LineNumberTable, LocalVariableTable и LocalVariableTypeTable метода
+	 */
+	private static long getDebugSize(int lines, int variables, int typedVariables) {
+		return getTableSize(lines, LINE_NUMBER_SIZE) + getTableSize(variables, LOCAL_VARIABLE_SIZE) + getTableSize(typedVariables, LOCAL_VARIABLE_SIZE);
+	}
+
+	private static long getTableSize(int count, int entrySize) {
+		return count == 0 ? 0 : EMPTY_TABLE + (long)count * entrySize;
+	}
+
+	private static long getInnerClassesSize(int removed, int kept) {
+		if(removed == 0) return 0;
+		return (long)removed * INNER_CLASS_SIZE + (kept == 0 ? EMPTY_TABLE : 0);
+	}
+
+	/**
+	 * @param removed Удалённые аннотации элемента
+	 * @param kept Число оставшихся невидимых аннотаций. Без них удаляется и атрибут RuntimeInvisibleAnnotations
+	 * @return Размер удалённых аннотаций
+	 */
+	private static long getAnnotationsSize(List<AnnotationNode> removed, int kept) {
+		if(removed.isEmpty()) return 0;
+		long size = kept == 0 ? EMPTY_TABLE : 0;
+		for(AnnotationNode annotation : removed) {
+			size += getAnnotationSize(annotation);
+		}
+		return size;
+	}
+
+	/**
+	 * @return Размер структуры annotation: тип, число пар и пары имя-значение
+	 */
+	private static long getAnnotationSize(AnnotationNode annotation) {
+		long size = 4;
+		if(annotation.values != null) {
+			for(int i = 1; i < annotation.values.size(); i += 2) {
+				size += 2 + getValueSize(annotation.values.get(i));
+			}
+		}
+		return size;
+	}
+
+	private static long getValueSize(Object value) {
+		if(value instanceof AnnotationNode) return 1 + getAnnotationSize((AnnotationNode)value);
+		if(value instanceof String[]) return 5; // перечисление: тип и имя константы
+		if(value instanceof List) {
+			long size = 3;
+			for(Object element : (List<?>)value) {
+				size += getValueSize(element);
+			}
+			return size;
+		}
+		return 3; // константа или класс
+	}
+
+	/**
+	 * Удалённые и оставшиеся невидимые аннотации одного элемента при обработке потоком событий
+	 */
+	private static final class ElementAnnotations {
+
+		private final List<AnnotationNode> removed = new ArrayList<>();
+		private int kept = 0;
+
+		/**
+		 * @return Приёмник значений удаляемой аннотации или null, если аннотация остаётся
+		 */
+		AnnotationVisitor strip(String desc, boolean visible) {
+			if(visible || !desc.equals(AnnotationProccessor.REMOVABLE_DESC)) {
+				if(!visible) kept++;
+				return null;
+			}
+			AnnotationNode annotation = new AnnotationNode(desc); // значения нужны только для подсчёта размера
+			removed.add(annotation);
+			return annotation;
+		}
+
+		long getSize() {
+			return getAnnotationsSize(removed, kept);
+		}
+
+	}
+
+	private final class ClassFilter extends ClassVisitor {
+
+		private long debugBytes = 0;
+		private long annotationBytes = 0;
+		private int removedInnerClasses = 0;
+		private int keptInnerClasses = 0;
+		private final ElementAnnotations classAnnotations = new ElementAnnotations();
+
+		ClassFilter(ClassVisitor cv) {
+			super(Opcodes.ASM5, cv);
+		}
+
+		@Override
+		public void visitSource(String source, String debug) {
+			if(Stripper.this.debug) {
+				debugBytes += getSourceSize(source, debug);
+			} else {
+				super.visitSource(source, debug);
+			}
+		}
+
+		@Override
+		public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+			if(annotations) {
+				AnnotationVisitor removed = classAnnotations.strip(desc, visible);
+				if(removed != null) return removed;
+			}
+			return super.visitAnnotation(desc, visible);
+		}
+
+		@Override
+		public void visitInnerClass(String name, String outerName, String innerName, int access) {
+			if(innerClasses && processor.wasRemoved(name)) {
+				removedInnerClasses++;
+				return;
+			}
+			keptInnerClasses++;
+			super.visitInnerClass(name, outerName, innerName, access);
+		}
+
+		@Override
+		public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+			FieldVisitor fv = super.visitField(access, name, desc, signature, value);
+			if(fv == null || !annotations) return fv;
+			ElementAnnotations fieldAnnotations = new ElementAnnotations();
+			return new FieldVisitor(Opcodes.ASM5, fv) {
+				@Override
+				public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+					AnnotationVisitor removed = fieldAnnotations.strip(desc, visible);
+					return removed != null ? removed : super.visitAnnotation(desc, visible);
+				}
+
+				@Override
+				public void visitEnd() {
+					annotationBytes += fieldAnnotations.getSize();
+					super.visitEnd();
+				}
+			};
+		}
+
+		@Override
+		public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+			MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+			return mv != null ? new MethodFilter(mv) : null;
+		}
+
+		@Override
+		public void visitEnd() {
+			addMetrics(debugBytes, annotationBytes, getInnerClassesSize(removedInnerClasses, keptInnerClasses));
+			super.visitEnd();
+		}
+
+		private final class MethodFilter extends MethodVisitor {
+
+			private final ElementAnnotations methodAnnotations = new ElementAnnotations();
+			private int lines = 0;
+			private int variables = 0;
+			private int typedVariables = 0;
+
+			MethodFilter(MethodVisitor mv) {
+				super(Opcodes.ASM5, mv);
+			}
+
+			@Override
+			public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+				if(annotations) {
+					AnnotationVisitor removed = methodAnnotations.strip(desc, visible);
+					if(removed != null) return removed;
+				}
+				return super.visitAnnotation(desc, visible);
+			}
+
+			@Override
+			public void visitLineNumber(int line, Label start) {
+				if(debug) {
+					lines++;
+				} else {
+					super.visitLineNumber(line, start);
+				}
+			}
+
+			@Override
+			public void visitLocalVariable(String name, String desc, String signature, Label start, Label end, int index) {
+				if(debug) {
+					variables++;
+					if(signature != null) typedVariables++;
+				} else {
+					super.visitLocalVariable(name, desc, signature, start, end, index);
+				}
+			}
+
+			@Override
+			public void visitEnd() {
+				debugBytes += getDebugSize(lines, variables, typedVariables);
+				annotationBytes += methodAnnotations.getSize();
+				super.visitEnd();
+			}
+
+		}
+
+	}
+
+}
@@ -1,10 +1,14 @@
 package ru.redserver.coderemover;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 public final class Utils {
 
-	private static final Pattern PATTERN_PART_OF_CLASS = Pattern.compile("\\$[0-9]+$", Pattern.CASE_INSENSITIVE);
 	private static final String PACKAGE_SEPARATOR = "/";
 
 	private Utils() {
@@ -16,7 +20,37 @@ public final class Utils {
 	 * @return true, если это часть класса
 	 */
 	public static boolean isPartOfClass(String name) {
-		return PATTERN_PART_OF_CLASS.matcher(name).matches();
+		int sepPos = name.lastIndexOf('$');
+		if(sepPos < 0 || sepPos == name.length() - 1) return false;
+		for(int i = sepPos + 1; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if(c < '0' || c > '9') return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Компилирует шаблон имени: * - любая часть имени без разделителя, ** - любая часть имени
+	 * @param pattern Шаблон
+	 * @param separator Разделитель частей имени: '.' для классов, '/' для путей
+	 * @return Регулярное выражение
+	 */
+	public static Pattern compileGlob(String pattern, char separator) {
+		StringBuilder regex = new StringBuilder();
+		int start = 0;
+		for(int i = 0; i < pattern.length(); i++) {
+			if(pattern.charAt(i) != '*') continue;
+			if(i > start) regex.append(Pattern.quote(pattern.substring(start, i)));
+			if(i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+				regex.append(".*");
+				i++;
+			} else {
+				regex.append("[^").append(separator).append("]*");
+			}
+			start = i + 1;
+		}
+		if(start < pattern.length()) regex.append(Pattern.quote(pattern.substring(start)));
+		return Pattern.compile(regex.toString());
 	}
 
 	/**
@@ -35,20 +69,59 @@ public final class Utils {
 	 * @return Имя родительского класса. null если это класс верхнего уровня.
 	 */
 	public static String getParentClassName(String name) {
-		// Отделяем пакет от имени класса
-		int pointPos = name.lastIndexOf(PACKAGE_SEPARATOR);
-		String packageName = null;
-		String className = name;
-		if(pointPos >= 0) {
-			packageName = name.substring(0, pointPos);
-			className = name.substring(pointPos + 1);
+		int sepPos = name.lastIndexOf('$');
+		if(sepPos < 0 || sepPos < name.lastIndexOf(PACKAGE_SEPARATOR)) return null; // это класс верхнего уровня ('$' в имени пакета)
+		return name.substring(0, sepPos);
+	}
+
+	/**
+	 * Разбивает строку на аргументы по пробелам. Аргументы с пробелами заключаются в двойные кавычки
+	 * @param line Строка
+	 * @return Список аргументов
+	 */
+	public static List<String> splitArguments(String line) {
+		List<String> args = new ArrayList<>();
+		StringBuilder current = new StringBuilder();
+		boolean quoted = false, hasArg = false;
+		for(int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if(c == '"') {
+				quoted = !quoted;
+				hasArg = true;
+			} else if(Character.isWhitespace(c) && !quoted) {
+				if(hasArg) args.add(current.toString());
+				current.setLength(0);
+				hasArg = false;
+			} else {
+				current.append(c);
+				hasArg = true;
+			}
 		}
+		if(quoted) throw new IllegalArgumentException("Unclosed quote: " + line);
+		if(hasArg) args.add(current.toString());
+		return args;
+	}
 
-		int sepPos = className.lastIndexOf("$");
-		if(sepPos < 0) return null; // это класс верхнего уровня
-		String parentName = className.substring(0, sepPos);
-		if(packageName != null) parentName = packageName + PACKAGE_SEPARATOR + parentName;
-		return parentName;
+	/**
+	 * Ожидает завершения задачи и возвращает её результат. Исключения задачи пробрасываются как есть.
+	 * @param <T> Тип результата
+	 * @param future Задача
+	 * @return Результат задачи
+	 * @throws IOException Если задача завершилась с IOException или была прервана
+	 */
+	public static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if(cause instanceof IOException) throw (IOException)cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if(cause instanceof Error) throw (Error)cause;
+			throw new IOException(cause);
+		}
 	}
 
 }
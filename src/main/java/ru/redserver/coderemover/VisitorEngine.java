@@ -0,0 +1,259 @@
+package ru.redserver.coderemover;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodNode;
+import ru.redserver.coderemover.io.ClassEntry;
+
+/**
+ * Обработка класса одним проходом ClassReader -> ClassWriter без построения дерева класса.
+ * Аннотации полей и методов определяются заранее по заголовку класса, поэтому неизменённые методы
+ * копируются в результат без разбора кода. Дерево строится только для конструкторов, присваивающих удалённые поля,
+ * и для методов классов, читающих флаги сборки.
+ * Результат совпадает с обработкой деревом, за исключением порядка пула констант.
+ * При удалении данных классов (--strip) методы не копируются: фильтр событий стоит перед ClassWriter.
+ * @author Nuclear
+ */
+final class VisitorEngine {
+
+	private final AnnotationProccessor processor;
+	private final boolean applyFixes;
+
+	private final MemberSet deletedFields = new MemberSet(); // удалённые поля
+	private final MemberSet strippedFields = new MemberSet(); // поля, у которых удаляется аннотация
+	private final MemberSet removedMethods = new MemberSet();
+	private final MemberSet strippedMethods = new MemberSet();
+	private boolean stripClassAnnotation = false;
+	private boolean foldFlags = false; // класс читает флаги сборки
+
+	VisitorEngine(AnnotationProccessor processor, boolean applyFixes) {
+		this.processor = processor;
+		this.applyFixes = applyFixes;
+	}
+
+	/**
+	 * Обрабатывает класс
+	 * @param clazz Класс
+	 * @return Байт-код обработанного класса
+	 */
+	byte[] transform(ClassEntry clazz) {
+		ClassReader reader = new ClassReader(clazz.getBytes());
+		if(AnnotationProccessor.REMOVABLE_FILTER.matches(clazz.getBytes())) checkHeader(processor.readHeader(clazz));
+		foldFlags = processor.flags != null && processor.flags.matches(clazz.getBytes());
+
+		if(processor.stripper != null) { // пул констант строится заново, без строк удалённых атрибутов
+			ClassWriter writer = processor.frames != null ? new FrameWriter(FrameWriter.getFlags(reader), processor.frames) : new ClassWriter(0);
+			reader.accept(new Transformer(processor.stripper.wrap(writer)), 0);
+			return writer.toByteArray();
+		}
+
+		ClassWriter writer = processor.frames != null ? new FrameWriter(reader, processor.frames) : new ClassWriter(reader, 0); // неизменённые методы копируются без разбора
+		reader.accept(new Transformer(writer), 0);
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Определяет удаляемые элементы и элементы, у которых удаляется аннотация
+	 * @param header Заголовок класса
+	 */
+	@SuppressWarnings("unchecked")
+	private void checkHeader(ClassNode header) {
+		stripClassAnnotation = isStripped(header.invisibleAnnotations);
+
+		for(FieldNode field : (List<FieldNode>)header.fields) {
+			if(AnnotationProccessor.checkRemovable(field.invisibleAnnotations, false, processor.profile)) {
+				deletedFields.add(field.name, field.desc);
+			} else if(isStripped(field.invisibleAnnotations)) {
+				strippedFields.add(field.name, field.desc);
+			}
+		}
+
+		for(MethodNode method : (List<MethodNode>)header.methods) {
+			if(method.name.equals(AnnotationProccessor.OBJECT_CONSTRUCTOR) || method.name.equals(AnnotationProccessor.STATIC_CONSTRUCTOR)) continue; // аннотации конструкторов не проверяются
+
+			if(AnnotationProccessor.checkRemovable(method.invisibleAnnotations, false, processor.profile)) {
+				removedMethods.add(method.name, method.desc);
+			} else if(isStripped(method.invisibleAnnotations)) {
+				strippedMethods.add(method.name, method.desc);
+			}
+		}
+	}
+
+	/**
+	 * Проверяет, будет ли удалена аннотация {@link Removable} у неудаляемого элемента
+	 * @param annotations Аннотации элемента
+	 * @return true, если аннотация удаляется
+	 */
+	private boolean isStripped(List<AnnotationNode> annotations) {
+		if(annotations == null || annotations.isEmpty()) return false;
+		List<AnnotationNode> copy = new ArrayList<>(annotations);
+		AnnotationProccessor.checkRemovable(copy, true, processor.profile);
+		return copy.size() != annotations.size();
+	}
+
+	private static boolean isRemovable(String desc, boolean visible) {
+		return !visible && desc.equals(AnnotationProccessor.REMOVABLE_DESC);
+	}
+
+	private final class Transformer extends ClassVisitor {
+
+		private String className;
+		private String oldSuper; // удалённый родительский класс, ссылки на который перенаправляются
+		private String newSuper;
+
+		Transformer(ClassVisitor cv) {
+			super(Opcodes.ASM5, cv);
+		}
+
+		@Override
+		public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+			className = name;
+			if(applyFixes) {
+				List<String> inherited = processor.getInheritedInterfaces(superName, interfaces != null ? Arrays.asList(interfaces) : Collections.emptyList());
+				if(interfaces != null) interfaces = checkInterfaces(interfaces);
+				if(!inherited.isEmpty()) {
+					List<String> all = new ArrayList<>(interfaces != null ? Arrays.asList(interfaces) : Collections.emptyList());
+					for(String iFace : inherited) {
+						all.add(iFace);
+						processor.logInheritedInterface(name, iFace);
+					}
+					interfaces = all.toArray(new String[all.size()]);
+				}
+
+				String superclass = processor.getSuperclass(superName);
+				if(superName != null && !superName.equals(superclass)) {
+					oldSuper = superName;
+					newSuper = superclass;
+					superName = superclass;
+					processor.metrics.increment(Metrics.Counter.CHANGED_SUPERCLASSES);
+					if(processor.logRemovals) processor.log("Changed superclass for {0}: {1} -> {2}", SimpleLogger.className(name), SimpleLogger.className(oldSuper), SimpleLogger.className(newSuper));
+				}
+			}
+			super.visit(version, access, name, signature, superName, interfaces);
+		}
+
+		private String[] checkInterfaces(String[] interfaces) {
+			List<String> kept = null;
+			for(int i = 0; i < interfaces.length; i++) {
+				String iFace = interfaces[i];
+				if(processor.deletedIfaces.contains(iFace)) {
+					if(kept == null) {
+						kept = new ArrayList<>(interfaces.length);
+						for(int j = 0; j < i; j++) kept.add(interfaces[j]);
+					}
+					processor.metrics.increment(Metrics.Counter.REMOVED_INTERFACE_USAGES);
+					if(processor.logRemovals) processor.log("Removed interface usage {0} in {1}", iFace, className);
+				} else if(kept != null) {
+					kept.add(iFace);
+				}
+			}
+			return kept == null ? interfaces : kept.toArray(new String[kept.size()]);
+		}
+
+		@Override
+		public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+			if(stripClassAnnotation && isRemovable(desc, visible)) return null;
+			return super.visitAnnotation(desc, visible);
+		}
+
+		@Override
+		public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+			if(deletedFields.contains(name, desc)) {
+				processor.metrics.increment(Metrics.Counter.REMOVED_FIELDS);
+				if(processor.logRemovals) processor.log("Removed field: {0}.{1}", SimpleLogger.className(className), name);
+				return null;
+			}
+
+			FieldVisitor fv = super.visitField(access, name, desc, signature, value);
+			if(fv == null || !strippedFields.contains(name, desc)) return fv;
+			return new FieldVisitor(Opcodes.ASM5, fv) {
+				@Override
+				public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+					return isRemovable(desc, visible) ? null : super.visitAnnotation(desc, visible);
+				}
+			};
+		}
+
+		@Override
+		public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+			boolean constructor = name.equals(AnnotationProccessor.OBJECT_CONSTRUCTOR) || name.equals(AnnotationProccessor.STATIC_CONSTRUCTOR);
+			if(!constructor && removedMethods.contains(name, desc)) {
+				processor.metrics.increment(Metrics.Counter.REMOVED_METHODS);
+				if(processor.logRemovals) processor.log("Removed method: {0}.{1}{2}", SimpleLogger.className(className), name, desc);
+				return null;
+			}
+
+			MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+			if(mv == null) return null;
+			if(oldSuper != null) mv = new OwnerRemapper(mv);
+			if(!constructor && strippedMethods.contains(name, desc)) {
+				mv = new MethodVisitor(Opcodes.ASM5, mv) {
+					@Override
+					public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+						return isRemovable(desc, visible) ? null : super.visitAnnotation(desc, visible);
+					}
+				};
+			}
+
+			boolean checkConstructor = constructor && !deletedFields.isEmpty();
+			if(checkConstructor || foldFlags) { // присвоение удалённых полей и флаги обрабатываются на дереве метода
+				MethodVisitor target = mv;
+				return new MethodNode(Opcodes.ASM5, access, name, desc, signature, exceptions) {
+					@Override
+					public void visitEnd() {
+						if(checkConstructor) processor.checkConstructor(className, this, deletedFields);
+						if(foldFlags) processor.flags.fold(className, this);
+						accept(target);
+					}
+				};
+			}
+			return mv; // без изменений - ClassWriter копирует код метода целиком
+		}
+
+		/**
+		 * Перенаправляет обращения к удалённому родительскому классу
+		 */
+		private final class OwnerRemapper extends MethodVisitor {
+
+			OwnerRemapper(MethodVisitor mv) {
+				super(Opcodes.ASM5, mv);
+			}
+
+			@Override
+			public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+				super.visitFieldInsn(opcode, remap(owner), name, desc);
+			}
+
+			@Override
+			public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+				super.visitMethodInsn(opcode, remap(owner), name, desc, itf);
+			}
+
+			@Override
+			public void visitTypeInsn(int opcode, String type) {
+				super.visitTypeInsn(opcode, remap(type));
+			}
+
+			private String remap(String owner) {
+				if(!owner.equals(oldSuper)) return owner;
+				processor.metrics.increment(Metrics.Counter.REWRITTEN_INSTRUCTIONS);
+				return newSuper;
+			}
+
+		}
+
+	}
+
+}
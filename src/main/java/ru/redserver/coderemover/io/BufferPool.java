@@ -0,0 +1,102 @@
+package ru.redserver.coderemover.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipException;
+
+/**
+ * Общий пул буферов чтения. Записи известного размера читаются сразу в массив точного размера,
+ * записи неизвестного размера - кусками в буферы пула с одним итоговым выделением памяти.
+ * @author Nuclear
+ */
+final class BufferPool {
+
+	static final int CHUNK_SIZE = 64 * 1024;
+	private static final int MAX_POOLED = 64; // не более 4 МиБ в пуле
+
+	private static final ConcurrentLinkedQueue<byte[]> chunks = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger pooled = new AtomicInteger();
+
+	private BufferPool() {
+	}
+
+	/**
+	 * @return Буфер размером {@link #CHUNK_SIZE}. После использования возвращается в пул вызовом {@link #release(byte[])}
+	 */
+	static byte[] acquire() {
+		byte[] chunk = chunks.poll();
+		if(chunk == null) return new byte[CHUNK_SIZE];
+		pooled.decrementAndGet();
+		return chunk;
+	}
+
+	static void release(byte[] chunk) {
+		if(chunk.length != CHUNK_SIZE || pooled.incrementAndGet() > MAX_POOLED) {
+			pooled.decrementAndGet();
+			return;
+		}
+		chunks.offer(chunk);
+	}
+
+	/**
+	 * Читает запись известного размера в массив точного размера
+	 * @param stream Поток записи
+	 * @param size Размер записи
+	 * @return Содержимое записи
+	 * @throws IOException Ошибка чтения или размер записи не совпадает с заявленным
+	 */
+	static byte[] readFully(InputStream stream, int size) throws IOException {
+		byte[] bytes = new byte[size];
+		int count = 0;
+		while(count < size) {
+			int read = stream.read(bytes, count, size - count);
+			if(read < 0) throw new EOFException("Unexpected end of entry: " + count + " of " + size + " bytes");
+			count += read;
+		}
+		if(stream.read() >= 0) throw new ZipException("Entry is larger than declared size " + size); // заодно проверяет контрольную сумму записи
+		return bytes;
+	}
+
+	/**
+	 * Читает поток неизвестной длины кусками из пула
+	 * @param stream Поток
+	 * @return Содержимое потока
+	 * @throws IOException Ошибка чтения
+	 */
+	static byte[] readAll(InputStream stream) throws IOException {
+		List<byte[]> filled = new ArrayList<>();
+		byte[] chunk = acquire();
+		int count = 0, total = 0;
+		try {
+			int read;
+			while((read = stream.read(chunk, count, CHUNK_SIZE - count)) >= 0) {
+				count += read;
+				total += read;
+				if(total < 0) throw new ZipException("Entry is too large");
+				if(count == CHUNK_SIZE) {
+					filled.add(chunk);
+					chunk = acquire();
+					count = 0;
+				}
+			}
+
+			byte[] bytes = new byte[total];
+			int offset = 0;
+			for(byte[] full : filled) {
+				System.arraycopy(full, 0, bytes, offset, CHUNK_SIZE);
+				offset += CHUNK_SIZE;
+			}
+			System.arraycopy(chunk, 0, bytes, offset, count);
+			return bytes;
+		} finally {
+			filled.forEach(BufferPool::release);
+			release(chunk);
+		}
+	}
+
+}
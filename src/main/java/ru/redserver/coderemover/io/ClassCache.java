@@ -0,0 +1,270 @@
+package ru.redserver.coderemover.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Дисковый кэш обработанных классов. Ключ - хэш исходного байт-кода класса вместе с отпечатком
+ * глобального состояния удаления (удалённые классы, интерфейсы и их родители). Размер кэша ограничен,
+ * при превышении удаляются давно не использованные записи.
+ * <p>
+ * Кроме того, хранит состояние заданий: если входной файл, параметры и выходные файлы не изменились
+ * с прошлого запуска, задание можно пропустить целиком.
+ * @author Nuclear
+ */
+public final class ClassCache {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final Path classesDir;
+	private final Path jobsDir;
+	private final Path hierarchyDir;
+	private final long maxSize;
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+
+	/**
+	 * @param dir Каталог кэша
+	 * @param maxSize Максимальный размер кэша классов в байтах
+	 * @throws IOException Ошибка создания каталога
+	 */
+	public ClassCache(Path dir, long maxSize) throws IOException {
+		this.classesDir = Files.createDirectories(dir.resolve("classes"));
+		this.jobsDir = Files.createDirectories(dir.resolve("jobs"));
+		this.hierarchyDir = Files.createDirectories(dir.resolve("hierarchy"));
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Ищет обработанный класс
+	 * @param key Ключ
+	 * @return Байт-код или null, если класса нет в кэше
+	 */
+	public byte[] get(String key) {
+		Path file = getFile(key);
+		try {
+			byte[] bytes = Files.readAllBytes(file);
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis())); // для вытеснения давно не использованных
+			hits.incrementAndGet();
+			return bytes;
+		} catch (IOException ex) { // NoSuchFileException или запись удалена во время чтения
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	/**
+	 * Сохраняет обработанный класс
+	 * @param key Ключ
+	 * @param bytes Байт-код
+	 * @throws IOException Ошибка записи
+	 */
+	public void put(String key, byte[] bytes) throws IOException {
+		Path file = getFile(key);
+		Files.createDirectories(file.getParent());
+		Path temp = Files.createTempFile(file.getParent(), key, ".tmp");
+		Files.write(temp, bytes);
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public int getHits() {
+		return hits.get();
+	}
+
+	public int getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Удаляет давно не использованные записи, если размер кэша превышает допустимый
+	 * @return Число удалённых записей
+	 * @throws IOException Ошибка чтения каталога
+	 */
+	public int evict() throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> dirs = Files.newDirectoryStream(classesDir)) {
+			for(Path dir : dirs) {
+				try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+					entries.forEach(files::add);
+				}
+			}
+		}
+
+		long size = 0;
+		List<CachedFile> cached = new ArrayList<>(files.size());
+		for(Path file : files) {
+			try {
+				CachedFile entry = new CachedFile(file, Files.size(file), Files.getLastModifiedTime(file).toMillis());
+				cached.add(entry);
+				size += entry.size;
+			} catch (NoSuchFileException ex) {
+				// удалён другим заданием
+			}
+		}
+		if(size <= maxSize) return 0;
+
+		cached.sort(Comparator.comparingLong(entry -> entry.lastUsed));
+		int removed = 0;
+		for(CachedFile entry : cached) {
+			if(size <= maxSize * 9 / 10) break;
+			if(Files.deleteIfExists(entry.file)) removed++;
+			size -= entry.size;
+		}
+		return removed;
+	}
+
+	/**
+	 * Проверяет, совпадает ли сохранённое состояние задания с текущим
+	 * @param jobKey Ключ задания
+	 * @param state Текущее состояние задания
+	 * @return true, если задание уже выполнено с тем же результатом
+	 */
+	public boolean isUpToDate(String jobKey, String state) {
+		try {
+			return new String(Files.readAllBytes(jobsDir.resolve(jobKey)), StandardCharsets.UTF_8).equals(state);
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Сохраняет состояние выполненного задания
+	 * @param jobKey Ключ задания
+	 * @param state Состояние задания
+	 * @throws IOException Ошибка записи
+	 */
+	public void markDone(String jobKey, String state) throws IOException {
+		Path temp = Files.createTempFile(jobsDir, jobKey, ".tmp");
+		Files.write(temp, state.getBytes(StandardCharsets.UTF_8));
+		Files.move(temp, jobsDir.resolve(jobKey), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Файл сохранённого индекса иерархии библиотек. Ключ зависит от путей, размеров и времени изменения библиотек,
+	 * поэтому при изменении любой из них индекс строится заново
+	 * @param libraries Библиотеки
+	 * @return Путь к файлу индекса (файл может не существовать)
+	 * @throws IOException Ошибка чтения атрибутов библиотек
+	 */
+	public Path getHierarchyFile(List<Path> libraries) throws IOException {
+		return hierarchyDir.resolve(hash(describeFiles(libraries).getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Описание состояния файлов для проверки их изменения без чтения содержимого
+	 * @param files Файлы
+	 * @return Пути, размеры и время изменения файлов
+	 * @throws IOException Ошибка чтения атрибутов
+	 */
+	public static String describeFiles(List<Path> files) throws IOException {
+		StringBuilder builder = new StringBuilder();
+		for(Path file : files) {
+			builder.append(file.toAbsolutePath()).append(' ').append(Files.size(file)).append(' ').append(Files.getLastModifiedTime(file).toMillis()).append('\n');
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Вычисляет хэш состояния каталога без чтения содержимого файлов
+	 * @param dir Каталог
+	 * @return SHA-256 путей, размеров и времени изменения всех файлов каталога
+	 * @throws IOException Ошибка чтения атрибутов
+	 */
+	public static String hashDirectory(Path dir) throws IOException {
+		List<String> lines = new ArrayList<>();
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				lines.add(dir.relativize(file) + " " + attrs.size() + " " + attrs.lastModifiedTime().toMillis());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		Collections.sort(lines);
+		return hash(String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private Path getFile(String key) {
+		return classesDir.resolve(key.substring(0, 2)).resolve(key);
+	}
+
+	/**
+	 * Вычисляет ключ по набору данных
+	 * @param parts Данные
+	 * @return SHA-256 в шестнадцатеричном виде
+	 */
+	public static String hash(byte[]... parts) {
+		MessageDigest digest = newDigest();
+		for(byte[] part : parts) {
+			digest.update(part);
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Вычисляет хэш содержимого файла
+	 * @param file Файл
+	 * @return SHA-256 в шестнадцатеричном виде
+	 * @throws IOException Ошибка чтения
+	 */
+	public static String hash(Path file) throws IOException {
+		MessageDigest digest = newDigest();
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream stream = Files.newInputStream(file, StandardOpenOption.READ)) {
+			int read;
+			while((read = stream.read(buffer)) >= 0) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		return toHex(digest.digest());
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new InternalError("SHA-256 is not supported", ex);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for(int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+		}
+		return new String(chars);
+	}
+
+	private static final class CachedFile {
+
+		final Path file;
+		final long size;
+		final long lastUsed;
+
+		CachedFile(Path file, long size, long lastUsed) {
+			this.file = file;
+			this.size = size;
+			this.lastUsed = lastUsed;
+		}
+
+	}
+
+}
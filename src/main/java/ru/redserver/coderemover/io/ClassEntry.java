@@ -0,0 +1,127 @@
+package ru.redserver.coderemover.io;
+
+import java.nio.file.Path;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
+
+/**
+ * Класс Jar файла. Хранит исходный байт-код и разбирается в {@link ClassNode} только при необходимости.
+ * Если класс не был разобран, он записывается в архив без изменений.
+ * @author Nuclear
+ */
+public final class ClassEntry {
+
+	/**
+	 * Внутреннее имя класса
+	 */
+	public final String name;
+
+	private final byte[] bytes;
+	private final ZipArchive.Entry source;
+	private final Path file;
+	private ClassNode node;
+	private byte[] result; // готовый байт-код изменённого класса
+
+	public ClassEntry(byte[] bytes) {
+		this(bytes, (ZipArchive.Entry)null);
+	}
+
+	public ClassEntry(byte[] bytes, ZipArchive.Entry source) {
+		this(new ClassReader(bytes).getClassName(), bytes, source, null);
+	}
+
+	/**
+	 * @param bytes Байт-код класса
+	 * @param file Файл каталога, из которого прочитан класс
+	 */
+	public ClassEntry(byte[] bytes, Path file) {
+		this(new ClassReader(bytes).getClassName(), bytes, null, file);
+	}
+
+	private ClassEntry(String name, byte[] bytes, ZipArchive.Entry source, Path file) {
+		this.name = name;
+		this.bytes = bytes;
+		this.source = source;
+		this.file = file;
+	}
+
+	/**
+	 * Создаёт неразобранную копию класса с общим исходным байт-кодом. Дерево класса у копии своё
+	 * и создаётся только если копия будет изменена.
+	 * @return Копия класса
+	 */
+	public ClassEntry copy() {
+		return new ClassEntry(name, bytes, source, file);
+	}
+
+	/**
+	 * @return Исходный байт-код класса
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return Запись исходного архива или null, если класс получен не из архива
+	 */
+	public ZipArchive.Entry getSource() {
+		return source;
+	}
+
+	/**
+	 * @return Файл исходного каталога или null, если класс получен не из каталога
+	 */
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * @return true, если класс был разобран и может быть изменён
+	 */
+	public boolean isParsed() {
+		return node != null;
+	}
+
+	/**
+	 * @return true, если класс был изменён и должен быть записан заново
+	 */
+	public boolean isChanged() {
+		return node != null || result != null;
+	}
+
+	/**
+	 * Задаёт готовый байт-код изменённого класса, например полученный из кэша. Дерево класса при этом освобождается.
+	 * @param result Байт-код
+	 */
+	public void setResult(byte[] result) {
+		this.result = result;
+		this.node = null;
+	}
+
+	/**
+	 * Разбирает класс при первом обращении
+	 * @return Дерево класса
+	 */
+	public ClassNode getNode() {
+		if(node == null) {
+			ClassNode parsed = new ClassNode();
+			new ClassReader(bytes).accept(parsed, 0);
+			node = parsed;
+		}
+		return node;
+	}
+
+	/**
+	 * @return Байт-код для записи в архив
+	 */
+	public byte[] toByteArray() {
+		if(result != null) return result;
+		if(node == null) return bytes;
+
+		ClassWriter writer = new ClassWriter(0);
+		node.accept(writer);
+		return writer.toByteArray();
+	}
+
+}
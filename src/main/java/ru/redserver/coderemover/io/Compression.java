@@ -0,0 +1,40 @@
+package ru.redserver.coderemover.io;
+
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * Степень сжатия записей выходного архива
+ * @author Nuclear
+ */
+public enum Compression {
+
+	/**
+	 * Без сжатия (STORED)
+	 */
+	STORE(Deflater.NO_COMPRESSION),
+	FAST(Deflater.BEST_SPEED),
+	DEFAULT(Deflater.DEFAULT_COMPRESSION),
+	MAX(Deflater.BEST_COMPRESSION);
+
+	/**
+	 * Уровень {@link Deflater}
+	 */
+	public final int level;
+
+	private Compression(int level) {
+		this.level = level;
+	}
+
+	/**
+	 * @param name Название: store, fast, default или max
+	 * @return Степень сжатия
+	 */
+	public static Compression parse(String name) {
+		for(Compression compression : values()) {
+			if(compression.name().toLowerCase(Locale.ROOT).equals(name)) return compression;
+		}
+		throw new IllegalArgumentException("Unknown compression: " + name);
+	}
+
+}
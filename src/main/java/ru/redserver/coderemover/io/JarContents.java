@@ -1,29 +1,154 @@
 package ru.redserver.coderemover.io;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.jar.Manifest;
-import org.objectweb.asm.tree.ClassNode;
+import ru.redserver.coderemover.Metrics;
 
 /**
  * Содержит в себе всю необходимую информацию для обратной сборки Jar файла
  * @author Nuclear
  */
-public final class JarContents {
+public final class JarContents implements Closeable {
 
 	/**
 	 * Список файлов (Все файлы кроме .class)
 	 */
-	public final Map<String, byte[]> resources = new LinkedHashMap<>();
+	public final Map<String, Resource> resources = new LinkedHashMap<>();
 
 	/**
-	 * Список классов Jar файла
+	 * Список классов Jar файла (ключ - внутреннее имя класса)
 	 */
-	public final Map<String, ClassNode> classes = new LinkedHashMap<>();
+	public final Map<String, ClassEntry> classes = new LinkedHashMap<>();
+
+	/**
+	 * Вложенные архивы (ключ - имя записи ресурса). Классы вложенных архивов обрабатываются вместе с классами
+	 * внешнего архива, а архив записывается на место исходной записи
+	 */
+	public final Map<String, JarContents> nested = new LinkedHashMap<>();
 
 	/**
 	 * Manifest Jar файла
 	 */
 	public Manifest manifest;
 
+	/**
+	 * Метрики запуска, общие для всех копий содержимого
+	 */
+	public Metrics metrics = new Metrics();
+
+	/**
+	 * Исходный архив, из которого копируются неизменённые записи
+	 */
+	ZipArchive archive;
+	private boolean ownsArchive = true;
+	private List<Path[]> replacements = new ArrayList<>(); // временный файл -> заменяемый исходный архив, общий для всех копий
+	Set<String> loadedClasses = Collections.emptySet(); // имена классов при загрузке
+
+	/**
+	 * Создаёт копию содержимого для отдельного профиля сборки. Копия использует тот же исходный архив
+	 * и исходный байт-код классов, но изменения классов в копии не затрагивают оригинал.
+	 * @return Копия содержимого
+	 */
+	public JarContents copy() {
+		JarContents copy = new JarContents();
+		copy.resources.putAll(resources);
+		for(Map.Entry<String, ClassEntry> entry : classes.entrySet()) {
+			copy.classes.put(entry.getKey(), entry.getValue().copy());
+		}
+		for(Map.Entry<String, JarContents> entry : nested.entrySet()) {
+			copy.nested.put(entry.getKey(), entry.getValue().copy());
+		}
+		copy.manifest = manifest;
+		copy.metrics = metrics;
+		copy.archive = archive;
+		copy.ownsArchive = false;
+		copy.replacements = replacements;
+		copy.loadedClasses = loadedClasses;
+		return copy;
+	}
+
+	/**
+	 * @return Это содержимое и содержимое всех вложенных архивов на любой глубине
+	 */
+	public List<JarContents> getArchives() {
+		List<JarContents> archives = new ArrayList<>();
+		addArchives(archives);
+		return archives;
+	}
+
+	private void addArchives(List<JarContents> archives) {
+		archives.add(this);
+		for(JarContents inner : nested.values()) {
+			inner.addArchives(archives);
+		}
+	}
+
+	/**
+	 * @return Классы этого и всех вложенных архивов
+	 */
+	public List<ClassEntry> getAllClasses() {
+		if(nested.isEmpty()) return new ArrayList<>(classes.values());
+
+		List<ClassEntry> all = new ArrayList<>();
+		for(JarContents contents : getArchives()) {
+			all.addAll(contents.classes.values());
+		}
+		return all;
+	}
+
+	/**
+	 * @return true, если классы архива или вложенных архивов изменены или удалены
+	 */
+	public boolean isModified() {
+		if(classes.size() != loadedClasses.size()) return true;
+		for(ClassEntry clazz : classes.values()) {
+			if(clazz.isChanged()) return true;
+		}
+		for(JarContents inner : nested.values()) {
+			if(inner.isModified()) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Заменяет исходный архив записанным временным файлом. Исходный архив читается, пока открыт, и на Windows
+	 * не может быть заменён, поэтому замена выполняется сразу только владельцем архива, а для копий профилей -
+	 * при закрытии оригинала
+	 * @param temp Записанный временный файл
+	 * @param path Путь исходного архива
+	 * @throws IOException Ошибка переноса
+	 */
+	void replaceOnClose(Path temp, Path path) throws IOException {
+		synchronized(replacements) {
+			replacements.add(new Path[]{temp, path});
+		}
+		if(ownsArchive) close();
+	}
+
+	@Override
+	public void close() throws IOException {
+		for(JarContents inner : nested.values()) {
+			inner.close();
+		}
+		if(archive == null || !ownsArchive) return;
+		archive.close();
+
+		synchronized(replacements) {
+			for(Path[] replacement : replacements) {
+				Files.move(replacement[0], replacement[1], StandardCopyOption.REPLACE_EXISTING);
+			}
+			replacements.clear();
+		}
+	}
+
 }
@@ -1,91 +1,564 @@
 package ru.redserver.coderemover.io;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarInputStream;
 import java.util.jar.JarOutputStream;
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassWriter;
-import org.objectweb.asm.tree.ClassNode;
+import java.util.jar.Manifest;
+import java.util.logging.Level;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+import ru.redserver.coderemover.ClassHierarchy;
+import ru.redserver.coderemover.Metrics;
+import ru.redserver.coderemover.SimpleLogger;
+import ru.redserver.coderemover.Utils;
 
 public final class JarManager {
 
-	private static final Set<String> dirs = new LinkedHashSet<>();
+	/**
+	 * Загружает содержимое архива. Классы читаются и распаковываются в пуле потоков и остаются в виде байт-кода,
+	 * ресурсы не читаются вовсе - сохраняется только ссылка на запись архива. Порядок классов и ресурсов
+	 * совпадает с порядком записей в архиве. Архив остаётся открытым до закрытия {@link JarContents}.
+	 * @param path Путь к архиву
+	 * @param pool Пул потоков для чтения классов
+	 * @return Содержимое архива
+	 * @throws IOException Ошибка чтения
+	 */
+	public static JarContents loadClassesFromJar(Path path, ForkJoinPool pool) throws IOException {
+		return loadClassesFromJar(path, pool, new Metrics());
+	}
+
+	/**
+	 * Загружает содержимое архива, учитывая время чтения и объём данных в метриках
+	 * @param path Путь к архиву
+	 * @param pool Пул потоков для чтения классов
+	 * @param metrics Метрики запуска
+	 * @return Содержимое архива
+	 * @throws IOException Ошибка чтения
+	 */
+	public static JarContents loadClassesFromJar(Path path, ForkJoinPool pool, Metrics metrics) throws IOException {
+		return loadClassesFromJar(path, pool, metrics, null);
+	}
+
+	/**
+	 * Загружает содержимое архива вместе с вложенными архивами. Вложенные архивы читаются в память
+	 * и загружаются рекурсивно в пуле потоков, без временных файлов
+	 * @param path Путь к архиву
+	 * @param pool Пул потоков для чтения классов
+	 * @param metrics Метрики запуска
+	 * @param nested Проверяет имя записи ресурса: является ли она вложенным архивом. null - вложенные архивы не загружаются
+	 * @return Содержимое архива
+	 * @throws IOException Ошибка чтения
+	 */
+	@SuppressWarnings("try")
+	public static JarContents loadClassesFromJar(Path path, ForkJoinPool pool, Metrics metrics, Predicate<String> nested) throws IOException {
+		try (Metrics.PhaseTimer timer = metrics.time(Metrics.Phase.READ)) {
+			ZipArchive archive = ZipArchive.open(path);
+			return loadArchive(archive, pool, metrics, nested);
+		}
+	}
 
-	public static JarContents loadClassesFromJar(Path path) throws IOException {
+	private static JarContents loadArchive(ZipArchive archive, ForkJoinPool pool, Metrics metrics, Predicate<String> nested) throws IOException {
 		JarContents classCollection = new JarContents();
-		try (JarInputStream jarInputStream = new JarInputStream(new BufferedInputStream(Files.newInputStream(path, StandardOpenOption.READ)), false)) {
-			JarEntry entry;
-			while((entry = jarInputStream.getNextJarEntry()) != null) {
-				if(entry.isDirectory()) continue;
+		classCollection.metrics = metrics;
+		classCollection.archive = archive;
+		try {
+			List<ForkJoinTask<ClassEntry>> parsed = new ArrayList<>();
+			for(ZipArchive.Entry entry : classCollection.archive.getEntries()) {
+				if(entry.isDirectory()) {
+					metrics.addInput(Metrics.EntryType.DIRECTORY, 0);
+					continue;
+				}
 
-				String name = entry.getName();
-				byte[] bytes = readResource(jarInputStream);
-				if(name.endsWith(".class")) {
-					ClassReader reader = new ClassReader(bytes);
-					ClassNode node = new ClassNode();
-					reader.accept(node, 0);
-					classCollection.classes.put(node.name, node);
+				String name = entry.name;
+				if(name.equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+					classCollection.manifest = new Manifest(new ByteArrayInputStream(entry.readBytes()));
+					metrics.addInput(Metrics.EntryType.MANIFEST, entry.getSize());
+				} else if(name.endsWith(".class")) {
+					parsed.add(pool.submit(() -> new ClassEntry(entry.readBytes(), entry)));
 				} else {
-					classCollection.resources.put(name, bytes);
+					classCollection.resources.put(name, new Resource(entry));
+					metrics.addInput(Metrics.EntryType.RESOURCE, entry.getSize());
 				}
 			}
-			classCollection.manifest = jarInputStream.getManifest();
+
+			for(ForkJoinTask<ClassEntry> task : parsed) {
+				ClassEntry clazz = Utils.await(task);
+				classCollection.classes.put(clazz.name, clazz);
+				metrics.addInput(Metrics.EntryType.CLASS, clazz.getBytes().length);
+			}
+			classCollection.loadedClasses = new HashSet<>(classCollection.classes.keySet());
+			if(nested != null) loadNested(classCollection, archive.getLocation() + "!/", pool, metrics, nested);
+			return classCollection;
+		} catch (IOException | RuntimeException ex) {
+			classCollection.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Загружает вложенные архивы параллельно. Порядок вложенных архивов совпадает с порядком ресурсов
+	 * @param prefix Префикс расположения вложенных архивов для сообщений об ошибках
+	 */
+	private static void loadNested(JarContents classCollection, String prefix, ForkJoinPool pool, Metrics metrics, Predicate<String> nested) throws IOException {
+		List<String> names = new ArrayList<>();
+		List<ForkJoinTask<JarContents>> tasks = new ArrayList<>();
+		for(Map.Entry<String, Resource> entry : classCollection.resources.entrySet()) {
+			if(!nested.test(entry.getKey())) continue;
+
+			Resource resource = entry.getValue();
+			names.add(entry.getKey());
+			tasks.add(pool.submit(() -> loadArchive(ZipArchive.wrap(prefix + entry.getKey(), resource.getBytes()), pool, metrics, nested)));
+		}
+		for(int i = 0; i < tasks.size(); i++) {
+			classCollection.nested.put(names.get(i), Utils.await(tasks.get(i)));
 		}
+	}
+
+	/**
+	 * Загружает содержимое архива или распакованного каталога
+	 * @param path Путь к архиву или каталогу
+	 * @param pool Пул потоков для чтения классов
+	 * @param metrics Метрики запуска
+	 * @return Содержимое
+	 * @throws IOException Ошибка чтения
+	 */
+	public static JarContents loadClasses(Path path, ForkJoinPool pool, Metrics metrics) throws IOException {
+		return loadClasses(path, pool, metrics, null);
+	}
+
+	/**
+	 * Загружает содержимое архива или распакованного каталога вместе с вложенными архивами
+	 * @param path Путь к архиву или каталогу
+	 * @param pool Пул потоков для чтения классов
+	 * @param metrics Метрики запуска
+	 * @param nested Проверяет имя записи ресурса: является ли она вложенным архивом. null - вложенные архивы не загружаются
+	 * @return Содержимое
+	 * @throws IOException Ошибка чтения
+	 */
+	public static JarContents loadClasses(Path path, ForkJoinPool pool, Metrics metrics, Predicate<String> nested) throws IOException {
+		return Files.isDirectory(path) ? loadClassesFromDirectory(path, pool, metrics, nested) : loadClassesFromJar(path, pool, metrics, nested);
+	}
 
-		return classCollection;
+	/**
+	 * Загружает содержимое распакованного каталога. Файлы перечисляются в порядке имён, классы читаются
+	 * в пуле потоков, ресурсы не читаются - сохраняется только путь к файлу
+	 * @param dir Каталог
+	 * @param pool Пул потоков для чтения классов
+	 * @param metrics Метрики запуска
+	 * @return Содержимое каталога
+	 * @throws IOException Ошибка чтения
+	 */
+	public static JarContents loadClassesFromDirectory(Path dir, ForkJoinPool pool, Metrics metrics) throws IOException {
+		return loadClassesFromDirectory(dir, pool, metrics, null);
 	}
 
-	private static byte[] readResource(InputStream stream) throws IOException {
-		ByteArrayOutputStream temp = new ByteArrayOutputStream(Math.max(8192, stream.available()));
-		byte[] buffer = new byte[8192];
-		int read;
-		while((read = stream.read(buffer)) >= 0) {
-			temp.write(buffer, 0, read);
+	/**
+	 * Загружает содержимое распакованного каталога вместе с вложенными архивами
+	 * @param dir Каталог
+	 * @param pool Пул потоков для чтения классов
+	 * @param metrics Метрики запуска
+	 * @param nested Проверяет имя файла: является ли он вложенным архивом. null - вложенные архивы не загружаются
+	 * @return Содержимое каталога
+	 * @throws IOException Ошибка чтения
+	 */
+	@SuppressWarnings("try")
+	public static JarContents loadClassesFromDirectory(Path dir, ForkJoinPool pool, Metrics metrics, Predicate<String> nested) throws IOException {
+		JarContents classCollection = new JarContents();
+		classCollection.metrics = metrics;
+		try (Metrics.PhaseTimer timer = metrics.time(Metrics.Phase.READ)) {
+			List<String> names = listFiles(dir, metrics);
+			List<ForkJoinTask<ClassEntry>> parsed = new ArrayList<>();
+			for(String name : names) {
+				Path file = dir.resolve(name);
+				if(name.equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+					byte[] bytes = Files.readAllBytes(file);
+					classCollection.manifest = new Manifest(new ByteArrayInputStream(bytes));
+					metrics.addInput(Metrics.EntryType.MANIFEST, bytes.length);
+				} else if(name.endsWith(".class")) {
+					parsed.add(pool.submit(() -> new ClassEntry(Files.readAllBytes(file), file)));
+				} else {
+					classCollection.resources.put(name, new Resource(file));
+					metrics.addInput(Metrics.EntryType.RESOURCE, Files.size(file));
+				}
+			}
+
+			for(ForkJoinTask<ClassEntry> task : parsed) {
+				ClassEntry clazz = Utils.await(task);
+				classCollection.classes.put(clazz.name, clazz);
+				metrics.addInput(Metrics.EntryType.CLASS, clazz.getBytes().length);
+			}
+			classCollection.loadedClasses = new HashSet<>(classCollection.classes.keySet());
+			if(nested != null) loadNested(classCollection, dir.toString() + dir.getFileSystem().getSeparator(), pool, metrics, nested);
+			return classCollection;
 		}
-		return temp.toByteArray();
 	}
 
-	public static void writeClasssesToJar(Path path, JarContents classCollection) throws IOException {
-		dirs.clear();
-		try (JarOutputStream jarOutputStream = new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)))) {
+	/**
+	 * Перечисляет файлы каталога
+	 * @return Относительные пути файлов с разделителем '/' в порядке имён
+	 */
+	private static List<String> listFiles(Path dir, Metrics metrics) throws IOException {
+		List<String> names = new ArrayList<>();
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) {
+				if(metrics != null && !path.equals(dir)) metrics.addInput(Metrics.EntryType.DIRECTORY, 0);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if(attrs.isRegularFile()) names.add(toEntryName(dir, file));
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		Collections.sort(names);
+		return names;
+	}
+
+	private static String toEntryName(Path dir, Path file) {
+		return dir.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+	}
+
+	/**
+	 * Записывает содержимое в существующий каталог или в архив
+	 * @param path Выходной архив или каталог
+	 * @param classCollection Содержимое
+	 * @param pool Пул потоков
+	 * @param compression Степень сжатия архива или null
+	 * @throws IOException Ошибка записи
+	 */
+	public static void writeClasses(Path path, JarContents classCollection, ForkJoinPool pool, Compression compression) throws IOException {
+		writeClasses(path, classCollection, pool, compression, null);
+	}
+
+	/**
+	 * Записывает содержимое в существующий каталог или в архив
+	 * @param path Выходной архив или каталог
+	 * @param classCollection Содержимое
+	 * @param pool Пул потоков
+	 * @param compression Степень сжатия архива или null
+	 * @param layout Расположение записей архива или null. В каталог записи пишутся без учёта расположения
+	 * @throws IOException Ошибка записи
+	 */
+	public static void writeClasses(Path path, JarContents classCollection, ForkJoinPool pool, Compression compression, Layout layout) throws IOException {
+		writeClasses(path, classCollection, pool, compression, layout, Files.isDirectory(path));
+	}
+
+	/**
+	 * Записывает содержимое в архив или каталог
+	 * @param path Выходной архив или каталог
+	 * @param classCollection Содержимое
+	 * @param pool Пул потоков
+	 * @param compression Степень сжатия архива или null
+	 * @param layout Расположение записей архива или null. В каталог записи пишутся без учёта расположения
+	 * @param directory Записывать в каталог, см. {@link ru.redserver.coderemover.Options#isDirectoryOutput(Path)}
+	 * @throws IOException Ошибка записи
+	 */
+	public static void writeClasses(Path path, JarContents classCollection, ForkJoinPool pool, Compression compression, Layout layout, boolean directory) throws IOException {
+		if(directory) {
+			writeClassesToDirectory(path, classCollection, pool);
+		} else {
+			writeClasssesToJar(path, classCollection, pool, compression, layout);
+		}
+	}
+
+	/**
+	 * Записывает содержимое в каталог. Файлы записываются в пуле потоков и только если их содержимое изменилось:
+	 * неизменённые файлы исходного каталога связываются жёсткими ссылками (или копируются, если ссылки
+	 * не поддерживаются) и пропускаются, если уже совпадают по размеру и времени изменения, остальные сравниваются
+	 * с существующими файлами. Изменённый файл записывается заново, а не поверх старого, поэтому жёсткая ссылка
+	 * на исходный файл не изменяет его. Из каталога удаляются только файлы удалённых классов: классов, которые были
+	 * загружены, но не записаны. Остальные файлы каталога не затрагиваются.
+	 * @param dir Выходной каталог
+	 * @param classCollection Содержимое
+	 * @param pool Пул потоков
+	 * @throws IOException Ошибка записи
+	 */
+	@SuppressWarnings("try")
+	public static void writeClassesToDirectory(Path dir, JarContents classCollection, ForkJoinPool pool) throws IOException {
+		Metrics metrics = classCollection.metrics;
+		try (Metrics.PhaseTimer timer = metrics.time(Metrics.Phase.WRITE)) {
+			Files.createDirectories(dir);
+			LongAdder[] results = {new LongAdder(), new LongAdder(), new LongAdder()}; // не изменены, связаны, записаны
+			Set<String> names = new HashSet<>();
+			List<ForkJoinTask<?>> tasks = new ArrayList<>();
+
 			if(classCollection.manifest != null) {
-				addDirectories(JarFile.MANIFEST_NAME);
-				jarOutputStream.putNextEntry(new JarEntry(JarFile.MANIFEST_NAME));
-				classCollection.manifest.write(jarOutputStream);
-				jarOutputStream.closeEntry();
+				ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+				classCollection.manifest.write(manifest);
+				names.add(JarFile.MANIFEST_NAME);
+				results[writeFile(dir.resolve(JarFile.MANIFEST_NAME), null, manifest.toByteArray())].increment();
+				metrics.addOutput(Metrics.EntryType.MANIFEST, manifest.size(), manifest.size());
+			}
+
+			for(ClassEntry clazz : classCollection.classes.values()) {
+				String name = clazz.name.concat(".class");
+				names.add(name);
+				tasks.add(pool.submit(() -> {
+					byte[] data = null;
+					if(clazz.isChanged()) {
+						try (Metrics.PhaseTimer serializeTimer = metrics.time(Metrics.Phase.SERIALIZE)) {
+							data = clazz.toByteArray();
+						}
+					} else {
+						metrics.increment(Metrics.Counter.PASSED_THROUGH_CLASSES);
+						if(clazz.getFile() == null) data = clazz.getBytes();
+					}
+					results[writeFile(dir.resolve(name), data == null ? clazz.getFile() : null, data)].increment();
+					int size = data != null ? data.length : clazz.getBytes().length;
+					metrics.addOutput(Metrics.EntryType.CLASS, size, size);
+					return null;
+				}));
 			}
 
-			for(ClassNode clazz : classCollection.classes.values()) {
-				addDirectories(clazz.name);
+			for(Map.Entry<String, Resource> entry : classCollection.resources.entrySet()) {
+				String name = entry.getKey();
+				Resource resource = entry.getValue();
+				names.add(name);
+				JarContents inner = classCollection.nested.get(name);
+				tasks.add(pool.submit(() -> {
+					byte[] data;
+					if(inner != null && inner.isModified()) { // вложенный архив собирается в памяти
+						data = writeNested(inner, resource, pool, metrics, null, null);
+					} else {
+						data = resource.getFile() == null ? resource.getBytes() : null;
+					}
+					results[writeFile(dir.resolve(name), data == null ? resource.getFile() : null, data)].increment();
+					long size = data != null ? data.length : Files.size(resource.getFile());
+					metrics.addOutput(Metrics.EntryType.RESOURCE, size, size);
+					return null;
+				}));
+			}
+
+			for(ForkJoinTask<?> task : tasks) {
+				Utils.await(task);
+			}
+			int deleted = deleteRemovedClasses(dir, classCollection.loadedClasses, names);
+			SimpleLogger.instance.log(Level.FINE, "Directory {0}: {1} files written, {2} linked, {3} unchanged, {4} deleted.", new Object[]{
+				dir, results[2].sum(), results[1].sum(), results[0].sum(), deleted});
+		}
+	}
 
-				ClassWriter writer = new ClassWriter(0);
-				clazz.accept(writer);
+	private static final int UNCHANGED = 0, LINKED = 1, WRITTEN = 2;
 
-				jarOutputStream.putNextEntry(new JarEntry(clazz.name.concat(".class")));
-				jarOutputStream.write(writer.toByteArray());
+	/**
+	 * Записывает файл выходного каталога, если его содержимое изменилось
+	 * @param target Выходной файл
+	 * @param source Файл исходного каталога с тем же содержимым или null
+	 * @param data Содержимое, если source не задан
+	 * @return Результат: {@link #UNCHANGED}, {@link #LINKED} или {@link #WRITTEN}
+	 */
+	private static int writeFile(Path target, Path source, byte[] data) throws IOException {
+		BasicFileAttributes existing = readAttributes(target);
+		if(source != null) {
+			if(existing != null && (Files.isSameFile(source, target) || (existing.size() == Files.size(source) && existing.lastModifiedTime().equals(Files.getLastModifiedTime(source))))) return UNCHANGED;
+
+			Files.createDirectories(target.getParent());
+			Files.deleteIfExists(target);
+			try {
+				Files.createLink(target, source);
+				return LINKED;
+			} catch (IOException | UnsupportedOperationException ex) { // другая файловая система или ссылки не поддерживаются
+				Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES);
+				return WRITTEN;
+			}
+		}
+
+		if(existing != null && existing.size() == data.length && Arrays.equals(Files.readAllBytes(target), data)) return UNCHANGED;
+		Files.createDirectories(target.getParent());
+		Files.deleteIfExists(target); // разрываем возможную жёсткую ссылку на исходный файл
+		Files.write(target, data, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		return WRITTEN;
+	}
+
+	private static BasicFileAttributes readAttributes(Path file) throws IOException {
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+			return attrs.isRegularFile() ? attrs : null;
+		} catch (NoSuchFileException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Удаляет файлы удалённых классов и опустевшие после этого каталоги. Удаляются только файлы с именами
+	 * загруженных классов, которые не записаны, поэтому посторонние файлы выходного каталога не затрагиваются
+	 * @param dir Выходной каталог
+	 * @param loaded Классы входного содержимого
+	 * @param names Записанные записи
+	 * @return Число удалённых файлов
+	 */
+	private static int deleteRemovedClasses(Path dir, Set<String> loaded, Set<String> names) throws IOException {
+		int deleted = 0;
+		for(String clazz : loaded) {
+			String name = clazz.concat(".class");
+			if(names.contains(name)) continue;
+
+			Path file = dir.resolve(name);
+			if(!Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) continue;
+			Files.delete(file);
+			deleted++;
+			for(Path parent = file.getParent(); !parent.equals(dir); parent = parent.getParent()) {
+				try (DirectoryStream<Path> stream = Files.newDirectoryStream(parent)) {
+					if(stream.iterator().hasNext()) break;
+				}
+				Files.delete(parent);
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Читает заголовки всех классов библиотеки. Классы распаковываются в пуле потоков, поля и методы не разбираются
+	 * @param path Путь к архиву библиотеки
+	 * @param pool Пул потоков
+	 * @return Заголовки классов в порядке записей архива
+	 * @throws IOException Ошибка чтения
+	 */
+	public static List<ClassHierarchy.Header> readClassHeaders(Path path, ForkJoinPool pool) throws IOException {
+		try (ZipArchive archive = ZipArchive.open(path)) {
+			List<ForkJoinTask<ClassHierarchy.Header>> tasks = new ArrayList<>();
+			for(ZipArchive.Entry entry : archive.getEntries()) {
+				if(!entry.isDirectory() && entry.name.endsWith(".class") && !entry.name.startsWith("META-INF/")) {
+					tasks.add(pool.submit(() -> new ClassHierarchy.Header(entry.readBytes())));
+				}
+			}
+
+			List<ClassHierarchy.Header> headers = new ArrayList<>(tasks.size());
+			for(ForkJoinTask<ClassHierarchy.Header> task : tasks) {
+				headers.add(Utils.await(task));
+			}
+			return headers;
+		}
+	}
+
+	/**
+	 * Первый проход потокового режима: передаёт классы архива по одному, не сохраняя их в памяти
+	 * @param path Путь к архиву
+	 * @param consumer Обработчик классов
+	 * @throws IOException Ошибка чтения
+	 */
+	public static void scanClasses(Path path, Consumer<ClassEntry> consumer) throws IOException {
+		try (JarInputStream jarInputStream = new JarInputStream(new BufferedInputStream(Files.newInputStream(path, StandardOpenOption.READ)), false)) {
+			JarEntry entry;
+			while((entry = jarInputStream.getNextJarEntry()) != null) {
+				if(!entry.isDirectory() && entry.getName().endsWith(".class")) {
+					consumer.accept(new ClassEntry(readResource(jarInputStream, entry.getSize())));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Второй проход потокового режима: переписывает архив запись за записью. В памяти находится только
+	 * обрабатываемый класс, ресурсы копируются потоком без полной буферизации.
+	 * @param input Исходный архив
+	 * @param output Выходной архив
+	 * @param transformer Обработчик классов. Возвращает null, если класс необходимо удалить
+	 * @throws IOException Ошибка чтения или записи
+	 */
+	public static void transformJar(Path input, Path output, UnaryOperator<ClassEntry> transformer) throws IOException {
+		transformJar(input, output, transformer, null);
+	}
+
+	/**
+	 * Второй проход потокового режима с заданной степенью сжатия
+	 * @param input Исходный архив
+	 * @param output Выходной архив
+	 * @param transformer Обработчик классов. Возвращает null, если класс необходимо удалить
+	 * @param compression Степень сжатия или null - по умолчанию. Без сжатия записи сохраняются сжатием уровня 0
+	 * @throws IOException Ошибка чтения или записи
+	 */
+	public static void transformJar(Path input, Path output, UnaryOperator<ClassEntry> transformer, Compression compression) throws IOException {
+		// Исходный архив читается во время записи, поэтому выходной архив на его месте пишется во временный файл
+		boolean replaceInput = Files.exists(output) && Files.isSameFile(input, output);
+		Path target = replaceInput ? createReplacement(output) : output;
+		try {
+			writeTransformed(input, target, transformer, compression);
+		} catch (IOException | RuntimeException ex) {
+			if(replaceInput) Files.deleteIfExists(target);
+			throw ex;
+		}
+		if(replaceInput) Files.move(target, output, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static void writeTransformed(Path input, Path output, UnaryOperator<ClassEntry> transformer, Compression compression) throws IOException {
+		Set<String> dirs = new LinkedHashSet<>();
+		try (JarInputStream jarInputStream = new JarInputStream(new BufferedInputStream(Files.newInputStream(input, StandardOpenOption.READ)), false);
+				JarOutputStream jarOutputStream = new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(output, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)))) {
+			if(compression != null) jarOutputStream.setLevel(compression.level);
+			Manifest manifest = jarInputStream.getManifest();
+			if(manifest != null) {
+				addDirectories(dirs, JarFile.MANIFEST_NAME);
+				jarOutputStream.putNextEntry(new JarEntry(JarFile.MANIFEST_NAME));
+				manifest.write(jarOutputStream);
 				jarOutputStream.closeEntry();
 			}
 
-			for(Map.Entry<String, byte[]> entry : classCollection.resources.entrySet()) {
-				addDirectories(entry.getKey());
+			byte[] buffer = BufferPool.acquire();
+			JarEntry entry;
+			while((entry = jarInputStream.getNextJarEntry()) != null) {
+				if(entry.isDirectory()) continue;
+
+				String name = entry.getName();
+				if(name.endsWith(".class")) {
+					ClassEntry clazz = transformer.apply(new ClassEntry(readResource(jarInputStream, entry.getSize())));
+					if(clazz == null) continue;
 
-				jarOutputStream.putNextEntry(new JarEntry(entry.getKey()));
-				jarOutputStream.write(entry.getValue());
+					addDirectories(dirs, clazz.name);
+					jarOutputStream.putNextEntry(new JarEntry(clazz.name.concat(".class")));
+					jarOutputStream.write(clazz.toByteArray());
+				} else {
+					addDirectories(dirs, name);
+					jarOutputStream.putNextEntry(new JarEntry(name));
+					int read;
+					while((read = jarInputStream.read(buffer)) >= 0) {
+						jarOutputStream.write(buffer, 0, read);
+					}
+				}
 				jarOutputStream.closeEntry();
 			}
 
+			BufferPool.release(buffer);
+
 			for(String dirPath : dirs) {
 				jarOutputStream.putNextEntry(new JarEntry(dirPath + "/"));
 				jarOutputStream.closeEntry();
@@ -95,12 +568,257 @@ public final class JarManager {
 		}
 	}
 
-	private static void addDirectories(String filePath) {
+	/**
+	 * Читает запись потока архива. Размер из заголовка записи известен, если он записан до данных:
+	 * тогда запись читается в массив точного размера, иначе - кусками в буферы пула
+	 * @param stream Поток архива, установленный на запись
+	 * @param size Размер записи или -1
+	 * @return Содержимое записи
+	 * @throws IOException Ошибка чтения
+	 */
+	private static byte[] readResource(InputStream stream, long size) throws IOException {
+		if(size > Integer.MAX_VALUE - 8) throw new ZipException("Entry is too large: " + size);
+		return size >= 0 ? BufferPool.readFully(stream, (int)size) : BufferPool.readAll(stream);
+	}
+
+	/**
+	 * Записывает содержимое в архив. Неизменённые классы и ресурсы копируются из исходного архива в сжатом виде,
+	 * без распаковки и повторного сжатия.
+	 * @param path Путь к архиву
+	 * @param classCollection Содержимое архива
+	 * @param pool Пул потоков для сериализации и сжатия
+	 * @throws IOException Ошибка записи
+	 */
+	public static void writeClasssesToJar(Path path, JarContents classCollection, ForkJoinPool pool) throws IOException {
+		writeClasssesToJar(path, classCollection, pool, null);
+	}
+
+	/**
+	 * Записывает содержимое в архив. Сериализация и сжатие записей выполняются в пуле потоков, запись - в исходном порядке.
+	 * Одновременно подготавливается ограниченное число записей, поэтому в памяти находятся сжатые данные только
+	 * ближайших к записи записей.
+	 * @param path Путь к архиву
+	 * @param classCollection Содержимое архива
+	 * @param pool Пул потоков для сериализации и сжатия
+	 * @param compression Степень сжатия всех записей или null - неизменённые записи копируются из исходного архива
+	 * без перепаковки, новые сжимаются со степенью по умолчанию
+	 * @throws IOException Ошибка записи
+	 */
+	public static void writeClasssesToJar(Path path, JarContents classCollection, ForkJoinPool pool, Compression compression) throws IOException {
+		writeClasssesToJar(path, classCollection, pool, compression, null);
+	}
+
+	/**
+	 * Записывает содержимое в архив с расположением записей для быстрого запуска
+	 * @param path Путь к архиву
+	 * @param classCollection Содержимое архива
+	 * @param pool Пул потоков для сериализации и сжатия
+	 * @param compression Степень сжатия всех записей или null
+	 * @param layout Расположение записей или null - записи пишутся в исходном порядке
+	 * @throws IOException Ошибка записи
+	 */
+	@SuppressWarnings("try")
+	public static void writeClasssesToJar(Path path, JarContents classCollection, ForkJoinPool pool, Compression compression, Layout layout) throws IOException {
+		Metrics metrics = classCollection.metrics;
+		try (Metrics.PhaseTimer timer = metrics.time(Metrics.Phase.WRITE)) {
+			writeArchive(path, classCollection, pool, metrics, compression, layout);
+		}
+	}
+
+	private static void writeArchive(Path path, JarContents classCollection, ForkJoinPool pool, Metrics metrics, Compression compression, Layout layout) throws IOException {
+		int level = compression != null ? compression.level : Compression.DEFAULT.level;
+
+		// Исходный архив читается во время записи, поэтому его нельзя перезаписывать на месте
+		boolean replaceInput = classCollection.archive != null && Files.exists(path) && Files.isSameFile(path, classCollection.archive.getPath());
+		Path target = replaceInput ? createReplacement(path) : path;
+
+		try (ZipWriter zip = new ZipWriter(FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING), level)) {
+			writeEntries(zip, classCollection, pool, metrics, compression, layout, path.getFileName().toString());
+		} catch (IOException | RuntimeException ex) {
+			if(replaceInput) Files.deleteIfExists(target);
+			throw ex;
+		}
+
+		if(replaceInput) classCollection.replaceOnClose(target, path);
+	}
+
+	/**
+	 * Создаёт временный файл для замены существующего файла в том же каталоге, чтобы замена была переносом,
+	 * а не копированием. Права доступа POSIX копируются с заменяемого файла
+	 * @param path Заменяемый файл
+	 * @return Временный файл
+	 * @throws IOException Ошибка создания файла
+	 */
+	static Path createReplacement(Path path) throws IOException {
+		Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+		PosixFileAttributeView posix = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+		if(posix != null) {
+			try {
+				Files.setPosixFilePermissions(temp, posix.readAttributes().permissions());
+			} catch (IOException ex) {
+				Files.deleteIfExists(temp);
+				throw ex;
+			}
+		}
+		return temp;
+	}
+
+	/**
+	 * Собирает вложенный архив в памяти. Неизменённый архив возвращается как есть. Порядок записей вложенного архива
+	 * также определяется расположением, индекс для него не строится
+	 * @param classCollection Содержимое вложенного архива
+	 * @param source Исходная запись вложенного архива
+	 * @return Содержимое архива
+	 */
+	private static byte[] writeNested(JarContents classCollection, Resource source, ForkJoinPool pool, Metrics metrics, Compression compression, Layout layout) throws IOException {
+		if(!classCollection.isModified() && compression == null && layout == null) return source.getBytes();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ZipWriter zip = new ZipWriter(Channels.newChannel(out), compression != null ? compression.level : Compression.DEFAULT.level)) {
+			writeEntries(zip, classCollection, pool, metrics, compression, layout, null);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Готовит записи архива в пуле потоков и пишет их по порядку
+	 * @param layout Расположение записей или null
+	 * @param jarName Имя архива для индекса или null - индекс не записывается
+	 */
+	@SuppressWarnings("try")
+	private static void writeEntries(ZipWriter zip, JarContents classCollection, ForkJoinPool pool, Metrics metrics, Compression compression, Layout layout, String jarName) throws IOException {
+		int level = compression != null ? compression.level : Compression.DEFAULT.level;
+		boolean index = layout != null && layout.index && jarName != null;
+		if(index && classCollection.manifest != null && classCollection.manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH) != null) {
+			// С индексом загрузчик не следует Class-Path, а архивы Class-Path могут отсутствовать при сборке
+			SimpleLogger.instance.log(Level.WARNING, "Jar index is not written for {0}: its manifest has Class-Path, which is ignored when an index is present.", jarName);
+			index = false;
+		}
+		Set<String> dirs = new LinkedHashSet<>();
+		List<PendingEntry> pending = new ArrayList<>(classCollection.classes.size() + classCollection.resources.size() + 2);
+
+		if(classCollection.manifest != null) {
+			addDirectories(dirs, JarFile.MANIFEST_NAME);
+			ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+			classCollection.manifest.write(manifest);
+			pending.add(new PendingEntry(JarFile.MANIFEST_NAME, Metrics.EntryType.MANIFEST, null, () -> compress(JarFile.MANIFEST_NAME, manifest.toByteArray(), level, layout, metrics)));
+		}
+		int start = pending.size();
+
+		for(ClassEntry clazz : classCollection.classes.values()) {
+			addDirectories(dirs, clazz.name);
+			String name = clazz.name.concat(".class");
+			if(clazz.isChanged()) {
+				pending.add(new PendingEntry(name, Metrics.EntryType.CLASS, null, () -> {
+					byte[] data;
+					try (Metrics.PhaseTimer timer = metrics.time(Metrics.Phase.SERIALIZE)) {
+						data = clazz.toByteArray();
+					}
+					return compress(name, data, level, layout, metrics);
+				}));
+			} else {
+				metrics.increment(Metrics.Counter.PASSED_THROUGH_CLASSES);
+				boolean copy = canCopy(name, clazz.getSource(), compression, layout);
+				pending.add(new PendingEntry(name, Metrics.EntryType.CLASS, copy ? clazz.getSource() : null, copy ? null : () -> compress(name, clazz.getBytes(), level, layout, metrics)));
+			}
+		}
+
+		for(Map.Entry<String, Resource> entry : classCollection.resources.entrySet()) {
+			String name = entry.getKey();
+			if(index && name.equals(Layout.INDEX_NAME)) continue; // старый индекс заменяется новым
+			addDirectories(dirs, name);
+			Resource resource = entry.getValue();
+			JarContents inner = classCollection.nested.get(name);
+			if(inner != null) { // вложенный архив собирается и сжимается на месте исходной записи
+				boolean copy = !inner.isModified() && layout == null && canCopy(name, resource.getSource(), compression, null);
+				pending.add(new PendingEntry(name, Metrics.EntryType.RESOURCE, copy ? resource.getSource() : null, copy ? null : () -> compress(name, writeNested(inner, resource, pool, metrics, compression, layout), level, layout, metrics)));
+				continue;
+			}
+			boolean copy = canCopy(name, resource.getSource(), compression, layout);
+			pending.add(new PendingEntry(name, Metrics.EntryType.RESOURCE, copy ? resource.getSource() : null, copy ? null : () -> compress(name, resource.getBytes(), level, layout, metrics)));
+		}
+
+		if(layout != null) {
+			// Загружаемые при запуске записи - подряд в порядке загрузки, индекс - сразу после манифеста
+			pending.subList(start, pending.size()).sort(Comparator.comparingInt(entry -> layout.getRank(entry.name)));
+			if(index) {
+				List<String> names = new ArrayList<>(pending.size());
+				pending.forEach(entry -> names.add(entry.name));
+				byte[] data = Layout.buildIndex(jarName, names);
+				addDirectories(dirs, Layout.INDEX_NAME);
+				pending.add(start, new PendingEntry(Layout.INDEX_NAME, Metrics.EntryType.RESOURCE, null, () -> compress(Layout.INDEX_NAME, data, level, layout, metrics)));
+			}
+		}
+
+		int window = pool.getParallelism() * 16; // записи, подготавливаемые впереди записываемой
+		for(int i = 0; i < Math.min(window, pending.size()); i++) {
+			pending.get(i).submit(pool);
+		}
+		for(int i = 0; i < pending.size(); i++) {
+			if(i + window < pending.size()) pending.get(i + window).submit(pool);
+
+			PendingEntry entry = pending.get(i);
+			pending.set(i, null); // сжатые данные больше не нужны после записи
+			if(entry.source != null) {
+				metrics.addOutput(entry.type, entry.source.getSize(), zip.copyEntry(entry.name, entry.source));
+			} else {
+				ZipWriter.Compressed compressed = Utils.await(entry.future);
+				metrics.addOutput(entry.type, compressed.getSize(), zip.writeEntry(entry.name, compressed));
+			}
+		}
+
+		for(String dirPath : dirs) {
+			zip.writeDirectory(dirPath + "/");
+		}
+	}
+
+	/**
+	 * Запись исходного архива копируется без перепаковки, если степень сжатия не задана
+	 * или запись уже хранится без сжатия, как требуется
+	 */
+	private static boolean canCopy(String name, ZipArchive.Entry source, Compression compression, Layout layout) {
+		if(source == null) return false;
+		if(layout != null && layout.isStored(name, source.getSize())) return source.method == ZipArchive.STORED;
+		return compression == null || (compression == Compression.STORE && source.method == ZipArchive.STORED);
+	}
+
+	@SuppressWarnings("try")
+	private static ZipWriter.Compressed compress(String name, byte[] data, int level, Layout layout, Metrics metrics) {
+		try (Metrics.PhaseTimer timer = metrics.time(Metrics.Phase.COMPRESS)) {
+			return ZipWriter.compress(data, layout != null && layout.isStored(name, data.length) ? Deflater.NO_COMPRESSION : level);
+		}
+	}
+
+	/**
+	 * Запись архива, ожидающая записи: копируемая запись исходного архива или задача сжатия
+	 */
+	private static final class PendingEntry {
+
+		final String name;
+		final Metrics.EntryType type;
+		final ZipArchive.Entry source;
+		final Callable<ZipWriter.Compressed> task;
+		ForkJoinTask<ZipWriter.Compressed> future;
+
+		PendingEntry(String name, Metrics.EntryType type, ZipArchive.Entry source, Callable<ZipWriter.Compressed> task) {
+			this.name = name;
+			this.type = type;
+			this.source = source;
+			this.task = task;
+		}
+
+		void submit(ForkJoinPool pool) {
+			if(task != null) future = pool.submit(task);
+		}
+
+	}
+
+	private static void addDirectories(Set<String> dirs, String filePath) {
 		int i = filePath.lastIndexOf('/');
 		if(i >= 0) {
 			String dirPath = filePath.substring(0, i);
 			if(dirs.add(dirPath)) {
-				addDirectories(dirPath);
+				addDirectories(dirs, dirPath);
 			}
 		}
 	}
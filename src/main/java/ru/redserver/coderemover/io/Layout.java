@@ -0,0 +1,130 @@
+package ru.redserver.coderemover.io;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Расположение записей выходного архива для быстрого запуска: записи из трассировки загрузки классов идут
+ * первыми и подряд в порядке загрузки, очень маленькие и уже сжатые записи хранятся без сжатия,
+ * после манифеста может быть записан индекс META-INF/INDEX.LIST.
+ * @author Nuclear
+ */
+public final class Layout {
+
+	public static final String INDEX_NAME = "META-INF/INDEX.LIST";
+
+	/**
+	 * Записи меньше этого размера хранятся без сжатия: выигрыш от сжатия меньше заголовков записи
+	 */
+	public static final int STORE_THRESHOLD = 256;
+
+	private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+			"png", "jpg", "jpeg", "gif", "webp", "ogg", "mp3", "mp4", "zip", "jar", "gz", "xz", "bz2", "7z", "woff", "woff2"));
+
+	private final Map<String, Integer> ranks = new HashMap<>();
+
+	/**
+	 * Записывать индекс META-INF/INDEX.LIST
+	 */
+	public final boolean index;
+
+	/**
+	 * @param loadOrder Имена записей в порядке загрузки, см. {@link #readLoadOrder(Path)}
+	 * @param index Записывать индекс META-INF/INDEX.LIST
+	 */
+	public Layout(List<String> loadOrder, boolean index) {
+		for(String name : loadOrder) {
+			ranks.putIfAbsent(name, ranks.size());
+		}
+		this.index = index;
+	}
+
+	/**
+	 * Читает порядок загрузки классов. Поддерживаются вывод -Xlog:class+load ("[0.020s][info][class,load] demo.Main source: ..."),
+	 * -verbose:class ("[Loaded demo.Main from ...]") и список имён по одному в строке: классы через точку или '/',
+	 * файлы классов (demo/Main.class) и ресурсы (assets/data.txt). Пустые строки и строки с '#' пропускаются
+	 * @param file Файл трассировки
+	 * @return Имена записей архива в порядке первой загрузки. Для имени через точку добавляются и класс, и ресурс
+	 * @throws IOException Ошибка чтения
+	 */
+	public static List<String> readLoadOrder(Path file) throws IOException {
+		List<String> names = new ArrayList<>();
+		for(String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			line = line.trim();
+			if(line.startsWith("[Loaded ")) {
+				line = line.substring("[Loaded ".length());
+			} else {
+				while(line.startsWith("[") && line.indexOf(']') > 0) { // декораторы -Xlog
+					line = line.substring(line.indexOf(']') + 1).trim();
+				}
+			}
+			if(line.isEmpty() || line.startsWith("#")) continue;
+
+			int end = 0;
+			while(end < line.length() && !Character.isWhitespace(line.charAt(end)) && line.charAt(end) != ']') end++;
+			String name = line.substring(0, end);
+			if(name.endsWith(".class")) {
+				names.add(name);
+			} else {
+				names.add(name.replace('.', '/').concat(".class"));
+				if(name.indexOf('.') > 0) names.add(name); // ресурс с расширением
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * @param name Имя записи
+	 * @return Позиция записи в порядке загрузки или {@link Integer#MAX_VALUE}, если запись не загружалась
+	 */
+	public int getRank(String name) {
+		return ranks.getOrDefault(name, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return Число имён в порядке загрузки
+	 */
+	public int getLoadOrderSize() {
+		return ranks.size();
+	}
+
+	/**
+	 * @param name Имя записи
+	 * @param size Размер записи
+	 * @return Хранить запись без сжатия: очень маленькие записи и уже сжатые форматы
+	 */
+	public boolean isStored(String name, long size) {
+		if(size < STORE_THRESHOLD) return true;
+		int dot = name.lastIndexOf('.');
+		return dot > name.lastIndexOf('/') && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Строит индекс архива в формате JarIndex: пакеты классов и каталоги ресурсов, кроме META-INF
+	 * @param jarName Имя архива
+	 * @param names Имена записей
+	 * @return Содержимое META-INF/INDEX.LIST
+	 */
+	public static byte[] buildIndex(String jarName, List<String> names) {
+		StringBuilder index = new StringBuilder("JarIndex-Version: 1.0\n\n").append(jarName).append('\n');
+		Set<String> packages = new HashSet<>();
+		for(String name : names) {
+			if(name.startsWith("META-INF/")) continue;
+			int slash = name.lastIndexOf('/');
+			String entry = slash > 0 ? name.substring(0, slash) : name; // записи корня указываются по имени
+			if(packages.add(entry)) index.append(entry).append('\n');
+		}
+		return index.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,59 @@
+package ru.redserver.coderemover.io;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Ресурс Jar файла (любой файл кроме .class). Ресурсы никогда не изменяются, поэтому
+ * ресурс из архива или каталога хранит только ссылку на запись или файл и читается лишь по требованию.
+ * @author Nuclear
+ */
+public final class Resource {
+
+	private final byte[] data;
+	private final ZipArchive.Entry source;
+	private final Path file;
+
+	public Resource(byte[] data) {
+		this.data = data;
+		this.source = null;
+		this.file = null;
+	}
+
+	public Resource(ZipArchive.Entry source) {
+		this.data = null;
+		this.source = source;
+		this.file = null;
+	}
+
+	public Resource(Path file) {
+		this.data = null;
+		this.source = null;
+		this.file = file;
+	}
+
+	/**
+	 * @return Запись исходного архива или null, если ресурс находится в памяти
+	 */
+	public ZipArchive.Entry getSource() {
+		return source;
+	}
+
+	/**
+	 * @return Файл исходного каталога или null
+	 */
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * @return Содержимое ресурса
+	 * @throws IOException Ошибка чтения
+	 */
+	public byte[] getBytes() throws IOException {
+		if(source != null) return source.readBytes();
+		return file != null ? Files.readAllBytes(file) : data;
+	}
+
+}
@@ -0,0 +1,339 @@
+package ru.redserver.coderemover.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Zip архив с произвольным доступом к записям. Читает центральный каталог и позволяет получить
+ * как распакованное содержимое записи, так и её сжатые данные для копирования без перепаковки.
+ * Архив читается из файла или из памяти (вложенный архив).
+ * @author Nuclear
+ */
+public final class ZipArchive implements Closeable {
+
+	static final int LOCAL_HEADER = 0x04034b50;
+	static final int CENTRAL_HEADER = 0x02014b50;
+	static final int END_HEADER = 0x06054b50;
+	static final int ZIP64_END_HEADER = 0x06064b50;
+	static final int ZIP64_LOCATOR = 0x07064b50;
+	static final int ZIP64_EXTRA = 0x0001;
+
+	static final int STORED = 0;
+	static final int DEFLATED = 8;
+
+	private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true)); // сбрасывается после каждой записи
+
+	private final Path path;
+	private final String location; // путь к архиву или к записи вложенного архива для сообщений об ошибках
+	private final FileChannel channel;
+	private final byte[] data; // содержимое архива в памяти, если channel не задан
+	private final List<Entry> entries;
+
+	private ZipArchive(Path path, String location, FileChannel channel, byte[] data) throws IOException {
+		this.path = path;
+		this.location = location;
+		this.channel = channel;
+		this.data = data;
+		this.entries = Collections.unmodifiableList(readCentralDirectory());
+	}
+
+	/**
+	 * Открывает архив
+	 * @param path Путь к архиву
+	 * @return Архив
+	 * @throws IOException Ошибка чтения или повреждённый архив
+	 */
+	public static ZipArchive open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			return new ZipArchive(path, path.toString(), channel, null);
+		} catch (IOException | RuntimeException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Открывает архив, находящийся в памяти
+	 * @param location Расположение архива, например путь к записи внешнего архива
+	 * @param data Содержимое архива
+	 * @return Архив
+	 * @throws IOException Повреждённый архив
+	 */
+	public static ZipArchive wrap(String location, byte[] data) throws IOException {
+		return new ZipArchive(null, location, null, data);
+	}
+
+	/**
+	 * @return Путь к архиву или null, если архив находится в памяти
+	 */
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * @return Путь к архиву или к записи вложенного архива
+	 */
+	public String getLocation() {
+		return location;
+	}
+
+	/**
+	 * @return Записи в порядке центрального каталога
+	 */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(channel != null) channel.close();
+	}
+
+	private List<Entry> readCentralDirectory() throws IOException {
+		long size = channel != null ? channel.size() : data.length;
+		int tailSize = (int)Math.min(size, 0xFFFF + 22);
+		ByteBuffer tail = read(size - tailSize, tailSize);
+
+		int end = -1;
+		for(int i = tailSize - 22; i >= 0; i--) {
+			if(tail.getInt(i) == END_HEADER) {
+				end = i;
+				break;
+			}
+		}
+		if(end < 0) throw new ZipException("End of central directory not found: " + location);
+
+		long count = tail.getShort(end + 10) & 0xFFFF;
+		long cdSize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+		long cdOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+
+		// ZIP64
+		if(end >= 20 && tail.getInt(end - 20) == ZIP64_LOCATOR) {
+			ByteBuffer zip64 = read(tail.getLong(end - 20 + 8), 56);
+			if(zip64.getInt(0) != ZIP64_END_HEADER) throw new ZipException("Bad ZIP64 end of central directory: " + location);
+			count = zip64.getLong(32);
+			cdSize = zip64.getLong(40);
+			cdOffset = zip64.getLong(48);
+		}
+		if(cdSize > Integer.MAX_VALUE) throw new ZipException("Central directory is too large: " + location);
+
+		ByteBuffer cd = read(cdOffset, (int)cdSize);
+		List<Entry> list = new ArrayList<>((int)Math.min(count, 1 << 16));
+		int pos = 0;
+		for(long i = 0; i < count; i++) {
+			if(cd.getInt(pos) != CENTRAL_HEADER) throw new ZipException("Bad central directory header: " + location);
+
+			int flags = cd.getShort(pos + 8) & 0xFFFF;
+			int method = cd.getShort(pos + 10) & 0xFFFF;
+			int dosTime = cd.getInt(pos + 12);
+			int crc = cd.getInt(pos + 16);
+			long compressedSize = cd.getInt(pos + 20) & 0xFFFFFFFFL;
+			long entrySize = cd.getInt(pos + 24) & 0xFFFFFFFFL;
+			int nameLength = cd.getShort(pos + 28) & 0xFFFF;
+			int extraLength = cd.getShort(pos + 30) & 0xFFFF;
+			int commentLength = cd.getShort(pos + 32) & 0xFFFF;
+			long localOffset = cd.getInt(pos + 42) & 0xFFFFFFFFL;
+
+			byte[] name = new byte[nameLength];
+			cd.position(pos + 46);
+			cd.get(name);
+
+			// Расширенные размеры ZIP64
+			int extra = pos + 46 + nameLength;
+			int extraEnd = extra + extraLength;
+			while(extra + 4 <= extraEnd) {
+				int id = cd.getShort(extra) & 0xFFFF;
+				int length = cd.getShort(extra + 2) & 0xFFFF;
+				if(id == ZIP64_EXTRA) {
+					int field = extra + 4;
+					if(entrySize == 0xFFFFFFFFL) {
+						entrySize = cd.getLong(field);
+						field += 8;
+					}
+					if(compressedSize == 0xFFFFFFFFL) {
+						compressedSize = cd.getLong(field);
+						field += 8;
+					}
+					if(localOffset == 0xFFFFFFFFL) localOffset = cd.getLong(field);
+				}
+				extra += 4 + length;
+			}
+
+			list.add(new Entry(new String(name, StandardCharsets.UTF_8), flags, method, dosTime, crc, compressedSize, entrySize, localOffset));
+			pos = extraEnd + commentLength;
+		}
+		return list;
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(position, buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	private void readFully(long position, ByteBuffer buffer) throws IOException {
+		if(channel == null) {
+			if(position < 0 || position + buffer.remaining() > data.length) throw new ZipException("Unexpected end of archive: " + location);
+			buffer.put(data, (int)position, buffer.remaining());
+			return;
+		}
+
+		int start = buffer.position();
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, position + buffer.position() - start) < 0) throw new ZipException("Unexpected end of archive: " + location);
+		}
+	}
+
+	/**
+	 * Запись архива
+	 */
+	public final class Entry {
+
+		public final String name;
+		final int flags;
+		final int method;
+		final int dosTime;
+		final int crc;
+		final long compressedSize;
+		final long size;
+		private final long localOffset;
+		private long dataOffset = -1;
+
+		private Entry(String name, int flags, int method, int dosTime, int crc, long compressedSize, long size, long localOffset) {
+			this.name = name;
+			this.flags = flags;
+			this.method = method;
+			this.dosTime = dosTime;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.localOffset = localOffset;
+		}
+
+		/**
+		 * @return true, если это каталог
+		 */
+		public boolean isDirectory() {
+			return name.endsWith("/");
+		}
+
+		/**
+		 * @return Размер распакованных данных
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return Архив, которому принадлежит запись
+		 */
+		public ZipArchive getArchive() {
+			return ZipArchive.this;
+		}
+
+		/**
+		 * Читает и распаковывает содержимое записи. Память выделяется один раз под распакованные данные точного размера:
+		 * несжатые данные читаются прямо в результат, сжатые - кусками через буфер из {@link BufferPool}
+		 * @return Содержимое записи
+		 * @throws IOException Ошибка чтения или неверная контрольная сумма
+		 */
+		public byte[] readBytes() throws IOException {
+			if(size > Integer.MAX_VALUE - 8 || compressedSize > Integer.MAX_VALUE) throw new ZipException("Entry is too large: " + name);
+			byte[] bytes = new byte[(int)size];
+
+			if(method == STORED) {
+				if(compressedSize != size) throw new ZipException("Bad entry size: " + name);
+				readFully(getDataOffset(), ByteBuffer.wrap(bytes));
+			} else if(method == DEFLATED) {
+				inflate(bytes);
+			} else {
+				throw new ZipException("Unsupported compression method " + method + ": " + name);
+			}
+
+			CRC32 checksum = new CRC32();
+			checksum.update(bytes);
+			if((int)checksum.getValue() != crc) throw new ZipException("Bad CRC checksum: " + name);
+			return bytes;
+		}
+
+		private void inflate(byte[] bytes) throws IOException {
+			Inflater inflater = INFLATERS.get();
+			byte[] chunk = BufferPool.acquire();
+			try {
+				long position = getDataOffset();
+				long remaining = compressedSize;
+				int count = 0;
+				while(count < bytes.length && !inflater.finished()) {
+					if(inflater.needsInput()) {
+						if(remaining == 0) break;
+						int length = (int)Math.min(chunk.length, remaining);
+						readFully(position, ByteBuffer.wrap(chunk, 0, length));
+						inflater.setInput(chunk, 0, length);
+						position += length;
+						remaining -= length;
+					}
+					int read = inflater.inflate(bytes, count, bytes.length - count);
+					if(read == 0 && inflater.needsDictionary()) break;
+					count += read;
+				}
+				if(count != bytes.length) throw new ZipException("Bad entry size: " + name);
+			} catch (DataFormatException ex) {
+				throw new ZipException("Bad compressed data in " + name + ": " + ex.getMessage());
+			} finally {
+				inflater.reset();
+				BufferPool.release(chunk);
+			}
+		}
+
+		/**
+		 * Копирует сжатые данные записи в канал без распаковки
+		 * @param target Канал
+		 * @throws IOException Ошибка чтения или записи
+		 */
+		void transferRaw(WritableByteChannel target) throws IOException {
+			long position = getDataOffset();
+			long remaining = compressedSize;
+			if(channel == null) {
+				if(position + remaining > data.length) throw new ZipException("Unexpected end of archive: " + location);
+				ByteBuffer buffer = ByteBuffer.wrap(data, (int)position, (int)remaining);
+				while(buffer.hasRemaining()) {
+					target.write(buffer);
+				}
+				return;
+			}
+			while(remaining > 0) {
+				long transferred = channel.transferTo(position, remaining, target);
+				if(transferred <= 0) throw new ZipException("Unexpected end of archive: " + location);
+				position += transferred;
+				remaining -= transferred;
+			}
+		}
+
+		private long getDataOffset() throws IOException {
+			if(dataOffset < 0) {
+				ByteBuffer header = read(localOffset, 30);
+				if(header.getInt(0) != LOCAL_HEADER) throw new ZipException("Bad local header: " + name);
+				dataOffset = localOffset + 30 + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+			}
+			return dataOffset;
+		}
+
+	}
+
+}
@@ -0,0 +1,336 @@
+package ru.redserver.coderemover.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Пишет Zip архив в канал. В отличие от {@link java.util.zip.ZipOutputStream} умеет копировать
+ * сжатые данные записей другого архива без распаковки и повторного сжатия, а сжатие записей
+ * ({@link #compress(byte[], int)}) отделено от записи и может выполняться в нескольких потоках.
+ * @author Nuclear
+ */
+public final class ZipWriter implements Closeable {
+
+	private static final int FLAG_UTF8 = 0x0800;
+	private static final ThreadLocal<Deflater[]> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater[11]); // по уровню + 1
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+	private final List<CentralEntry> central = new ArrayList<>();
+	private final Set<String> names = new HashSet<>();
+	private final int dosTime;
+	private final int level;
+	private long position = 0;
+	private long compressTime = 0;
+
+	public ZipWriter(WritableByteChannel channel) {
+		this(channel, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param channel Канал архива
+	 * @param level Уровень сжатия записей {@link #writeEntry(String, byte[])}, 0 - без сжатия
+	 */
+	public ZipWriter(WritableByteChannel channel, int level) {
+		this(channel, level, LocalDateTime.now());
+	}
+
+	/**
+	 * @param channel Канал архива
+	 * @param level Уровень сжатия записей {@link #writeEntry(String, byte[])}, 0 - без сжатия
+	 * @param time Время изменения всех записей. Постоянное время делает архив воспроизводимым
+	 */
+	public ZipWriter(WritableByteChannel channel, int level, LocalDateTime time) {
+		this.channel = channel;
+		this.level = level;
+		this.dosTime = toDosTime(time);
+	}
+
+	/**
+	 * Сжимает и записывает запись
+	 * @param name Имя записи
+	 * @param data Содержимое
+	 * @return Размер сжатых данных
+	 * @throws IOException Ошибка записи
+	 */
+	public long writeEntry(String name, byte[] data) throws IOException {
+		long start = System.nanoTime();
+		Compressed compressed = compress(data, level);
+		compressTime += System.nanoTime() - start;
+		return writeEntry(name, compressed);
+	}
+
+	/**
+	 * Записывает заранее сжатую запись
+	 * @param name Имя записи
+	 * @param compressed Сжатые данные
+	 * @return Размер сжатых данных
+	 * @throws IOException Ошибка записи
+	 */
+	public long writeEntry(String name, Compressed compressed) throws IOException {
+		CentralEntry entry = addEntry(name, compressed.method, dosTime, compressed.crc, compressed.length, compressed.size);
+		writeLocalHeader(entry);
+		put(compressed.data, compressed.length);
+		return compressed.length;
+	}
+
+	/**
+	 * Сжимает содержимое записи. Потокобезопасен: у каждого потока свои {@link Deflater} для каждого уровня.
+	 * Запись, которая при сжатии не становится меньше, сохраняется без сжатия
+	 * @param data Содержимое
+	 * @param level Уровень сжатия, 0 - без сжатия
+	 * @return Сжатые данные с контрольной суммой
+	 */
+	public static Compressed compress(byte[] data, int level) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		if(level != Deflater.NO_COMPRESSION && data.length > 0) {
+			Deflater[] deflaters = DEFLATERS.get();
+			Deflater deflater = deflaters[level + 1];
+			if(deflater == null) deflater = deflaters[level + 1] = new Deflater(level, true);
+			deflater.reset();
+			deflater.setInput(data);
+			deflater.finish();
+
+			byte[] compressed = new byte[data.length]; // больше - выгоднее хранить без сжатия
+			int length = 0;
+			while(!deflater.finished() && length < compressed.length) {
+				length += deflater.deflate(compressed, length, compressed.length - length);
+			}
+			if(deflater.finished() && length < data.length) return new Compressed(ZipArchive.DEFLATED, (int)crc.getValue(), compressed, length, data.length);
+		}
+		return new Compressed(ZipArchive.STORED, (int)crc.getValue(), data, data.length, data.length);
+	}
+
+	/**
+	 * Копирует запись другого архива без распаковки
+	 * @param name Имя записи в новом архиве
+	 * @param source Исходная запись
+	 * @return Размер сжатых данных
+	 * @throws IOException Ошибка чтения или записи
+	 */
+	public long copyEntry(String name, ZipArchive.Entry source) throws IOException {
+		CentralEntry entry = addEntry(name, source.method, source.dosTime, source.crc, source.compressedSize, source.size);
+		writeLocalHeader(entry);
+		flushBuffer();
+		source.transferRaw(channel);
+		position += source.compressedSize;
+		return source.compressedSize;
+	}
+
+	/**
+	 * Записывает каталог
+	 * @param name Имя каталога, заканчивается на '/'
+	 * @throws IOException Ошибка записи
+	 */
+	public void writeDirectory(String name) throws IOException {
+		writeLocalHeader(addEntry(name, ZipArchive.STORED, dosTime, 0, 0, 0));
+	}
+
+	/**
+	 * @return Суммарное время сжатия записей в наносекундах
+	 */
+	public long getCompressTime() {
+		return compressTime;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private void finish() throws IOException {
+		long cdOffset = position;
+		for(CentralEntry entry : central) {
+			boolean zip64 = entry.localOffset >= 0xFFFFFFFFL;
+			ensureCapacity(46 + entry.name.length + (zip64 ? 12 : 0));
+			buffer.putInt(ZipArchive.CENTRAL_HEADER);
+			buffer.putShort((short)(zip64 ? 45 : 20)); // version made by
+			buffer.putShort((short)(zip64 ? 45 : versionNeeded(entry.method)));
+			buffer.putShort((short)FLAG_UTF8);
+			buffer.putShort((short)entry.method);
+			buffer.putInt(entry.dosTime);
+			buffer.putInt(entry.crc);
+			buffer.putInt((int)entry.compressedSize);
+			buffer.putInt((int)entry.size);
+			buffer.putShort((short)entry.name.length);
+			buffer.putShort((short)(zip64 ? 12 : 0)); // extra
+			buffer.putShort((short)0); // comment
+			buffer.putShort((short)0); // disk
+			buffer.putShort((short)0); // internal attributes
+			buffer.putInt(0); // external attributes
+			buffer.putInt(zip64 ? 0xFFFFFFFF : (int)entry.localOffset);
+			buffer.put(entry.name);
+			if(zip64) {
+				buffer.putShort((short)ZipArchive.ZIP64_EXTRA);
+				buffer.putShort((short)8);
+				buffer.putLong(entry.localOffset);
+			}
+			position += 46 + entry.name.length + (zip64 ? 12 : 0);
+		}
+		long cdSize = position - cdOffset;
+
+		boolean zip64 = central.size() >= 0xFFFF || cdOffset >= 0xFFFFFFFFL || cdSize >= 0xFFFFFFFFL;
+		if(zip64) {
+			long zip64Offset = position;
+			ensureCapacity(56 + 20);
+			buffer.putInt(ZipArchive.ZIP64_END_HEADER);
+			buffer.putLong(44); // размер записи без первых 12 байт
+			buffer.putShort((short)45);
+			buffer.putShort((short)45);
+			buffer.putInt(0); // disk
+			buffer.putInt(0); // cd disk
+			buffer.putLong(central.size());
+			buffer.putLong(central.size());
+			buffer.putLong(cdSize);
+			buffer.putLong(cdOffset);
+
+			buffer.putInt(ZipArchive.ZIP64_LOCATOR);
+			buffer.putInt(0);
+			buffer.putLong(zip64Offset);
+			buffer.putInt(1);
+			position += 56 + 20;
+		}
+
+		ensureCapacity(22);
+		buffer.putInt(ZipArchive.END_HEADER);
+		buffer.putShort((short)0);
+		buffer.putShort((short)0);
+		buffer.putShort((short)(zip64 ? 0xFFFF : central.size()));
+		buffer.putShort((short)(zip64 ? 0xFFFF : central.size()));
+		buffer.putInt(zip64 ? 0xFFFFFFFF : (int)cdSize);
+		buffer.putInt(zip64 ? 0xFFFFFFFF : (int)cdOffset);
+		buffer.putShort((short)0); // comment
+		position += 22;
+		flushBuffer();
+	}
+
+	private CentralEntry addEntry(String name, int method, int time, int crc, long compressedSize, long size) throws IOException {
+		if(!names.add(name)) throw new ZipException("duplicate entry: " + name);
+		if(compressedSize >= 0xFFFFFFFFL || size >= 0xFFFFFFFFL) throw new ZipException("Entry is too large: " + name);
+
+		CentralEntry entry = new CentralEntry(name.getBytes(StandardCharsets.UTF_8), method, time, crc, compressedSize, size, position);
+		central.add(entry);
+		return entry;
+	}
+
+	private void writeLocalHeader(CentralEntry entry) throws IOException {
+		ensureCapacity(30 + entry.name.length);
+		buffer.putInt(ZipArchive.LOCAL_HEADER);
+		buffer.putShort((short)versionNeeded(entry.method));
+		buffer.putShort((short)FLAG_UTF8);
+		buffer.putShort((short)entry.method);
+		buffer.putInt(entry.dosTime);
+		buffer.putInt(entry.crc);
+		buffer.putInt((int)entry.compressedSize);
+		buffer.putInt((int)entry.size);
+		buffer.putShort((short)entry.name.length);
+		buffer.putShort((short)0); // extra
+		buffer.put(entry.name);
+		position += 30 + entry.name.length;
+	}
+
+	private void put(byte[] data, int length) throws IOException {
+		if(length > buffer.remaining()) {
+			flushBuffer();
+			writeFully(ByteBuffer.wrap(data, 0, length));
+		} else {
+			buffer.put(data, 0, length);
+		}
+		position += length;
+	}
+
+	private void ensureCapacity(int length) throws IOException {
+		if(buffer.remaining() < length) flushBuffer();
+		if(buffer.remaining() < length) throw new ZipException("Header is too large");
+	}
+
+	private void flushBuffer() throws IOException {
+		buffer.flip();
+		writeFully(buffer);
+		buffer.clear();
+	}
+
+	private void writeFully(ByteBuffer data) throws IOException {
+		while(data.hasRemaining()) {
+			channel.write(data);
+		}
+	}
+
+	private static int versionNeeded(int method) {
+		return method == ZipArchive.STORED ? 10 : 20;
+	}
+
+	private static int toDosTime(LocalDateTime time) {
+		if(time.getYear() < 1980) return (1 << 21) | (1 << 16);
+		return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+				| time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+	}
+
+	/**
+	 * Сжатые данные записи
+	 */
+	public static final class Compressed {
+
+		final int method;
+		final int crc;
+		final byte[] data;
+		final int length; // размер сжатых данных в data
+		final int size;
+
+		private Compressed(int method, int crc, byte[] data, int length, int size) {
+			this.method = method;
+			this.crc = crc;
+			this.data = data;
+			this.length = length;
+			this.size = size;
+		}
+
+		/**
+		 * @return Размер несжатых данных
+		 */
+		public int getSize() {
+			return size;
+		}
+
+	}
+
+	private static final class CentralEntry {
+
+		final byte[] name;
+		final int method;
+		final int dosTime;
+		final int crc;
+		final long compressedSize;
+		final long size;
+		final long localOffset;
+
+		CentralEntry(byte[] name, int method, int dosTime, int crc, long compressedSize, long size, long localOffset) {
+			this.name = name;
+			this.method = method;
+			this.dosTime = dosTime;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.localOffset = localOffset;
+		}
+
+	}
+
+}
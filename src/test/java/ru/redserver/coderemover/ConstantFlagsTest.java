@@ -0,0 +1,245 @@
+package ru.redserver.coderemover;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.util.CheckClassAdapter;
+import ru.redserver.coderemover.io.ClassEntry;
+
+/**
+ * Свёртка переходов по флагам сборки на байт-коде javac: результат проверяется верификатором ASM
+ * и загрузкой класса, при которой JVM проверяет оставшиеся фреймы
+ * @author Nuclear
+ */
+public class ConstantFlagsTest {
+
+	private static final String FLAGS = "package test;\n"
+			+ "public class Flags {\n"
+			+ "	public static boolean DEBUG = true;\n"
+			+ "	public static int MODE = 0;\n"
+			+ "	public static int KEY = 0;\n"
+			+ "}\n";
+
+	private static final String TARGET = "package test;\n"
+			+ "public class Target {\n"
+			+ "	public static int ifElse() {\n"
+			+ "		int result;\n"
+			+ "		if(Flags.DEBUG) {\n"
+			+ "			String text = \"x\";\n"
+			+ "			result = text.length();\n"
+			+ "		} else {\n"
+			+ "			result = 2;\n"
+			+ "		}\n"
+			+ "		return result;\n"
+			+ "	}\n"
+			+ "	public static int tableSwitch() {\n"
+			+ "		switch(Flags.MODE) {\n"
+			+ "			case 0: return 10;\n"
+			+ "			case 1: return 11;\n"
+			+ "			case 2: return 12;\n"
+			+ "			default: return -1;\n"
+			+ "		}\n"
+			+ "	}\n"
+			+ "	public static int lookupSwitch() {\n"
+			+ "		switch(Flags.KEY) {\n"
+			+ "			case 1: return 2;\n"
+			+ "			case 100: return 200;\n"
+			+ "			case 10000: return 20000;\n"
+			+ "			default: return -1;\n"
+			+ "		}\n"
+			+ "	}\n"
+			+ "	public static int tryBlock(String value) {\n"
+			+ "		int result = 1;\n"
+			+ "		try {\n"
+			+ "			if(Flags.DEBUG) result = Integer.parseInt(value);\n"
+			+ "		} catch (NumberFormatException ex) {\n"
+			+ "			result = -1;\n"
+			+ "		}\n"
+			+ "		return result;\n"
+			+ "	}\n"
+			+ "	public static int frames(int count) {\n"
+			+ "		int total = 0;\n"
+			+ "		if(Flags.DEBUG) {\n"
+			+ "			for(int i = 0; i < count; i++) total += i;\n"
+			+ "		}\n"
+			+ "		long limit = count * 2L;\n"
+			+ "		for(int j = 0; j < limit; j++) total++;\n"
+			+ "		return total;\n"
+			+ "	}\n"
+			+ "}\n";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void foldsIfElse() throws Exception {
+		assertEquals(2, call(process("test.Flags.DEBUG=false"), "ifElse"));
+		assertEquals(1, call(process("test.Flags.DEBUG=true"), "ifElse"));
+	}
+
+	@Test
+	public void foldsTableSwitch() throws Exception {
+		Map<String, byte[]> classes = process("test.Flags.MODE=1");
+		assertFalse(hasOpcode(classes, "tableSwitch", Opcodes.TABLESWITCH));
+		assertEquals(11, call(classes, "tableSwitch"));
+		assertEquals(-1, call(process("test.Flags.MODE=7"), "tableSwitch")); // вне диапазона - default
+	}
+
+	@Test
+	public void foldsLookupSwitch() throws Exception {
+		Map<String, byte[]> classes = process("test.Flags.KEY=100");
+		assertFalse(hasOpcode(classes, "lookupSwitch", Opcodes.LOOKUPSWITCH));
+		assertEquals(200, call(classes, "lookupSwitch"));
+		assertEquals(-1, call(process("test.Flags.KEY=5"), "lookupSwitch"));
+	}
+
+	@Test
+	public void removesEmptyTryBlock() throws Exception {
+		Map<String, byte[]> classes = process("test.Flags.DEBUG=false");
+		assertTrue(getMethod(classes, "tryBlock").tryCatchBlocks.isEmpty());
+		assertEquals(1, call(classes, "tryBlock", "x"));
+
+		classes = process("test.Flags.DEBUG=true");
+		assertEquals(1, getMethod(classes, "tryBlock").tryCatchBlocks.size());
+		assertEquals(-1, call(classes, "tryBlock", "x"));
+	}
+
+	@Test
+	public void expandsCompressedFrames() throws Exception {
+		Map<String, byte[]> original = compile();
+		boolean append = false, chop = false;
+		for(AbstractInsnNode insn = getMethod(original, "frames").instructions.getFirst(); insn != null; insn = insn.getNext()) {
+			if(insn.getType() != AbstractInsnNode.FRAME) continue;
+			append |= ((FrameNode)insn).type == Opcodes.F_APPEND;
+			chop |= ((FrameNode)insn).type == Opcodes.F_CHOP;
+		}
+		assertTrue("javac output has no F_APPEND/F_CHOP frames", append && chop);
+
+		assertEquals(6, call(process("test.Flags.DEBUG=false"), "frames", 3)); // удалённая ветка содержала фреймы цикла
+		assertEquals(9, call(process("test.Flags.DEBUG=true"), "frames", 3));
+	}
+
+	/**
+	 * Компилирует тестовые классы для Java 8, которую читает ASM 5
+	 * @return Байт-код по внутреннему имени класса
+	 */
+	private Map<String, byte[]> compile() throws IOException {
+		File sources = folder.newFolder();
+		File output = folder.newFolder();
+		File flags = new File(sources, "Flags.java");
+		File target = new File(sources, "Target.java");
+		Files.write(flags.toPath(), FLAGS.getBytes(StandardCharsets.UTF_8));
+		Files.write(target.toPath(), TARGET.getBytes(StandardCharsets.UTF_8));
+
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		String[] args = System.getProperty("java.specification.version").startsWith("1.")
+				? new String[]{"-source", "8", "-target", "8", "-d", output.getPath(), flags.getPath(), target.getPath()}
+				: new String[]{"--release", "8", "-d", output.getPath(), flags.getPath(), target.getPath()};
+		assertEquals(0, compiler.run(null, null, null, args));
+
+		Map<String, byte[]> classes = new HashMap<>();
+		classes.put("test/Flags", Files.readAllBytes(new File(output, "test/Flags.class").toPath()));
+		classes.put("test/Target", Files.readAllBytes(new File(output, "test/Target.class").toPath()));
+		return classes;
+	}
+
+	/**
+	 * Обрабатывает test/Target с заданными флагами без пересчёта фреймов и проверяет результат верификатором ASM
+	 * @param flags Значения флагов в формате --flag
+	 * @return Обработанный test/Target и исходный test/Flags
+	 */
+	private Map<String, byte[]> process(String... flags) throws IOException {
+		Map<String, byte[]> classes = compile();
+		Options options = new Options();
+		for(String flag : flags) {
+			options.flags.add(flag);
+		}
+		AnnotationProccessor processor = new AnnotationProccessor(null, new Metrics(), options);
+		ClassEntry target = new ClassEntry(classes.get("test/Target"));
+		processor.scanClass(new ClassEntry(classes.get("test/Flags")));
+		processor.scanClass(target);
+		processor.endScan();
+		processor.processClass(target, true);
+		classes.put("test/Target", target.toByteArray());
+
+		StringWriter errors = new StringWriter();
+		CheckClassAdapter.verify(new ClassReader(classes.get("test/Target")), new TestLoader(classes), false, new PrintWriter(errors));
+		assertEquals("", errors.toString());
+		return classes;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static MethodNode getMethod(Map<String, byte[]> classes, String name) {
+		ClassNode node = new ClassNode();
+		new ClassReader(classes.get("test/Target")).accept(node, 0);
+		for(MethodNode method : (List<MethodNode>)node.methods) {
+			if(method.name.equals(name)) return method;
+		}
+		throw new AssertionError("No method " + name);
+	}
+
+	private static boolean hasOpcode(Map<String, byte[]> classes, String method, int opcode) {
+		for(AbstractInsnNode insn = getMethod(classes, method).instructions.getFirst(); insn != null; insn = insn.getNext()) {
+			if(insn.getOpcode() == opcode) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Загружает классы в отдельном загрузчике и вызывает статический метод test/Target. При первом вызове
+	 * JVM проверяет байт-код метода по его фреймам
+	 */
+	private static Object call(Map<String, byte[]> classes, String name, Object... args) throws ReflectiveOperationException {
+		Class<?> clazz = new TestLoader(classes).loadClass("test.Target");
+		for(Method method : clazz.getMethods()) {
+			if(method.getName().equals(name)) return method.invoke(null, args);
+		}
+		throw new AssertionError("No method " + name);
+	}
+
+	private static final class TestLoader extends ClassLoader {
+
+		private final Map<String, byte[]> classes;
+
+		TestLoader(Map<String, byte[]> classes) {
+			super(ConstantFlagsTest.class.getClassLoader());
+			this.classes = classes;
+		}
+
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			synchronized(getClassLoadingLock(name)) {
+				byte[] bytes = classes.get(name.replace('.', '/'));
+				if(bytes == null) return super.loadClass(name, resolve);
+				Class<?> clazz = findLoadedClass(name);
+				if(clazz == null) clazz = defineClass(name, bytes, 0, bytes.length);
+				if(resolve) resolveClass(clazz);
+				return clazz;
+			}
+		}
+
+	}
+
+}
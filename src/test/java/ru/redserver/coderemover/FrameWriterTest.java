@@ -0,0 +1,123 @@
+package ru.redserver.coderemover;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Пересчёт фреймов, в котором сливаются типы JDK: классы JDK 9+ новее, чем поддерживает ClassReader,
+ * поэтому их заголовки читаются без проверки версии
+ * @author Nuclear
+ */
+public class FrameWriterTest {
+
+	@Test
+	public void readsHeaderOfModernPlatformClass() throws IOException {
+		ClassHierarchy.Header header = new ClassHierarchy.Header(readPlatformClass("java/util/ArrayList"));
+		assertEquals("java/util/ArrayList", header.name);
+		assertEquals("java/util/AbstractList", header.superName);
+		assertEquals("java/util/List", header.interfaces[0]);
+
+		assertNull(new ClassHierarchy.Header(readPlatformClass("java/lang/Object")).superName);
+	}
+
+	@Test
+	public void mergesPlatformTypes() {
+		FrameWriter.Resolver resolver = new FrameWriter.Resolver(new AnnotationProccessor());
+		assertEquals("java/util/AbstractList", resolver.getCommonSuperclass("java/util/ArrayList", "java/util/LinkedList"));
+		assertEquals("java/lang/Object", resolver.getCommonSuperclass("java/util/ArrayList", "java/util/List"));
+	}
+
+	@Test
+	public void mergesLibraryTypesFromHierarchy() {
+		ClassHierarchy.Builder builder = new ClassHierarchy.Builder();
+		builder.add(new ClassHierarchy.Header(createClass("lib/Base", "java/util/AbstractList")), ClassHierarchy.LIBRARY);
+		builder.add(new ClassHierarchy.Header(createClass("lib/X", "lib/Base")), ClassHierarchy.LIBRARY);
+		builder.add(new ClassHierarchy.Header(createClass("lib/Y", "lib/Base")), ClassHierarchy.LIBRARY);
+		AnnotationProccessor processor = new AnnotationProccessor();
+		processor.setHierarchy(builder.build());
+
+		FrameWriter.Resolver resolver = new FrameWriter.Resolver(processor);
+		assertEquals("lib/Base", resolver.getCommonSuperclass("lib/X", "lib/Y"));
+		assertEquals("java/util/AbstractList", resolver.getCommonSuperclass("lib/X", "java/util/ArrayList")); // родители библиотеки в JDK
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void failsOnUnknownType() {
+		// без --classpath общий родитель lib/X и lib/Y неизвестен, java/lang/Object дал бы непроверяемый байт-код
+		new FrameWriter.Resolver(new AnnotationProccessor()).getCommonSuperclass("lib/X", "lib/Y");
+	}
+
+	@Test
+	public void recomputesFramesWithPlatformMerge() throws ReflectiveOperationException {
+		MemberSet methods = new MemberSet();
+		methods.add("size", "(Z)I");
+		byte[] bytes = FrameWriter.recompute(createMergeClass(), methods, new FrameWriter.Resolver(new AnnotationProccessor()));
+
+		Class<?> clazz = new ClassLoader(FrameWriterTest.class.getClassLoader()) {
+			Class<?> define() {
+				return defineClass("test.Merge", bytes, 0, bytes.length);
+			}
+		}.define();
+		Method size = clazz.getMethod("size", boolean.class);
+		assertEquals(0, size.invoke(null, true)); // класс проходит проверку байт-кода при первом вызове
+		assertEquals(0, size.invoke(null, false));
+	}
+
+	/**
+	 * Класс Java 8 без фреймов: size(flag) вызывает AbstractList.size() у ArrayList или LinkedList
+	 */
+	private static byte[] createMergeClass() {
+		ClassWriter writer = new ClassWriter(0);
+		writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, "test/Merge", null, "java/lang/Object", null);
+		MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "size", "(Z)I", null, null);
+		mv.visitCode();
+		Label other = new Label(), merge = new Label();
+		mv.visitVarInsn(Opcodes.ILOAD, 0);
+		mv.visitJumpInsn(Opcodes.IFEQ, other);
+		mv.visitTypeInsn(Opcodes.NEW, "java/util/ArrayList");
+		mv.visitInsn(Opcodes.DUP);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/util/ArrayList", "<init>", "()V", false);
+		mv.visitJumpInsn(Opcodes.GOTO, merge);
+		mv.visitLabel(other);
+		mv.visitTypeInsn(Opcodes.NEW, "java/util/LinkedList");
+		mv.visitInsn(Opcodes.DUP);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/util/LinkedList", "<init>", "()V", false);
+		mv.visitLabel(merge);
+		mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/util/AbstractList", "size", "()I", false);
+		mv.visitInsn(Opcodes.IRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		writer.visitEnd();
+		return writer.toByteArray();
+	}
+
+	private static byte[] createClass(String name, String superName) {
+		ClassWriter writer = new ClassWriter(0);
+		writer.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, superName, null);
+		writer.visitEnd();
+		return writer.toByteArray();
+	}
+
+	private static byte[] readPlatformClass(String name) throws IOException {
+		try (InputStream in = ClassLoader.getSystemResourceAsStream(name + ".class")) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while((read = in.read(buffer)) >= 0) {
+				bytes.write(buffer, 0, read);
+			}
+			return bytes.toByteArray();
+		}
+	}
+
+}